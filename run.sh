@@ -2,4 +2,12 @@
 
 mkdir -p /var/log/arago/cloudwatch
 
-java -Xms1G -Xmx1G -cp /opt/arago/cloudwatch-connector/cloudwatch-connector-dist.jar -Djava.util.logging.config.file=/opt/arago/conf/cloudwatch-connector-logging.properties -Dlog4j.configuration=/opt/arago/conf/cloudwatch-connector-log4j.properties de.arago.connector.cloudwatch.CloudWatchMain
\ No newline at end of file
+# class data sharing archive created when the image was built, the JVM
+# ignores it if it does not match
+CDS_ARCHIVE=/opt/arago/cloudwatch-connector/cloudwatch-connector.jsa
+CDS_OPTS=
+if [ -f $CDS_ARCHIVE ]; then
+  CDS_OPTS="-XX:SharedArchiveFile=$CDS_ARCHIVE -Xshare:auto"
+fi
+
+java -Xms1G -Xmx1G $CDS_OPTS -cp /opt/arago/cloudwatch-connector/cloudwatch-connector-dist.jar -Djava.util.logging.config.file=/opt/arago/conf/cloudwatch-connector-logging.properties -Dlog4j.configuration=/opt/arago/conf/cloudwatch-connector-log4j.properties de.arago.connector.cloudwatch.CloudWatchMain
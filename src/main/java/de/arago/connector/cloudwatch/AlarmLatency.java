@@ -0,0 +1,73 @@
+package de.arago.connector.cloudwatch;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * latency histograms of the way from a CloudWatch alarm sent to SQS to its
+ * AutomationIssue, by processing stage
+ */
+public final class AlarmLatency {
+
+  /** from SentTimestamp until the message was received */
+  public static final String QUEUE = "queue";
+  /** parsing the alarm */
+  public static final String PARSE = "parse";
+  /** waiting in the priority lane */
+  public static final String LANE = "lane";
+  /** checking the node of the issue */
+  public static final String NODE_LOOKUP = "node-lookup";
+  /** creating the issue vertex */
+  public static final String CREATE = "create";
+  /** from SentTimestamp until the message was done, high priority alarms */
+  public static final String TOTAL_HIGH = "total-high";
+  /** from SentTimestamp until the message was done, low priority alarms */
+  public static final String TOTAL_LOW = "total-low";
+
+  private final Map<String, LatencyHistogram> histograms;
+  private final LatencyHistogram receiveCount = new LatencyHistogram();
+
+  public AlarmLatency() {
+    final Map<String, LatencyHistogram> m = new LinkedHashMap();
+    for (String stage : new String[]{QUEUE, PARSE, LANE, NODE_LOOKUP, CREATE, TOTAL_HIGH, TOTAL_LOW}) {
+      m.put(stage, new LatencyHistogram());
+    }
+    histograms = Collections.unmodifiableMap(m);
+  }
+
+  public void record(String stage, long micros) {
+    histograms.get(stage).record(micros);
+  }
+
+  /**
+   * records the ApproximateReceiveCount of a received message
+   */
+  public void recordReceiveCount(long count) {
+    receiveCount.record(count);
+  }
+
+  public LatencyHistogram getHistogram(String stage) {
+    return histograms.get(stage);
+  }
+
+  public Map<String, LatencyHistogram> getHistograms() {
+    return histograms;
+  }
+
+  /**
+   * @return the running summary of all stages in milliseconds
+   */
+  @Override
+  public String toString() {
+    final StringBuilder b = new StringBuilder();
+    for (Map.Entry<String, LatencyHistogram> e : histograms.entrySet()) {
+      if (e.getValue().getCount() > 0) {
+        b.append(e.getKey()).append(": ").append(e.getValue()).append("; ");
+      }
+    }
+    b.append("receive count p99=").append(receiveCount.getValueAtQuantile(0.99))
+      .append(" max=").append(receiveCount.getMax());
+    return b.toString();
+  }
+}
@@ -0,0 +1,110 @@
+package de.arago.connector.cloudwatch;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * circuit breaker for one remote dependency. After a number of consecutive
+ * failures the breaker opens and calls fail fast; once the open period is
+ * over a single probe call is let through, its result closes or reopens
+ * the breaker.
+ */
+public class CircuitBreaker {
+
+  private static final Logger LOG = Logger.getLogger(CircuitBreaker.class.getName());
+
+  public enum State {
+    CLOSED, OPEN, HALF_OPEN
+  }
+
+  /**
+   * thrown instead of calling a dependency while its circuit is open
+   */
+  public static class OpenException extends IllegalStateException {
+
+    public OpenException(String name) {
+      super("circuit " + name + " is open");
+    }
+  }
+
+  private final String name;
+  private final int failureThreshold;
+  private final long openMs;
+  private State state = State.CLOSED;
+  private int failures;
+  private long openedAt;
+
+  public CircuitBreaker(String name, int failureThreshold, long openMs) {
+    this.name = name;
+    this.failureThreshold = failureThreshold;
+    this.openMs = openMs;
+  }
+
+  public synchronized State getState() {
+    return state;
+  }
+
+  /**
+   * @return true if a call would be let through, does not take the probe of a half-open breaker
+   */
+  public synchronized boolean isAvailable() {
+    switch (state) {
+      case CLOSED:
+        return true;
+      case OPEN:
+        return System.currentTimeMillis() - openedAt >= openMs;
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * @return true if the caller may call the dependency and must report the result
+   */
+  public synchronized boolean tryAcquire() {
+    switch (state) {
+      case CLOSED:
+        return true;
+      case OPEN:
+        if (System.currentTimeMillis() - openedAt >= openMs) {
+          state = State.HALF_OPEN;
+          LOG.log(Level.INFO, "circuit {0} half open, probing", name);
+          return true;
+        }
+        return false;
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * @throws OpenException if the caller may not call the dependency
+   */
+  public void acquire() {
+    if (!tryAcquire()) {
+      throw new OpenException(name);
+    }
+  }
+
+  public synchronized void onSuccess() {
+    if (state != State.CLOSED) {
+      LOG.log(Level.INFO, "circuit {0} closed", name);
+    }
+    state = State.CLOSED;
+    failures = 0;
+  }
+
+  public synchronized void onFailure() {
+    ++failures;
+    if (state == State.HALF_OPEN || (state == State.CLOSED && failures >= failureThreshold)) {
+      LOG.log(Level.WARNING, "circuit {0} open for {1} ms after {2} failures", new Object[]{name, openMs, failures});
+      state = State.OPEN;
+      openedAt = System.currentTimeMillis();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return name + ":" + getState();
+  }
+}
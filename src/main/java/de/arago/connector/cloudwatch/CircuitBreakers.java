@@ -0,0 +1,75 @@
+package de.arago.connector.cloudwatch;
+
+import co.arago.hiro.client.util.HiroException;
+
+/**
+ * the circuit breakers of the remote dependencies, shared by both workers
+ */
+public class CircuitBreakers {
+
+  private final CircuitBreaker hiro;
+  private final CircuitBreaker cloudwatch;
+  private final CircuitBreaker sqs;
+
+  public CircuitBreakers(final YamlConfig c) {
+    this((Integer) c.get("circuit-breaker.failure-threshold", 5), 1000L * (Integer) c.get("circuit-breaker.open-sec", 30));
+  }
+
+  CircuitBreakers(int threshold, long openMs) {
+    hiro = new CircuitBreaker("hiro", threshold, openMs);
+    cloudwatch = new CircuitBreaker("cloudwatch", threshold, openMs);
+    sqs = new CircuitBreaker("sqs", threshold, openMs);
+  }
+
+  public CircuitBreaker getHiro() {
+    return hiro;
+  }
+
+  public CircuitBreaker getCloudWatch() {
+    return cloudwatch;
+  }
+
+  public CircuitBreaker getSQS() {
+    return sqs;
+  }
+
+  /**
+   * counts a failed HIRO call, errors of calls which were not sent are
+   * ignored. A client error is an answer of HIRO and counts as success, so
+   * it also closes a half-open breaker.
+   */
+  public void onHiroFailure(Throwable t) {
+    if (t instanceof CircuitBreaker.OpenException) {
+      return;
+    }
+    if (isHiroFailure(t)) {
+      hiro.onFailure();
+    } else {
+      hiro.onSuccess();
+    }
+  }
+
+  /**
+   * reports the outcome of a HIRO call let through by the breaker
+   *
+   * @param t the error of the call, null if it succeeded
+   */
+  public void onHiroResult(Throwable t) {
+    if (t == null) {
+      hiro.onSuccess();
+    } else {
+      onHiroFailure(t);
+    }
+  }
+
+  /**
+   * @return false if HIRO answered with a client error, it is reachable then
+   */
+  static boolean isHiroFailure(Throwable t) {
+    if (t instanceof HiroException) {
+      final int code = ((HiroException) t).getCode();
+      return code < 400 || code >= 500;
+    }
+    return true;
+  }
+}
@@ -0,0 +1,146 @@
+package de.arago.connector.cloudwatch;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * accounting of the paid CloudWatch API usage. Requested metrics and
+ * ListMetrics calls are counted per namespace, the cost of the last hour is
+ * estimated from the configured prices. Close to the hourly budget low
+ * priority metrics are polled less often, at the budget no further metrics
+ * are requested until the usage of the last hour drops.
+ */
+public class CloudWatchBudget {
+
+  private static final Logger LOG = Logger.getLogger(CloudWatchBudget.class.getName());
+  private static final int BUCKETS = 60;
+  private static final long BUCKET_MS = 60000;
+
+  private final double maxPerHour;
+  private final double pricePerMetric;
+  private final double pricePerRequest;
+  private final double stretchAt;
+  private final int stretchFactor;
+  private final Set<String> lowPriorityMetrics;
+
+  // usage of the last hour in one minute buckets
+  private final long[] metricBuckets = new long[BUCKETS];
+  private final long[] requestBuckets = new long[BUCKETS];
+  private final long[] bucketTime = new long[BUCKETS];
+  // namespace -> {metrics, requests} since start
+  private final Map<String, long[]> totals = new TreeMap();
+
+  public CloudWatchBudget(double maxPerHour, double pricePer1000Metrics, double pricePer1000Requests, double stretchAt, int stretchFactor, Set<String> lowPriorityMetrics) {
+    this.maxPerHour = maxPerHour;
+    this.pricePerMetric = pricePer1000Metrics / 1000;
+    this.pricePerRequest = pricePer1000Requests / 1000;
+    this.stretchAt = stretchAt;
+    this.stretchFactor = stretchFactor;
+    this.lowPriorityMetrics = lowPriorityMetrics;
+  }
+
+  /**
+   * @return the budget configured in cloudwatch.budget, without a maximum the usage is only counted
+   */
+  static CloudWatchBudget fromConfig(final YamlConfig c) {
+    final List<String> low = c.get("cloudwatch.budget.low-priority-metrics");
+    return new CloudWatchBudget(
+      toDouble(c.get("cloudwatch.budget.max-per-hour", 0)),
+      toDouble(c.get("cloudwatch.budget.price-per-1000-metrics", 0.01)),
+      toDouble(c.get("cloudwatch.budget.price-per-1000-requests", 0.01)),
+      toDouble(c.get("cloudwatch.budget.stretch-at", 0.8)),
+      (Integer) c.get("cloudwatch.budget.stretch-factor", 4),
+      low == null ? Collections.<String>emptySet() : new HashSet(low));
+  }
+
+  private static double toDouble(Object o) {
+    return o instanceof Number ? ((Number) o).doubleValue() : Double.parseDouble(o + "");
+  }
+
+  public synchronized void onGetMetrics(String namespace, int metrics, long now) {
+    bucket(now);
+    metricBuckets[index(now)] += metrics;
+    total(namespace)[0] += metrics;
+  }
+
+  public synchronized void onListMetrics(String namespace, long now) {
+    bucket(now);
+    requestBuckets[index(now)] += 1;
+    total(namespace)[1] += 1;
+  }
+
+  /**
+   * @return the estimated cost of the usage within the last hour
+   */
+  public synchronized double getHourlyCost(long now) {
+    double ret = 0;
+    for (int i = 0; i < BUCKETS; ++i) {
+      if (now - bucketTime[i] < BUCKETS * BUCKET_MS) {
+        ret += metricBuckets[i] * pricePerMetric + requestBuckets[i] * pricePerRequest;
+      }
+    }
+    return ret;
+  }
+
+  public boolean isExhausted(long now) {
+    return maxPerHour > 0 && getHourlyCost(now) >= maxPerHour;
+  }
+
+  /**
+   * @return the factor the poll interval of the metric is stretched by, 1 while the usage is below the threshold
+   */
+  public int getStretch(String metricName, long now) {
+    if (maxPerHour <= 0 || !(lowPriorityMetrics.contains(metricName) || lowPriorityMetrics.contains("All"))) {
+      return 1;
+    }
+    return getHourlyCost(now) >= stretchAt * maxPerHour ? stretchFactor : 1;
+  }
+
+  public synchronized void logUsage(long now) {
+    LOG.log(Level.INFO, "cloudwatch usage estimated: {0} per hour, budget: {1}, by namespace (metrics, list calls): {2}",
+      new Object[]{String.format("%.4f", getHourlyCost(now)), maxPerHour > 0 ? maxPerHour : "none", format(totals)});
+  }
+
+  private static String format(final Map<String, long[]> totals) {
+    final StringBuilder b = new StringBuilder();
+    for (Map.Entry<String, long[]> e : totals.entrySet()) {
+      if (b.length() > 0) {
+        b.append(", ");
+      }
+      b.append(e.getKey()).append('=').append(e.getValue()[0]).append('/').append(e.getValue()[1]);
+    }
+    return b.toString();
+  }
+
+  private long[] total(String namespace) {
+    long[] t = totals.get(namespace);
+    if (t == null) {
+      t = new long[2];
+      totals.put(namespace, t);
+    }
+    return t;
+  }
+
+  private static int index(long now) {
+    return (int) ((now / BUCKET_MS) % BUCKETS);
+  }
+
+  /**
+   * resets the bucket of now if it still holds the usage of an older minute
+   */
+  private void bucket(long now) {
+    final int i = index(now);
+    final long start = now - now % BUCKET_MS;
+    if (bucketTime[i] != start) {
+      bucketTime[i] = start;
+      metricBuckets[i] = 0;
+      requestBuckets[i] = 0;
+    }
+  }
+}
@@ -1,19 +1,28 @@
 package de.arago.connector.cloudwatch;
 
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.services.cloudwatch.AmazonCloudWatchClient;
+import com.amazonaws.services.cloudwatch.model.GetMetricStatisticsRequest;
+import com.amazonaws.services.cloudwatch.model.ListMetricsRequest;
+import com.amazonaws.services.sqs.AmazonSQSAsyncClient;
+import com.amazonaws.services.sqs.buffered.AmazonSQSBufferedAsyncClient;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.util.Map;
+import java.util.Date;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.apache.log4j.PropertyConfigurator;
-import org.yaml.snakeyaml.Yaml;
 
 public class CloudWatchMain {
 
   private static final Logger LOG = Logger.getLogger(CloudWatchMain.class.getName());
+  private static final String CONFIG_FILE = "/opt/arago/conf/cloudwatch-connector.yaml";
 
   private final CountDownLatch latch = new CountDownLatch(1);
 
@@ -21,31 +30,80 @@ public class CloudWatchMain {
   }
 
   private void run() throws Exception {
-    final Map c;
-    try (InputStream in = new FileInputStream(new File("/opt/arago/conf/cloudwatch-connector.yaml"));)
-    {
-      c = new Yaml().load(in);
+    final File configFile = new File(CONFIG_FILE);
+    final YamlConfig config = YamlConfig.load(configFile);
+    StartupTimeline.mark("config");
+
+    final CircuitBreakers breakers = new CircuitBreakers(config);
+    final HiroAccess hiroAccess = new HiroAccess(config);
+    StartupTimeline.mark("hiro client");
+
+    // a disabled worker is not created, the classes of its clients are never loaded
+    final CloudWatchSQSWorker sqs;
+    if ((Boolean) config.get("sqs.enabled", true)) {
+      sqs = new CloudWatchSQSWorker(breakers, hiroAccess);
+      sqs.configure(config);
+    } else {
+      sqs = null;
     }
-    
-    final YamlConfig config = new YamlConfig(c);
-    
-    final CloudWatchSQSWorker sqs = new CloudWatchSQSWorker();
 
-    sqs.configure(config);
-    sqs.start();
+    final CloudWatchMonitorWorker monitoring;
+    if ((Boolean) config.get("cloudwatch.enabled", true)) {
+      monitoring = new CloudWatchMonitorWorker(breakers, hiroAccess);
+      monitoring.configure(config);
+      monitoring.setIssueSink(sqs);
+    } else {
+      monitoring = null;
+    }
+    StartupTimeline.mark("configured");
 
-    final CloudWatchMonitorWorker monitoring = new CloudWatchMonitorWorker();
+    // the workers connect to their services independently
+    final ExecutorService starter = Executors.newFixedThreadPool(2);
+    try {
+      final Future sqsStarted = sqs == null ? null : starter.submit(new Runnable() {
+        @Override
+        public void run() {
+          sqs.start();
+          StartupTimeline.mark("sqs started");
+        }
+      });
+      final Future monitoringStarted = monitoring == null ? null : starter.submit(new Runnable() {
+        @Override
+        public void run() {
+          monitoring.start();
+          StartupTimeline.mark("monitor started");
+        }
+      });
+      awaitStart(sqsStarted);
+      awaitStart(monitoringStarted);
+    } finally {
+      starter.shutdown();
+    }
 
-    monitoring.configure(config);
-    monitoring.start();
+    final LifecycleManager lifecycle = new LifecycleManager(config);
+    final ConfigReloader reloader = new ConfigReloader(configFile);
+    if (sqs != null) {
+      lifecycle.register(sqs);
+      reloader.addListener(sqs);
+    }
+    if (monitoring != null) {
+      lifecycle.register(monitoring);
+      reloader.addListener(monitoring);
+    }
+    reloader.start();
 
     Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
       @Override
       public void run() {
         LOG.info("[WORKER] stopping ...");
         try {
-          sqs.close();
-          monitoring.close();
+          reloader.close();
+        } catch (IOException ex) {
+          LOG.log(Level.SEVERE, null, ex);
+        }
+        lifecycle.shutdown();
+        try {
+          hiroAccess.close();
         } catch (IOException ex) {
           LOG.log(Level.SEVERE, null, ex);
         }
@@ -54,11 +112,58 @@ public class CloudWatchMain {
     }));
 
     LOG.log(Level.INFO, "[WORKER] started");
+    StartupTimeline.markAndLog("started");
 
     latch.await();
   }
 
+  /**
+   * loads the classes of a start without connecting to any service, run
+   * with -XX:ArchiveClassesAtExit when the image is built to create the
+   * class data sharing archive used by run.sh
+   */
+  private static void train() throws IOException {
+    final YamlConfig config = YamlConfig.load(new File(CONFIG_FILE));
+    final CircuitBreakers breakers = new CircuitBreakers(config);
+    try {
+      final HiroAccess hiroAccess = new HiroAccess(config);
+      new CloudWatchSQSWorker(breakers, hiroAccess);
+      new CloudWatchMonitorWorker(breakers, hiroAccess);
+      hiroAccess.close();
+    } catch (Throwable t) {
+      LOG.log(Level.WARNING, "could not load hiro client classes", t);
+    }
+
+    new AmazonSQSBufferedAsyncClient(new AmazonSQSAsyncClient(new ClientConfiguration())).shutdown();
+    new AmazonCloudWatchClient(new ClientConfiguration()).shutdown();
+    new ReceiveMessageRequest().withMessageAttributeNames("All");
+    new GetMetricStatisticsRequest().withStartTime(new Date());
+    new ListMetricsRequest().withNamespace("AWS/EC2");
+    new CloudWatchAlarmMessage("{\"Message\":\"{\\\"NewStateValue\\\":\\\"ALARM\\\"}\"}");
+    LOG.log(Level.INFO, "classes loaded for class data sharing");
+  }
+
+  private static void awaitStart(final Future f) throws Exception {
+    if (f == null) {
+      return;
+    }
+    try {
+      f.get();
+    } catch (ExecutionException ex) {
+      if (ex.getCause() instanceof Exception) {
+        throw (Exception) ex.getCause();
+      }
+      throw ex;
+    }
+  }
+
   public static void main(String[] args) throws Exception {
+    StartupTimeline.mark("main");
+    if (args.length > 0 && "--cds-training".equals(args[0])) {
+      train();
+      return;
+    }
+
     String prop = System.getProperty("log4j.configuration");
     if (prop == null) {
       prop = System.getProperty("log4j.properties", "/opt/arago/conf/cloudwatch-connector-log4j.properties");
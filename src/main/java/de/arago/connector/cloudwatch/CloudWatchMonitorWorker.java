@@ -2,8 +2,6 @@ package de.arago.connector.cloudwatch;
 
 import co.arago.hiro.client.api.HiroClient;
 import co.arago.hiro.client.api.TimeseriesValue;
-import co.arago.hiro.client.builder.ClientBuilder;
-import co.arago.hiro.client.builder.TokenBuilder;
 import co.arago.hiro.client.util.DefaultTimeseriesValue;
 import co.arago.hiro.client.util.HiroException;
 import com.amazonaws.auth.BasicAWSCredentials;
@@ -19,53 +17,76 @@ import com.amazonaws.services.cloudwatch.model.Metric;
 import java.io.Closeable;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import net.minidev.json.JSONValue;
 
-public class CloudWatchMonitorWorker implements Closeable, Runnable {
+public class CloudWatchMonitorWorker implements Closeable, Runnable, ConfigReloader.Listener, LifecycleManager.Component {
 
   private static final Logger LOG = Logger.getLogger(CloudWatchMonitorWorker.class.getName());
-  private static final String INSTANCEID = "InstanceId";
   private static final String TIMESERIES_MAIDTYPE = "CloudWatch";
+  private static final String STORED_TO = "/KeyValueStore.StoredTo";
 
+  private final CircuitBreakers breakers;
+  private final HiroAccess hiroAccess;
   private boolean isEnabled;
 
-  private String authUrl;
-  private String authUser;
-  private String authPasswd;
-  private String authClientId;
-  private String authClientSecret;
-
-  private String graphitUrl;
-
   private String awsKey;
   private String awsSecret;
 
   private String monitoringEndpoint;
-  private Set allowedMetricNames;
-  private Set<String> namespaces;
-  private final Map<String, String> knownInstanceIds = new HashMap();
+  // discovery state, refreshed by a background thread after a warm start
+  private final Map<String, String> knownInstanceIds = new ConcurrentHashMap();
   private final Map<String, Map> timeseriesMeta = new ConcurrentHashMap();
-  private final Map<String, Integer> metricsPeriodities = new ConcurrentHashMap();
-  private final Map<String, String> metricsTransforms = new ConcurrentHashMap();
-  private int defaultPeriodity;
-  private String defaultTransform;
-  private int metricsPollInterval;
-  private int metricsBatchSize;
+  // timeseries id -> watermark in ms last known to be stored in HIRO
+  private final ConcurrentMap<String, Long> hiroStoredTo = new ConcurrentHashMap();
+  // unfiltered ListMetrics result by namespace
+  private final Map<String, List<Metric>> metricCatalog = new ConcurrentHashMap();
+  private volatile MonitorSettings settings;
+  // snapshot of settings used by the worker thread during one cycle
+  private MonitorSettings current;
   private String modelDefaultNodeId;
 
   private HiroClient hiro;
   private AmazonCloudWatchClient cloudwatchClient;
+  private ShardCoordinator shards;
+  private MetricStreamEndpoint stream;
+  private RecentMetricsEndpoint recent;
+  private Spool spool;
+  private SeriesBackoff backoff;
+  private CloudWatchBudget budget;
+  private Deadlines deadlines;
+  private volatile RuleEngine rules;
+  private volatile SeriesRegistry registry;
+  private volatile RuleEngine.IssueSink issueSink;
+  private SnapshotFile snapshot;
+  // streamed series without a point for this long release their recent metrics
+  private long recentMaxAge;
+  private TrafficCapture capture;
+  private YamlConfig config;
+  // the first cycle after loading a snapshot works with its state
+  private boolean warm;
+  private volatile boolean stored;
   private Thread worker;
+  private volatile boolean running;
+
+  public CloudWatchMonitorWorker(final CircuitBreakers breakers, final HiroAccess hiroAccess) {
+    this.breakers = breakers;
+    this.hiroAccess = hiroAccess;
+  }
 
   public void configure(final YamlConfig c) {
     isEnabled = c.get("cloudwatch.enabled", true);
@@ -76,78 +97,63 @@ public class CloudWatchMonitorWorker implements Closeable, Runnable {
     awsKey = c.get("aws.AWS_ACCESS_KEY", "");
     awsSecret = c.get("aws.AWS_SECRET_KEY", "");
 
-    graphitUrl = c.get("graphit.url", "");
-
-    if (graphitUrl.isEmpty()) {
-      throw new IllegalArgumentException("config does not contain graphit options");
-    }
-
     monitoringEndpoint = c.get("cloudwatch.endpoint", "");
-    defaultTransform = c.get("cloudwatch.default-transform", "Average");
-    defaultPeriodity = c.get("cloudwatch.default-periodity", 180);
-    metricsPollInterval = c.get("cloudwatch.poll-interval-sec", 300);
-    metricsBatchSize = c.get("cloudwatch.batch-size", 500);
-
-    allowedMetricNames = new HashSet((List) c.get("cloudwatch.metrics-names"));
-    if (allowedMetricNames.isEmpty()) {
-      allowedMetricNames.add("All");
-    }
-    LOG.log(Level.FINE, "allowed metrics names={0}", allowedMetricNames);
-
-    namespaces = new HashSet((List) (c.get("cloudwatch.namespaces")));
-    LOG.log(Level.FINE, "allowed namespaces={0}", namespaces);
-
-    List<Map> periodities = c.get("cloudwatch.metrics-periodities");
-    if (periodities != null) {
-      for (Map<String, Object> sub : periodities) {
-        String name = (String) sub.get("name");
-        Integer period = (Integer) sub.get("periodity");
-        if (name != null && period != null) {
-          metricsPeriodities.put(name, period);
-        }
-      }
-    }
-    LOG.log(Level.FINE, "metrics periodities={0}", metricsPeriodities);
+    settings = new MonitorSettings(c);
+    shards = ShardCoordinator.fromConfig(c);
+    stream = MetricStreamEndpoint.fromConfig(c);
+    recent = RecentMetricsEndpoint.fromConfig(c);
+    spool = Spool.fromConfig(c, "timeseries");
+    backoff = SeriesBackoff.fromConfig(c);
+    budget = CloudWatchBudget.fromConfig(c);
+    deadlines = Deadlines.fromConfig(c, "cloudwatch");
+    snapshot = SnapshotFile.fromConfig(c, "monitor");
+    recentMaxAge = 1000L * (Integer) c.get("cloudwatch.recent.max-age-sec", 3600);
+    config = c;
 
-    List<Map> transforms = c.get("cloudwatch.metrics-transforms");
-    if (transforms != null) {
-      for (Map<String, String> sub: transforms) {
-        String name = sub.get("name");
-        String type = sub.get("type");
-        if (name != null && type != null) {
-          metricsTransforms.put(name, type);
-        }
-      }
-    }
-    LOG.log(Level.FINE, "metrics transforms={0}", metricsTransforms);
-
-    authUrl = c.get("auth.url", "");
-    authUser = c.get("auth.username", "");
-    authPasswd = c.get("auth.passwd", "");
-    authClientId = c.get("auth.clientId", "");
-    authClientSecret = c.get("auth.clientSecret", "");
 
     modelDefaultNodeId = c.get("model.default-node-id", "");
   }
 
-  public void start() {
+  /**
+   * @param sink raises the issues of fired rules
+   */
+  public void setIssueSink(final RuleEngine.IssueSink sink) {
+    this.issueSink = sink;
+  }
+
+  /**
+   * replaces the metrics settings, caches of discovered instances and
+   * timeseries are kept. The new settings apply from the next cycle on.
+   */
+  @Override
+  public void reconfigure(final YamlConfig c) {
     if (!isEnabled) {
       return;
     }
 
-    // Create HIRO client
-    ClientBuilder builder = new ClientBuilder()
-      .setRestApiUrl(graphitUrl);
+    settings = new MonitorSettings(c);
+    LOG.log(Level.INFO, "metrics settings reloaded");
+  }
 
-      builder.setTokenProvider(new TokenBuilder().makePassword(authUrl, authClientId, authClientSecret, authUser, authPasswd));
+  public void start() {
+    if (!isEnabled) {
+      return;
+    }
 
-    hiro = builder.makeHiroClient();
+    hiro = hiroAccess.getClient("monitor");
+    capture = TrafficCapture.fromConfig(config, "monitor");
 
-    try {
-      Map info = hiro.info();
-      LOG.log(Level.FINE, "graphit: {0}", info);
-    } catch (Throwable t) {
-      throw new IllegalStateException("could not connect to graphit", t);
+    warm = loadSnapshot();
+    if (warm) {
+      // the snapshot is good enough to start with, HIRO is checked by the first calls
+      runInBackground("graphit-check", new Runnable() {
+        @Override
+        public void run() {
+          checkGraphit();
+        }
+      });
+    } else {
+      checkGraphit();
     }
 
     // Create CloudWatch client
@@ -166,151 +172,523 @@ public class CloudWatchMonitorWorker implements Closeable, Runnable {
       throw new IllegalStateException("could not connect to cloudwatch", t);
     }
 
+    if (shards != null) {
+      shards.start();
+      LOG.log(Level.INFO, "sharding enabled, member: {0}, members: {1}", new Object[]{shards.getMemberId(), shards.getMembers()});
+    }
+
+    if (stream != null) {
+      try {
+        stream.start();
+      } catch (IOException ex) {
+        throw new IllegalStateException("could not start metric stream endpoint", ex);
+      }
+    }
+
+    if (recent != null) {
+      try {
+        recent.start();
+      } catch (IOException ex) {
+        throw new IllegalStateException("could not start recent metrics endpoint", ex);
+      }
+    }
+
+    running = true;
     worker = new Thread(this);
     worker.start();
   }
 
+  private void checkGraphit() {
+    try {
+      Map info = hiro.info();
+      LOG.log(Level.FINE, "graphit: {0}", info);
+    } catch (Throwable t) {
+      throw new IllegalStateException("could not connect to graphit", t);
+    }
+  }
+
+  private static void runInBackground(final String name, final Runnable r) {
+    final Thread t = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          r.run();
+        } catch (Throwable ex) {
+          LOG.log(Level.WARNING, name + " failed", ex);
+        }
+      }
+    }, name);
+    t.setDaemon(true);
+    t.start();
+  }
+
   @Override
   public void close() throws IOException {
+    stopIntake();
+    flush();
+  }
+
+  @Override
+  public void stopIntake() {
+    running = false;
+    if (stream != null) {
+      try {
+        stream.close();
+      } catch (IOException ex) {
+        LOG.log(Level.WARNING, "could not stop metric stream endpoint", ex);
+      }
+    }
+    if (recent != null) {
+      try {
+        recent.close();
+      } catch (IOException ex) {
+        LOG.log(Level.WARNING, "could not stop recent metrics endpoint", ex);
+      }
+    }
+  }
+
+  /**
+   * the worker finishes the metric it is fetching and writing, the
+   * watermark of that timeseries is stored with the write
+   */
+  @Override
+  public boolean awaitDrained(long timeoutMs) throws InterruptedException {
+    if (worker == null) {
+      return true;
+    }
+    worker.join(timeoutMs);
+    return !worker.isAlive();
+  }
+
+  @Override
+  public void flush() {
+    if (worker == null) {
+      return;
+    }
+
     try {
       worker.interrupt();
+      if (cloudwatchClient != null) {
+        cloudwatchClient.shutdown();
+      }
+      if (shards != null) {
+        shards.close();
+      }
+      if (spool != null) {
+        spool.close();
+      }
+      if (capture != null) {
+        capture.close();
+      }
+      deadlines.close();
     } catch (Throwable t) {
       LOG.log(Level.SEVERE, null, t);
     }
   }
 
+  private boolean isRunning() {
+    return running && !Thread.currentThread().isInterrupted();
+  }
+
   @Override
   public void run() {
-    while (!Thread.currentThread().isInterrupted()) {
+    int errors = 0;
+    while (isRunning()) {
       try {
         long then = new Date().getTime();
         int count = 0;
-
-        discoverInstancesFromModel();
-        discoverTimeseriesMetadata();
-
-        for (String namespace : namespaces) {
-          final List<Metric> metricsList = getMetricsList(namespace, INSTANCEID);
-          LOG.log(Level.FINE, "metrics count: {0} for {1}", new Object[]{metricsList.size(), namespace});
-
-          if (LOG.isLoggable(Level.FINEST)) {
-            for (Metric metric : metricsList) {
-              LOG.log(Level.FINEST, "metric: {0}", metric.toString());
-            }
-          }
-
-          final Map<String, Map<String, List<Datapoint>>> metricsData = new ConcurrentHashMap<>();
-          long currentTimestamp = (new Date()).getTime();
-
-          for (final Metric metric : metricsList) {
-            if (Thread.currentThread().isInterrupted()) {
-              break;
-            }
-
-            final String instanceId = getInstanceId(metric.getDimensions());
-
-            if (!metricsData.containsKey(instanceId)) {
-              metricsData.put(instanceId, new ConcurrentHashMap<>());
+        current = settings;
+
+        replaySpool();
+        final boolean cached = warm;
+        if (warm) {
+          warm = false;
+          runInBackground("monitor-discovery", new Runnable() {
+            @Override
+            public void run() {
+              discoverInstancesFromModel();
+              discoverTimeseriesMetadata();
             }
+          });
+        } else {
+          discoverInstancesFromModel();
+          discoverTimeseriesMetadata();
+        }
 
-            if (!metricsData.get(instanceId).containsKey(metric.getMetricName())) {
-              final String metricName = metric.getMetricName();
-              long startTimestamp = calculateMetricsStart(instanceId, metricName);
-              long endTimestamp = calculateMetricsEnd(metricName, currentTimestamp, startTimestamp);
-              int periodity = getPeriodity(metricName);
-              if (startTimestamp + 1000 * defaultPeriodity > endTimestamp) {
-                continue;
-              }
-
-              try {
-                final GetMetricStatisticsRequest request = new GetMetricStatisticsRequest()
-                  .withNamespace(namespace)
-                  .withDimensions(metric.getDimensions())
-                  .withMetricName(metricName)
-                  .withPeriod(periodity)
-                  .withStatistics(getTransform(metricName))
-                  .withStartTime(new Date(startTimestamp))
-                  .withEndTime(new Date(endTimestamp));
-                final GetMetricStatisticsResult result = cloudwatchClient.getMetricStatistics(request);
-                final List<Datapoint> dataPoints = result.getDatapoints();
-                if (dataPoints != null && !dataPoints.isEmpty()) {
-                  metricsData.get(instanceId).put(metricName, dataPoints);
-                  if (LOG.isLoggable(Level.FINEST)) {
-                    LOG.log(Level.FINEST, "data: {0}", dataPoints);
-                  }
-                }
-              } catch (Exception e) {
-                LOG.log(Level.WARNING, "Error while getting the metrics for instanceId: " + instanceId + " metric: " + metric.getMetricName(), e);
-              }
-              ++count;
-
-              storeMetricsData(metric.getDimensions(), metricsData, startTimestamp);
-            }
-          }
+        if (stream == null) {
+          count = pollMetrics(cached);
+        } else if (recent != null) {
+          // streamed series are not listed, they expire by the age of their last point
+          final int expired = recent.getMetrics().expire(then - recentMaxAge);
+          LOG.log(Level.FINE, "expired recent metrics series: {0}", expired);
         }
+        saveSnapshot();
 
         long processTime = new Date().getTime() - then;
         LOG.log(Level.INFO, "metrics processed count: {0}, time: {1} ms", new Object[]{count, processTime});
 
-        for (int i = 0; i < metricsPollInterval; ++i) {
-          if (Thread.currentThread().isInterrupted()) {
-            break;
-          }
+        // cycles start every poll interval, the budget keeps them from overlapping
+        final long next = then + 1000L * current.metricsPollInterval;
+        long left;
+        while (isRunning() && (left = next - new Date().getTime()) > 0) {
           try {
-            Thread.sleep(1000);
+            if (stream == null || !breakers.getHiro().isAvailable()) {
+              // a full stream queue makes Firehose retry later
+              Thread.sleep(Math.min(left, 1000));
+            } else {
+              // storing a delivery takes time of its own, the cycle ends on time anyway
+              storeStreamedMetrics(stream.poll(Math.min(left, 1000)));
+            }
           } catch (InterruptedException ex) {
-            //blank
+            Thread.currentThread().interrupt();
           }
         }
+        errors = 0;
       } catch (Throwable t) {
         LOG.log(Level.WARNING, "error processing metrics", t);
+        // back off exponentially from 5 s up to the poll interval
+        final long pause = Math.min(5L << Math.min(errors++, 10), current.metricsPollInterval);
+        for (long i = 0; i < pause && isRunning(); ++i) {
+          try {
+            Thread.sleep(1000);
+          } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+          }
+        }
+      }
+    }
+
+    if (stream != null) {
+      drainStreamedMetrics();
+    }
+  }
+
+  private void drainStreamedMetrics() {
+    try {
+      Map<Metric, List<Datapoint>> data;
+      while ((data = stream.poll(0)) != null) {
+        storeStreamedMetrics(data);
+      }
+    } catch (Throwable t) {
+      LOG.log(Level.WARNING, "could not store streamed metrics", t);
+    }
+  }
+
+  /**
+   * stores one metric stream delivery through the same path as polled metrics
+   */
+  private void storeStreamedMetrics(final Map<Metric, List<Datapoint>> data) {
+    if (data == null) {
+      return;
+    }
+
+    for (Map.Entry<Metric, List<Datapoint>> e : data.entrySet()) {
+      final Metric metric = e.getKey();
+      if (capture != null) {
+        capture.recordDatapoints(metric, e.getValue());
+      }
+      if (!current.namespaces.contains(metric.getNamespace())) {
+        continue;
+      }
+
+      final SeriesRegistry.Series series = getSeries(metric.getNamespace(), getDimensionMapping(metric.getNamespace()), metric);
+      if (!series.allowed || !isKnownNode(series.mapping, series.instanceId)) {
+        continue;
+      }
+      storeMetricsData(series, e.getValue(), getEarliestTimestamp(e.getValue()));
+    }
+  }
+
+  /**
+   * prepares storing of recorded datapoints without connecting to CloudWatch
+   */
+  void startReplay() {
+    hiro = hiroAccess.getClient("monitor");
+    current = settings;
+  }
+
+  /**
+   * stores recorded datapoints of a series in the calling thread, the
+   * series is stored whether its node is known or not
+   */
+  void replayDatapoints(final Metric metric, final List<Datapoint> datapoints) {
+    final SeriesRegistry.Series series = getSeries(metric.getNamespace(), getDimensionMapping(metric.getNamespace()), metric);
+    storeMetricsData(series, datapoints, getEarliestTimestamp(datapoints));
+  }
+
+  /**
+   * a series selected for fetching in the current cycle
+   */
+  private static final class SeriesFetch {
+
+    final SeriesRegistry.Series series;
+    final long startTimestamp;
+
+    SeriesFetch(SeriesRegistry.Series series, long startTimestamp) {
+      this.series = series;
+      this.startTimestamp = startTimestamp;
+    }
+  }
+
+  private static final Comparator<Datapoint> BY_TIMESTAMP = new Comparator<Datapoint>() {
+    @Override
+    public int compare(Datapoint a, Datapoint b) {
+      return a.getTimestamp().compareTo(b.getTimestamp());
+    }
+  };
+
+  private static final Comparator<SeriesFetch> MOST_STALE_FIRST = new Comparator<SeriesFetch>() {
+    @Override
+    public int compare(SeriesFetch a, SeriesFetch b) {
+      return Long.compare(a.startTimestamp, b.startTimestamp);
+    }
+  };
+
+  /**
+   * fetches the metrics of all namespaces from CloudWatch. Series are served
+   * by the age of their watermark, the most stale first; series left when
+   * the cycle budget is used up are deferred to the next cycle. Series
+   * paused by the back-off for empty series are skipped, low priority
+   * series are fetched less often close to the CloudWatch budget.
+   *
+   * @param cached use the metric catalog of the snapshot instead of listing the metrics
+   * @return the number of requested metrics
+   */
+  private int pollMetrics(boolean cached) {
+    final long deadline = new Date().getTime() + 1000L * current.cycleBudget;
+
+    final List<SeriesFetch> fetches = new ArrayList();
+    final Set<String> listed = new HashSet();
+    // keys of the rule windows and recent metrics of the listed series
+    final Set<String> listedSeries = new HashSet();
+    boolean complete = true;
+    int paused = 0;
+    int stretched = 0;
+    final long now = new Date().getTime();
+    final CircuitBreaker cloudwatch = breakers.getCloudWatch();
+    for (String namespace : current.namespaces) {
+      final DimensionMapping mapping = getDimensionMapping(namespace);
+      List<Metric> metricsList = cached ? metricCatalog.get(namespace) : null;
+      if (metricsList == null) {
         try {
-          Thread.sleep(5000);
-        } catch (InterruptedException ex) {
-          LOG.log(Level.SEVERE, null, ex);
+          cloudwatch.acquire();
+          metricsList = getMetricsList(namespace, mapping);
+          cloudwatch.onSuccess();
+        } catch (CircuitBreaker.OpenException ex) {
+          LOG.log(Level.FINE, "skipping metrics list for {0}: {1}", new Object[]{namespace, ex.getMessage()});
+          complete = false;
+          continue;
+        } catch (Throwable t) {
+          cloudwatch.onFailure();
+          LOG.log(Level.WARNING, "could not list metrics for " + namespace, t);
+          complete = false;
+          continue;
+        }
+        metricCatalog.put(namespace, metricsList);
+      }
+      LOG.log(Level.FINE, "metrics count: {0} for {1}", new Object[]{metricsList.size(), namespace});
+
+      for (Metric metric : metricsList) {
+        final SeriesRegistry.Series series = getSeries(namespace, mapping, metric);
+        // unselected series stay known, so they are not resolved again each cycle
+        listed.add(series.key);
+        listedSeries.add(series.seriesKey);
+        if (!isSelected(series)) {
+          continue;
+        }
+        if (LOG.isLoggable(Level.FINEST)) {
+          LOG.log(Level.FINEST, "metric: {0}", metric);
+        }
+
+        if (backoff != null && !backoff.isDue(series.key, now)) {
+          ++paused;
+          continue;
+        }
+        final long startTimestamp = calculateMetricsStart(series.instanceId, series.name);
+        final int stretch = budget.getStretch(series.metricName, now);
+        if (stretch > 1 && now - startTimestamp < 1000L * stretch * current.metricsPollInterval) {
+          ++stretched;
+          continue;
         }
+        fetches.add(new SeriesFetch(series, startTimestamp));
       }
     }
+    if (stretched > 0) {
+      LOG.log(Level.INFO, "close to cloudwatch budget, low priority series stretched: {0}", stretched);
+    }
+    Collections.sort(fetches, MOST_STALE_FIRST);
+
+    if (complete) {
+      // no registry yet if nothing was listed
+      final SeriesRegistry registry = this.registry;
+      if (registry != null) {
+        registry.retain(listed);
+      }
+      final RuleEngine engine = rules;
+      if (engine != null) {
+        engine.retain(listedSeries);
+      }
+      if (recent != null) {
+        recent.getMetrics().retain(listedSeries);
+      }
+    }
+    if (backoff != null) {
+      // series listed again after they disappeared start without back-off
+      if (complete) {
+        backoff.retain(listed);
+      }
+      LOG.log(Level.FINE, "series paused for no data: {0}", paused);
+    }
+
+    int count = 0;
+    final long currentTimestamp = (new Date()).getTime();
+    for (int i = 0; i < fetches.size(); ++i) {
+      if (!isRunning()) {
+        break;
+      }
+
+      if (new Date().getTime() > deadline) {
+        final SeriesFetch f = fetches.get(i);
+        LOG.log(Level.WARNING, "cycle budget of {0} s exhausted, deferred series: {1}, oldest lag: {2} s",
+          new Object[]{current.cycleBudget, fetches.size() - i, (currentTimestamp - f.startTimestamp) / 1000});
+        break;
+      }
+
+      // no fetches while their values can not be read or written
+      if (!cloudwatch.isAvailable() || !breakers.getHiro().isAvailable()) {
+        LOG.log(Level.WARNING, "dependency unavailable ({0}, {1}), deferred series: {2}",
+          new Object[]{cloudwatch, breakers.getHiro(), fetches.size() - i});
+        break;
+      }
+
+      if (budget.isExhausted(new Date().getTime())) {
+        LOG.log(Level.WARNING, "cloudwatch budget exhausted, deferred series: {0}", fetches.size() - i);
+        break;
+      }
+
+      if (fetchMetric(fetches.get(i), currentTimestamp)) {
+        ++count;
+      }
+    }
+    budget.logUsage(new Date().getTime());
+    return count;
+  }
+
+  /**
+   * @return true if a request was sent to CloudWatch
+   */
+  private boolean fetchMetric(final SeriesFetch f, long currentTimestamp) {
+    final SeriesRegistry.Series series = f.series;
+    final long startTimestamp = f.startTimestamp;
+    final long endTimestamp = calculateMetricsEnd(series.periodity, currentTimestamp, startTimestamp);
+    if (startTimestamp + 1000 * current.defaultPeriodity > endTimestamp) {
+      return false;
+    }
+
+    final CircuitBreaker cloudwatch = breakers.getCloudWatch();
+    if (!cloudwatch.tryAcquire()) {
+      return false;
+    }
+
+    List<Datapoint> dataPoints = null;
+    try {
+      final GetMetricStatisticsRequest request = new GetMetricStatisticsRequest()
+        .withNamespace(series.namespace)
+        .withDimensions(series.dimensions)
+        .withMetricName(series.metricName)
+        .withPeriod(series.periodity)
+        .withStatistics(series.statistic)
+        .withStartTime(new Date(startTimestamp))
+        .withEndTime(new Date(endTimestamp));
+      final GetMetricStatisticsResult result = deadlines.call("getMetricStatistics", new Callable<GetMetricStatisticsResult>() {
+        @Override
+        public GetMetricStatisticsResult call() {
+          // a hedged request is paid as well
+          budget.onGetMetrics(series.namespace, 1, new Date().getTime());
+          return cloudwatchClient.getMetricStatistics(request);
+        }
+      });
+      cloudwatch.onSuccess();
+      dataPoints = result.getDatapoints();
+      if (backoff != null) {
+        backoff.onFetch(series.key, dataPoints != null && !dataPoints.isEmpty(), currentTimestamp);
+      }
+      if (dataPoints != null && !dataPoints.isEmpty()) {
+        if (capture != null) {
+          capture.recordDatapoints(series.metric, dataPoints);
+        }
+        if (LOG.isLoggable(Level.FINEST)) {
+          LOG.log(Level.FINEST, "data: {0}", dataPoints);
+        }
+      }
+    } catch (Exception e) {
+      cloudwatch.onFailure();
+      LOG.log(Level.WARNING, "Error while getting the metrics for instanceId: " + series.instanceId + " metric: " + series.metricName, e);
+    }
+
+    if (dataPoints != null && !dataPoints.isEmpty()) {
+      storeMetricsData(series, dataPoints, startTimestamp);
+    }
+    return true;
+  }
+
+  /**
+   * @return the series of the metric in the registry of the current settings
+   */
+  private SeriesRegistry.Series getSeries(String namespace, final DimensionMapping mapping, final Metric metric) {
+    SeriesRegistry registry = this.registry;
+    if (registry == null || registry.getSettings() != current) {
+      // names and settings of the series are resolved again after a reload
+      registry = new SeriesRegistry(current);
+      this.registry = registry;
+    }
+    return registry.get(namespace, mapping, metric);
+  }
+
+  private DimensionMapping getDimensionMapping(String namespace) {
+    final DimensionMapping mapping = current.dimensionMappings.get(namespace);
+    return mapping == null ? DimensionMapping.DEFAULT : mapping;
   }
 
-  private List<Metric> getMetricsList(String namespace, String filterName) {
+  private List<Metric> getMetricsList(String namespace, final DimensionMapping mapping) throws Exception {
     final List<DimensionFilter> filters = new ArrayList();
-    DimensionFilter dimensionFilter = new DimensionFilter();
-    dimensionFilter.withName(filterName);
-    filters.add(dimensionFilter);
+    filters.add(mapping.getFilter());
 
     final ListMetricsRequest request = new ListMetricsRequest();
     request.withNamespace(namespace);
     request.withDimensions(filters);
 
-    ListMetricsResult listMetricsResult = cloudwatchClient.listMetrics(request);
-
-    final List<Metric> metricList = new ArrayList();
-    for (Metric metric : listMetricsResult.getMetrics()) {
-      if (isKnownInstanceId(metric) && isAllowedMetricName(metric.getMetricName())) {
-        metricList.add(metric);
-      }
-    }
+    ListMetricsResult listMetricsResult = listMetrics(namespace, request);
 
+    final List<Metric> metricList = new ArrayList(listMetricsResult.getMetrics());
     while (listMetricsResult.getNextToken() != null) {
       request.setNextToken(listMetricsResult.getNextToken());
-      listMetricsResult = cloudwatchClient.listMetrics(request);
-      for (Metric metric : listMetricsResult.getMetrics()) {
-        if (isKnownInstanceId(metric) && isAllowedMetricName(metric.getMetricName())) {
-          metricList.add(metric);
-        }
-      }
+      listMetricsResult = listMetrics(namespace, request);
+      metricList.addAll(listMetricsResult.getMetrics());
     }
 
     return metricList;
   }
 
-  private boolean isKnownInstanceId(final Metric metric) {
-    return knownInstanceIds.containsKey(getInstanceId(metric.getDimensions()));
+  private ListMetricsResult listMetrics(final String namespace, final ListMetricsRequest request) throws Exception {
+    return deadlines.call("listMetrics", new Callable<ListMetricsResult>() {
+      @Override
+      public ListMetricsResult call() {
+        budget.onListMetrics(namespace, new Date().getTime());
+        return cloudwatchClient.listMetrics(request);
+      }
+    });
   }
 
-  private boolean isAllowedMetricName(String metricName) {
-    return (allowedMetricNames.contains("All") || allowedMetricNames.contains(metricName));
+  private boolean isSelected(final SeriesRegistry.Series series) {
+    return series.allowed && isKnownNode(series.mapping, series.instanceId) && (shards == null || shards.owns(series.instanceId));
+  }
+
+  private boolean isKnownNode(final DimensionMapping mapping, final String key) {
+    if (!mapping.getNodePrefix().isEmpty()) {
+      return !key.isEmpty();
+    }
+    return knownInstanceIds.containsKey(key);
   }
 
   private void discoverInstancesFromModel() {
@@ -333,6 +711,7 @@ public class CloudWatchMonitorWorker implements Closeable, Runnable {
         }
       }
     } catch (Throwable t) {
+      breakers.onHiroFailure(t);
       LOG.log(Level.WARNING, "could not query for Model", t);
     }
     LOG.log(Level.FINE, "known instances: {0}", knownInstanceIds);
@@ -348,33 +727,166 @@ public class CloudWatchMonitorWorker implements Closeable, Runnable {
       waitForValidToken();
       final List result = hiro.vertexQuery(query, qParams);
       LOG.log(Level.FINEST, "discovered timeseries meta={0}", result);
+      final Collection<DimensionMapping> mappings = settings.dimensionMappings.values();
       for (Object v : result) {
         Object j = JSONValue.parse("" + v);
         if (j instanceof Map) {
           Map m = (Map) j;
-          String[] s = ((String) m.get("/nodeID")).split(":");
-          if (s.length > 3) {
-            String instanceId = s[3];
-            String dataName = (String) m.get(Constants.Attributes.OGIT_NAME);
-            if (!timeseriesMeta.containsKey(instanceId)) {
-              timeseriesMeta.put(instanceId, new HashMap());
+          String instanceId = getNodeKey((String) m.get("/nodeID"), mappings);
+          String dataName = (String) m.get(Constants.Attributes.OGIT_NAME);
+          if (instanceId != null && dataName != null) {
+            timeseriesMeta.putIfAbsent(instanceId, new ConcurrentHashMap());
+            // the poll loop may have stored values since the query
+            final ConcurrentMap discovered = new ConcurrentHashMap();
+            mergeTimeseriesMeta(discovered, m);
+            final Map known = (Map) timeseriesMeta.get(instanceId).putIfAbsent(dataName, discovered);
+            if (known != null) {
+              mergeTimeseriesMeta((ConcurrentMap) known, m);
+            }
+            final long to = getStoredTo(m.get(STORED_TO));
+            if (m.get(Constants.Attributes.OGIT__ID) != null && to >= 0) {
+              advanceHiroStoredTo((String) m.get(Constants.Attributes.OGIT__ID), 1000 * to);
             }
-            timeseriesMeta.get(instanceId).put(dataName, m);
           }
         }
       }
     } catch (Throwable t) {
+      breakers.onHiroFailure(t);
       LOG.log(Level.WARNING, "could not query for Model", t);
     }
     LOG.log(Level.FINE, "timeseries metadata for nodes count: {0}", timeseriesMeta.size());
   }
 
-  private long calculateMetricsStart(String instanceId, String metricName) {
+  /**
+   * @return the node key of a timeseries node id, as the dimension mapping
+   * with the longest matching prefix or the discovered machines resolve it
+   */
+  private static String getNodeKey(String nodeId, final Collection<DimensionMapping> mappings) {
+    String ret = null;
+    int prefix = -1;
+    for (DimensionMapping mapping : mappings) {
+      final String key = mapping.getNodeKeyOfId(nodeId);
+      if (key != null && mapping.getNodePrefix().length() > prefix) {
+        ret = key;
+        prefix = mapping.getNodePrefix().length();
+      }
+    }
+    if (ret != null || nodeId == null) {
+      return ret;
+    }
+
+    // machines are prefixed with their first three id parts
+    final String[] s = nodeId.split(":");
+    return s.length > 3 ? s[3] : null;
+  }
+
+  /**
+   * copies metadata into the metadata of a series, the watermark only
+   * moves forward
+   */
+  private static void mergeTimeseriesMeta(final ConcurrentMap<Object, Object> into, final Map meta) {
+    for (Object o : meta.entrySet()) {
+      final Map.Entry e = (Map.Entry) o;
+      if (e.getKey() == null || e.getValue() == null) {
+        continue;
+      }
+      if (!STORED_TO.equals(e.getKey())) {
+        into.put(e.getKey(), e.getValue());
+        continue;
+      }
+
+      Object to;
+      do {
+        to = into.putIfAbsent(STORED_TO, e.getValue());
+      } while (to != null && getStoredTo(to) < getStoredTo(e.getValue()) && !into.replace(STORED_TO, to, e.getValue()));
+    }
+  }
+
+  private void advanceHiroStoredTo(String tsid, long storeto) {
+    Long to;
+    do {
+      to = hiroStoredTo.putIfAbsent(tsid, storeto);
+    } while (to != null && to < storeto && !hiroStoredTo.replace(tsid, to, storeto));
+  }
+
+  private static long getStoredTo(Object to) {
+    try {
+      return Long.parseLong(to + "");
+    } catch (NumberFormatException ex) {
+      return -1;
+    }
+  }
+
+  /**
+   * @return true if the discovery state was restored from the snapshot
+   */
+  private boolean loadSnapshot() {
+    final Map data = snapshot == null ? null : snapshot.read();
+    if (data == null) {
+      return false;
+    }
+
+    try {
+      knownInstanceIds.putAll((Map) data.get("instances"));
+      for (Object o : ((Map) data.get("timeseries")).entrySet()) {
+        final Map.Entry e = (Map.Entry) o;
+        final Map<String, Map> inst = new ConcurrentHashMap();
+        for (Object s : ((Map) e.getValue()).entrySet()) {
+          final Map.Entry se = (Map.Entry) s;
+          final ConcurrentMap meta = new ConcurrentHashMap();
+          mergeTimeseriesMeta(meta, (Map) se.getValue());
+          inst.put((String) se.getKey(), meta);
+        }
+        timeseriesMeta.put((String) e.getKey(), inst);
+      }
+      for (Object o : ((Map) data.get("metrics")).entrySet()) {
+        final Map.Entry e = (Map.Entry) o;
+        final List<Metric> metrics = new ArrayList();
+        for (Object m : (List) e.getValue()) {
+          metrics.add(SnapshotFile.decodeMetric((Map) m));
+        }
+        metricCatalog.put((String) e.getKey(), metrics);
+      }
+    } catch (RuntimeException ex) {
+      LOG.log(Level.WARNING, "ignoring invalid snapshot", ex);
+      knownInstanceIds.clear();
+      timeseriesMeta.clear();
+      metricCatalog.clear();
+      return false;
+    }
+
+    LOG.log(Level.INFO, "restored snapshot, instances: {0}, timeseries nodes: {1}, namespaces: {2}",
+      new Object[]{knownInstanceIds.size(), timeseriesMeta.size(), metricCatalog.size()});
+    return true;
+  }
+
+  private void saveSnapshot() {
+    if (snapshot == null) {
+      return;
+    }
+
+    final Map metrics = new HashMap();
+    for (Map.Entry<String, List<Metric>> e : metricCatalog.entrySet()) {
+      final List encoded = new ArrayList();
+      for (Metric m : e.getValue()) {
+        encoded.add(SnapshotFile.encodeMetric(m));
+      }
+      metrics.put(e.getKey(), encoded);
+    }
+
+    final Map data = new HashMap();
+    data.put("instances", new HashMap(knownInstanceIds));
+    data.put("timeseries", new HashMap(timeseriesMeta));
+    data.put("metrics", metrics);
+    snapshot.write(data);
+  }
+
+  private long calculateMetricsStart(String instanceId, String seriesName) {
     Map inst = timeseriesMeta.get(instanceId);
     if (inst != null) {
-      Object dname = inst.get(metricName);
+      Object dname = inst.get(seriesName);
       if (dname != null && dname instanceof Map) {
-        Object to = ((Map) dname).get("/KeyValueStore.StoredTo");
+        Object to = ((Map) dname).get(STORED_TO);
         if (to != null) {
           return (1000 * Long.parseLong((String) to));
         }
@@ -383,59 +895,152 @@ public class CloudWatchMonitorWorker implements Closeable, Runnable {
     return (new Date()).getTime() - 1000 * (86400);
   }
 
-  private long calculateMetricsEnd(String metricName, long currentTimestamp, long startTimestamp) {
-    int periodity = getPeriodity(metricName);
-    long endTimestamp = startTimestamp + 1000 * periodity * metricsBatchSize;
+  private long calculateMetricsEnd(int periodity, long currentTimestamp, long startTimestamp) {
+    long endTimestamp = startTimestamp + 1000 * periodity * current.metricsBatchSize;
     if (endTimestamp > currentTimestamp) {
       endTimestamp = currentTimestamp;
     }
     return endTimestamp;
   }
 
-  private void storeMetricsData(final List<Dimension> dimensions, Map<String, Map<String, List<Datapoint>>> metricsData, long startTimestamp) {
-    for (String instanceId : metricsData.keySet()) {
-      if (!timeseriesMeta.containsKey(instanceId)) {
-        timeseriesMeta.put(instanceId, new HashMap());
-      }
-      Iterator<Map.Entry<String, List<Datapoint>>> iter = metricsData.get(instanceId).entrySet().iterator();
-      while (iter.hasNext()) {
-        Map.Entry<String, List<Datapoint>> mData = iter.next();
-        String metricName = mData.getKey();
-        String fullMetricName = getFullMetricName(metricName, dimensions);
-        String units = getUnits(mData.getValue());
-        Object meta = timeseriesMeta.get(instanceId).get(fullMetricName);
-        String tsid;
-        if (meta == null) {
-          tsid = createTimeseries(dimensions, instanceId, metricName, units, startTimestamp);
-        } else {
-          tsid = (String) ((Map) meta).get(Constants.Attributes.OGIT__ID);
+  private void storeMetricsData(final SeriesRegistry.Series series, final List<Datapoint> points, long startTimestamp) {
+    Map<String, Map> inst = timeseriesMeta.get(series.instanceId);
+    if (inst == null) {
+      timeseriesMeta.putIfAbsent(series.instanceId, new ConcurrentHashMap());
+      inst = timeseriesMeta.get(series.instanceId);
+    }
+
+    Map meta = inst.get(series.name);
+    String tsid = series.getTsid();
+    if (meta == null) {
+      if (tsid == null) {
+        tsid = createTimeseries(series, getUnits(points), startTimestamp);
+      }
+      if (tsid == null || tsid.isEmpty()) {
+        return;
+      }
+      // the next cycle continues from the watermark of the created series
+      meta = new ConcurrentHashMap();
+      meta.put(Constants.Attributes.OGIT__ID, tsid);
+      final Map known = inst.putIfAbsent(series.name, meta);
+      if (known != null) {
+        meta = known;
+      }
+    } else if (tsid == null) {
+      tsid = (String) meta.get(Constants.Attributes.OGIT__ID);
+    }
+    if (tsid == null || tsid.isEmpty() || points.isEmpty()) {
+      return;
+    }
+    series.setTsid(tsid);
+
+    // CloudWatch returns the datapoints unordered
+    Collections.sort(points, BY_TIMESTAMP);
+    if (writeTimeseriesValues(tsid, series, points)) {
+      evaluateRules(series, points);
+      if (!stored) {
+        stored = true;
+        StartupTimeline.markAndLog("first metrics");
+      }
+      // keeps the watermark of spooled writes until HIRO has them
+      meta.put(STORED_TO, (getLatestTimestamp(points) / 1000) + "");
+    }
+  }
+
+  /**
+   * evaluates the rules on the stored points of a series, which are in time order,
+   * fired rules raise an issue like a CloudWatch alarm received from SQS
+   */
+  private void evaluateRules(final SeriesRegistry.Series series, final List<Datapoint> points) {
+    if (current.rules.isEmpty()) {
+      return;
+    }
+    RuleEngine rules = this.rules;
+    if (rules == null || rules.getRules() != current.rules) {
+      // windows start empty after the rules were reloaded
+      rules = new RuleEngine(current.rules);
+      this.rules = rules;
+    }
+
+    final String seriesKey = series.seriesKey;
+    for (Datapoint dp : points) {
+      final Double value = getValue(dp, series.statistic);
+      if (value == null) {
+        continue;
+      }
+
+      for (Map.Entry<RuleEngine.Rule, Double> fired : rules.evaluate(series.namespace, series.metricName, seriesKey, dp.getTimestamp().getTime(), value).entrySet()) {
+        final RuleEngine.Rule rule = fired.getKey();
+        if (issueSink == null) {
+          LOG.log(Level.WARNING, "rule {0} fired on {1}, no issue raised without sqs worker", new Object[]{rule, seriesKey});
+          rules.onFired(rule, seriesKey);
+          continue;
         }
 
-        if (tsid != null && !tsid.isEmpty() && !mData.getValue().isEmpty()) {
-          if (writeTimeseriesValues(tsid, mData.getValue(), metricName)) {
-            iter.remove();
+        try {
+          if (issueSink.raise(createRuleAlarm(series.namespace, series.dimensions, rule, fired.getValue(), dp))) {
+            rules.onFired(rule, seriesKey);
           }
+        } catch (Exception ex) {
+          LOG.log(Level.WARNING, "could not raise issue of rule " + rule.name + " on " + seriesKey, ex);
         }
       }
     }
   }
 
-  private String createTimeseries(final List<Dimension> dimensions, String instanceId, String metricName, String units, long startTimestamp) {
-    final Map params = new HashMap();
+  private static CloudWatchAlarmMessage createRuleAlarm(String namespace, final List<Dimension> dimensions, final RuleEngine.Rule rule, double value, final Datapoint dp) {
+    final List dims = new ArrayList();
     for (Dimension d : dimensions) {
+      final Map m = new HashMap();
+      m.put("name", d.getName());
+      m.put("value", d.getValue());
+      dims.add(m);
+    }
+
+    final Map trigger = new HashMap();
+    trigger.put("MetricName", rule.metric);
+    trigger.put("Namespace", namespace);
+    trigger.put("Statistic", rule.statistic);
+    trigger.put("EvaluationPeriods", rule.window);
+    trigger.put("ComparisonOperator", rule.operator);
+    trigger.put("Threshold", rule.threshold);
+    trigger.put("Dimensions", dims);
+
+    final Map message = new HashMap();
+    message.put("AlarmName", "connector-rule-" + rule.name);
+    message.put("NewStateValue", "ALARM");
+    message.put("OldStateValue", "OK");
+    message.put("NewStateReason", rule.statistic + " " + value + " " + rule.operator + " " + rule.threshold);
+    message.put("StateChangeTime", dp.getTimestamp().getTime());
+    message.put("Trigger", trigger);
+
+    final Map body = new HashMap();
+    body.put("Subject", "ALARM: \"" + rule.name + "\" in " + namespace);
+    // SNS delivers the alarm as a JSON string
+    body.put("Message", JSONValue.toJSONString(message));
+    return new CloudWatchAlarmMessage(JSONValue.toJSONString(body));
+  }
+
+  private String createTimeseries(final SeriesRegistry.Series series, String units, long startTimestamp) {
+    final Map params = new HashMap();
+    for (Dimension d : series.dimensions) {
       params.put("/" + d.getName(), d.getValue() + "");
     }
-    params.put("/nodeID", knownInstanceIds.get(instanceId) + instanceId);
-    params.put("/DataName", metricName);
+    if (series.mapping.getNodePrefix().isEmpty()) {
+      params.put("/nodeID", knownInstanceIds.get(series.instanceId) + series.instanceId);
+    } else {
+      params.put("/nodeID", series.mapping.getNodePrefix() + series.instanceId);
+    }
+    params.put("/DataName", series.metricName);
     params.put("/MAIDType", TIMESERIES_MAIDTYPE);
     params.put("/KeyValueStore.StoredFrom", (startTimestamp / 1000) + "");
-    params.put("/Periodity", getPeriodity(metricName) + "");
-    params.put("/Transformation", getTransform(metricName));
-    if (!units.isEmpty()) {
+    params.put("/Periodity", series.periodityParam);
+    params.put("/Transformation", series.statistic);
+    if (units != null && !units.isEmpty()) {
       params.put("/Units", units);
     }
 
-    params.put(Constants.Attributes.OGIT_NAME, getFullMetricName(metricName, dimensions));
+    params.put(Constants.Attributes.OGIT_NAME, series.name);
 
     try {
       waitForValidToken();
@@ -443,107 +1048,211 @@ public class CloudWatchMonitorWorker implements Closeable, Runnable {
       LOG.log(Level.INFO, "created timeseries vertex: {0}", createVertexResp.get(Constants.Attributes.OGIT__ID));
       LOG.log(Level.FINEST, "created timeseries vertex: {0}", createVertexResp);
       return (String) createVertexResp.get(Constants.Attributes.OGIT__ID);
-    } catch (HiroException g) {
+    } catch (HiroException | CircuitBreaker.OpenException | Deadlines.DeadlineExceededException g) {
+      breakers.onHiroFailure(g);
       LOG.log(Level.WARNING, "can not create timeseries vertex: " + params, g);
     }
     return "";
   }
 
-  private void updateTimeseries(String tsid, long storeto, String metricName) {
+  private void updateTimeseries(String tsid, long storeto, String periodity, String transform) {
     final Map params = new HashMap();
     String storeToStr = (storeto / 1000) + "";
-    params.put("/KeyValueStore.StoredTo", storeToStr);
-    params.put("/Periodity", getPeriodity(metricName) + "");
-    params.put("/Transformation", getTransform(metricName));
+    params.put(STORED_TO, storeToStr);
+    params.put("/Periodity", periodity);
+    params.put("/Transformation", transform);
     waitForValidToken();
     Map updateVertexResp = hiro.updateVertex(tsid, params, new HashMap());
     LOG.log(Level.FINEST, "updated timeseries vertex: {0}", updateVertexResp);
+    advanceHiroStoredTo(tsid, storeto);
   }
 
-  private boolean writeTimeseriesValues(String tsid, final List<Datapoint> mData, String metricName) {
+  private boolean writeTimeseriesValues(String tsid, final SeriesRegistry.Series series, final List<Datapoint> mData) {
+    final String transform = series.statistic;
+    final RecentMetrics recentMetrics = recent == null ? null : recent.getMetrics();
     long storeto = 0L;
     final List<TimeseriesValue> values = new ArrayList();
     for (final Datapoint val : mData) {
       if (val.getTimestamp().getTime() > storeto) {
         storeto = val.getTimestamp().getTime();
       }
-      final TimeseriesValue v = new DefaultTimeseriesValue(val.getTimestamp().getTime(), val.getAverage() + "");
+      final Double value = getValue(val, transform);
+      final TimeseriesValue v = new DefaultTimeseriesValue(val.getTimestamp().getTime(), value + "");
       values.add(v);
+      if (recentMetrics != null && value != null) {
+        recentMetrics.add(series.seriesKey, val.getTimestamp().getTime(), value);
+      }
     }
     try {
-      waitForValidToken();
-      hiro.updateTsValues(tsid, values);
-      LOG.log(Level.FINEST, "pushed timeseries values: {0} count={1}", new Object[]{tsid, values.size()});
-      updateTimeseries(tsid, storeto, metricName);
+      pushTimeseriesValues(tsid, values, storeto, series.periodityParam, series.statistic, false);
     } catch (Throwable g) {
+      breakers.onHiroFailure(g);
       LOG.log(Level.WARNING, "failed to update timeseries values for: " + tsid, g);
-      return false;
+      if (!CircuitBreakers.isHiroFailure(g)) {
+        // HIRO rejected the values, they are fetched again in the next cycle
+        return false;
+      }
+      return spoolTimeseriesValues(tsid, values, storeto, series.metricName);
     }
     return true;
   }
 
-  private String getInstanceId(final List<Dimension> dimensions) {
-    for (Dimension d : dimensions) {
-      if (d.getName().equals(INSTANCEID)) {
-        return d.getValue();
-      }
+  /**
+   * @param replayed the values are replayed from the spool, the watermark is
+   * only written if newer writes did not move it further already
+   */
+  private void pushTimeseriesValues(String tsid, final List<TimeseriesValue> values, long storeto, String periodity, String transform, boolean replayed) {
+    waitForValidToken();
+    hiro.updateTsValues(tsid, values);
+    if (LOG.isLoggable(Level.FINEST)) {
+      LOG.log(Level.FINEST, "pushed timeseries values: {0} count={1}", new Object[]{tsid, values.size()});
+    }
+    final Long known = hiroStoredTo.get(tsid);
+    if (replayed && known != null && known >= storeto) {
+      return;
+    }
+    updateTimeseries(tsid, storeto, periodity, transform);
+  }
+
+  private boolean spoolTimeseriesValues(String tsid, final List<TimeseriesValue> values, long storeto, String metricName) {
+    if (spool == null) {
+      return false;
+    }
+
+    final List<List> points = new ArrayList();
+    for (TimeseriesValue v : values) {
+      points.add(Arrays.asList(v.getTimestamp(), v.getValue()));
+    }
+
+    final Map entry = new HashMap();
+    entry.put("tsid", tsid);
+    entry.put("metric", metricName);
+    entry.put("storedTo", storeto);
+    entry.put("values", points);
+    try {
+      spool.append(entry);
+      LOG.log(Level.FINE, "spooled timeseries values: {0} count={1}", new Object[]{tsid, values.size()});
+      return true;
+    } catch (IOException ex) {
+      LOG.log(Level.WARNING, "could not spool timeseries values for: " + tsid, ex);
+      return false;
+    }
+  }
+
+  private void replaySpool() {
+    if (spool == null || spool.isEmpty() || !breakers.getHiro().isAvailable()) {
+      return;
+    }
+
+    try {
+      int count = spool.replay(new Spool.Handler() {
+        @Override
+        public boolean replay(Map entry) {
+          return replayTimeseriesValues(entry);
+        }
+      });
+      LOG.log(Level.INFO, "replayed spooled timeseries writes: {0}, remaining bytes: {1}", new Object[]{count, spool.size()});
+    } catch (IOException ex) {
+      LOG.log(Level.WARNING, "could not replay spool", ex);
     }
-    return "";
   }
 
-  private int getPeriodity(String metricName) {
-    if (metricsPeriodities.containsKey(metricName)) {
-      return metricsPeriodities.get(metricName);
-    } else if (metricsPeriodities.containsKey("All")) {
-      return metricsPeriodities.get("All");
+  private boolean replayTimeseriesValues(final Map entry) {
+    final String tsid = (String) entry.get("tsid");
+    final List<TimeseriesValue> values = new ArrayList();
+    final long storedTo;
+    try {
+      for (Object o : (List) entry.get("values")) {
+        final List p = (List) o;
+        values.add(new DefaultTimeseriesValue(((Number) p.get(0)).longValue(), (String) p.get(1)));
+      }
+      storedTo = ((Number) entry.get("storedTo")).longValue();
+    } catch (RuntimeException ex) {
+      LOG.log(Level.WARNING, "dropping invalid spooled timeseries values: " + entry, ex);
+      return true;
+    }
+
+    try {
+      final String metricName = (String) entry.get("metric");
+      pushTimeseriesValues(tsid, values, storedTo, current.getPeriodity(metricName) + "", current.getTransform(metricName), true);
+    } catch (Throwable t) {
+      breakers.onHiroFailure(t);
+      if (!CircuitBreakers.isHiroFailure(t)) {
+        // a rejected write would block the spool behind it
+        LOG.log(Level.WARNING, "HIRO rejected spooled timeseries values, dropping them: " + tsid, t);
+        return true;
+      }
+      LOG.log(Level.FINE, "could not replay timeseries values for: " + tsid, t);
+      return false;
     }
-    return defaultPeriodity;
+    return true;
   }
 
-  private String getTransform(String metricName) {
-    if (metricsTransforms.containsKey(metricName)) {
-      return metricsTransforms.get(metricName);
-    } else if (metricsTransforms.containsKey("All")) {
-      return metricsTransforms.get("All");
+  private static Double getValue(final Datapoint val, String transform) {
+    switch (transform) {
+      case "Sum":
+        return val.getSum();
+      case "Minimum":
+        return val.getMinimum();
+      case "Maximum":
+        return val.getMaximum();
+      case "SampleCount":
+        return val.getSampleCount();
+      default:
+        return val.getAverage();
     }
-    return defaultTransform;
   }
 
-  private String getUnits(final List<Datapoint> mData) {
-    if (!mData.isEmpty()) {
-      return mData.get(0).getUnit();
+  private static long getEarliestTimestamp(final List<Datapoint> mData) {
+    long ret = Long.MAX_VALUE;
+    for (final Datapoint val : mData) {
+      ret = Math.min(ret, val.getTimestamp().getTime());
     }
-    return "";
+    return ret;
   }
 
-  private String getFullMetricName(String metricName, List<Dimension> dimensions) {
-    final Map params = new HashMap();
-    for (Dimension d : dimensions) {
-      params.put(d.getName(), d.getValue() + "");
+  private static long getLatestTimestamp(final List<Datapoint> mData) {
+    long ret = 0L;
+    for (final Datapoint val : mData) {
+      ret = Math.max(ret, val.getTimestamp().getTime());
     }
+    return ret;
+  }
 
-    if (params.containsKey("MountPath")) {
-      return metricName + " " + params.get("MountPath");
-    } else if (params.containsKey("ProcessName")) {
-      return metricName + " " + params.get("ProcessName");
-    } else {
-      return metricName;
+  private String getUnits(final List<Datapoint> mData) {
+    if (!mData.isEmpty()) {
+      return mData.get(0).getUnit();
     }
+    return "";
   }
 
+  /**
+   * checks the token before a HIRO call, an invalid token is retried until
+   * the HIRO circuit opens
+   *
+   * @throws CircuitBreaker.OpenException if the HIRO circuit is open
+   */
   private void waitForValidToken() {
+    final CircuitBreaker breaker = breakers.getHiro();
     while (true) {
+      breaker.acquire();
       try {
         hiro.getVertex(modelDefaultNodeId, new HashMap());
+        breaker.onSuccess();
         break;
       } catch (Throwable t) {
         LOG.log(Level.WARNING, "hiro client problem", t);
-        if (t.getMessage().contains("token invalid")) {
+        if (t.getMessage() != null && t.getMessage().contains("token invalid")) {
+          breaker.onFailure();
           try {
             Thread.sleep(3000);
           } catch (InterruptedException ignored) {
+            Thread.currentThread().interrupt();
+            break;
           }
         } else {
+          // a missing default node is an answer as well, either resolves a probe
+          breakers.onHiroFailure(t);
           break;
         }
       }
@@ -1,64 +1,122 @@
 package de.arago.connector.cloudwatch;
 
 import co.arago.hiro.client.api.HiroClient;
-import co.arago.hiro.client.builder.ClientBuilder;
-import co.arago.hiro.client.builder.TokenBuilder;
 import co.arago.hiro.client.util.HiroException;
 import com.amazonaws.ClientConfiguration;
 import com.amazonaws.auth.BasicAWSCredentials;
 import com.amazonaws.services.sqs.AmazonSQSAsync;
 import com.amazonaws.services.sqs.AmazonSQSAsyncClient;
 import com.amazonaws.services.sqs.buffered.AmazonSQSBufferedAsyncClient;
+import com.amazonaws.services.sqs.buffered.QueueBufferConfig;
 import com.amazonaws.services.sqs.model.GetQueueAttributesRequest;
 import com.amazonaws.services.sqs.model.GetQueueAttributesResult;
 import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.MessageSystemAttributeName;
+import com.amazonaws.services.sqs.model.QueueAttributeName;
 import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
 import com.amazonaws.services.sqs.model.ReceiveMessageResult;
 import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import net.minidev.json.JSONValue;
 
-public class CloudWatchSQSWorker implements Closeable, Runnable {
+public class CloudWatchSQSWorker implements Closeable, Runnable, ConfigReloader.Listener, LifecycleManager.Component, RuleEngine.IssueSink {
 
   private static final Logger LOG = Logger.getLogger(CloudWatchSQSWorker.class.getName());
 
   private static final String VARIABLE_PROCESS_CLOUDWATCH_EVENT = "ProcessCloudWatchEvent";
   private static final String VARIABLE_AWSSQS_ATRIBUTES = "AWSSQSAttributes";
   private static final String VARIABLE_AWSSQS_BODY = "AWSSQSBody";
+  private static final long SPOOL_REPLAY_INTERVAL_MS = 30000;
+  private static final long SNAPSHOT_INTERVAL_MS = 60000;
+  private static final long NODE_CACHE_TTL_MS = 3600000;
+  private static final long LATENCY_LOG_INTERVAL_MS = 60000;
+  // time a held alarm has to come back before the alarms behind it continue
+  private static final long HOLD_GRACE_MS = 30000;
+  private static final int MAX_VISIBILITY_SEC = 43200;
+  private static final int MAX_RETURNS = 10000;
 
+  private final CircuitBreakers breakers;
+  private final HiroAccess hiroAccess;
   private boolean isEnabled;
 
-  private String authUrl;
-  private String authUser;
-  private String authPasswd;
-  private String authClientId;
-  private String authClientSecret;
-
-  private String graphitUrl;
-
   private String awsKey;
   private String awsSecret;
-  private String queueUrl;
+  private WeightedRoundRobin<String> queues;
   private int sqsWaitTimeout;
   private int sqsMessages;
   private int sqsMaxConnections;
+  private ReceiveController receiveControl;
+  // messages taken from the lanes since start
+  private final AtomicLong processed = new AtomicLong();
 
   private String modelMachineNodePrefix;
   private String modelDefaultNodeId;
 
-  private final Map<String, Set<String>> skipTransitions = new ConcurrentHashMap();
+  private volatile Map<String, Set<String>> skipTransitions = Collections.emptyMap();
+  private volatile Set<String> highPriorityStates = Collections.emptySet();
+
+  // received alarms waiting for processing by priority
+  private BlockingQueue<Received> highLane;
+  private BlockingQueue<Received> lowLane;
+  private int laneWorkers;
+  private int reservedWorkers;
+  private int deferSec;
 
-  private AmazonSQSBufferedAsyncClient bufferedSQS;
+  private int maxReceives;
+  private int retryBackoffSec;
+  private int maxRetryBackoffSec;
+  private Spool deadLetters;
+  private final List<Thread> processors = new ArrayList();
+
+  private AmazonSQSAsync bufferedSQS;
+  // FIFO queues are not supported by the buffered client
+  private AmazonSQSAsync directSQS;
+  // alarms of one instance or FIFO message group are processed in order
+  private final KeyedSequencer<Received> sequencer = new KeyedSequencer();
+  // order key -> alarm of the key which went back to its queue
+  private final Map<String, Hold> held = new ConcurrentHashMap();
+  private long lastHoldCheck;
+  // message id -> times the message went back to its queue without failing
+  private final Map<String, Integer> returns = Collections.synchronizedMap(new LinkedHashMap<String, Integer>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+      return size() > MAX_RETURNS;
+    }
+  });
   private HiroClient hiro;
+  private Spool spool;
+  private long lastReplay;
+  private SnapshotFile snapshot;
+  private TrafficCapture capture;
+  private YamlConfig config;
+  private long lastSnapshot;
+  private long lastLatencyLog;
+  private final AlarmLatency latency = new AlarmLatency();
+  // node id -> time the node was last seen in HIRO
+  private final Map<String, Long> knownNodes = new ConcurrentHashMap();
   private Thread worker;
+  private volatile boolean running;
+
+  public CloudWatchSQSWorker(final CircuitBreakers breakers, final HiroAccess hiroAccess) {
+    this.breakers = breakers;
+    this.hiroAccess = hiroAccess;
+  }
 
   public void configure(final YamlConfig c) {
     isEnabled = c.get("sqs.enabled", true);
@@ -69,23 +127,12 @@ public class CloudWatchSQSWorker implements Closeable, Runnable {
     awsKey = c.get("aws.AWS_ACCESS_KEY", "");
     awsSecret = c.get("aws.AWS_SECRET_KEY", "");
 
-    queueUrl = c.get("sqs.url", "");
+    queues = parseQueues(c);
 
-    if (queueUrl.isEmpty()) {
+    if (queues.size() == 0) {
       throw new IllegalArgumentException("config does not contain sqs queueUrl");
     }
 
-    graphitUrl = c.get("graphit.url", "");
-
-    if (graphitUrl.isEmpty()) {
-      throw new IllegalArgumentException("config does not contain graphit options");
-    }
-
-    authUrl = c.get("auth.url", "");
-    authUser = c.get("auth.username", "");
-    authPasswd = c.get("auth.passwd", "");
-    authClientId = c.get("auth.clientId", "");
-    authClientSecret = c.get("auth.clientSecret", "");
 
     sqsWaitTimeout = c.get("sqs.timeout", 10);
     sqsMessages = c.get("sqs.messages", 10);
@@ -94,24 +141,110 @@ public class CloudWatchSQSWorker implements Closeable, Runnable {
     modelMachineNodePrefix = c.get("model.machine-node-prefix", "");
     modelDefaultNodeId = c.get("model.default-node-id", "");
 
+    skipTransitions = parseSkipTransitions(c);
+    highPriorityStates = parseHighPriorityStates(c);
+    laneWorkers = Math.max(1, (Integer) c.get("sqs.lanes.workers", 4));
+    reservedWorkers = Math.min(laneWorkers - 1, (Integer) c.get("sqs.lanes.reserved-workers", 1));
+    deferSec = c.get("sqs.lanes.defer-sec", 30);
+    final int laneSize = c.get("sqs.lanes.queue-size", 100);
+    highLane = new ArrayBlockingQueue(laneSize);
+    lowLane = new ArrayBlockingQueue(laneSize);
+    receiveControl = new ReceiveController(
+      (Boolean) c.get("sqs.adaptive.enabled", true),
+      sqsMessages,
+      sqsWaitTimeout,
+      laneSize,
+      (Integer) c.get("sqs.adaptive.refresh-sec", 10),
+      queues.getItems());
+    spool = Spool.fromConfig(c, "issues");
+    maxReceives = c.get("sqs.retry.max-receives", 5);
+    retryBackoffSec = c.get("sqs.retry.backoff-sec", 30);
+    // SQS limits the visibility timeout to 12 hours
+    maxRetryBackoffSec = Math.min(MAX_VISIBILITY_SEC, (Integer) c.get("sqs.retry.max-backoff-sec", 900));
+    deadLetters = openDeadLetters(c);
+    snapshot = SnapshotFile.fromConfig(c, "sqs");
+    config = c;
+  }
+
+  /**
+   * replaces the skipped status transitions and the high priority states,
+   * they apply to the next received message.
+   */
+  @Override
+  public void reconfigure(final YamlConfig c) {
+    if (!isEnabled) {
+      return;
+    }
+
+    skipTransitions = parseSkipTransitions(c);
+    highPriorityStates = parseHighPriorityStates(c);
+    LOG.log(Level.INFO, "skip-status-transitions and priorities reloaded");
+  }
+
+  /**
+   * the queues of sqs.queues with their receive weight, or sqs.url
+   */
+  private static WeightedRoundRobin<String> parseQueues(final YamlConfig c) {
+    final WeightedRoundRobin<String> ret = new WeightedRoundRobin();
+    final List<Map> list = (List) c.get("sqs.queues");
+    if (list != null) {
+      for (Map sub : list) {
+        final String url = (String) sub.get("url");
+        if (url != null && !url.isEmpty()) {
+          final Object weight = sub.get("weight");
+          ret.add(url, weight instanceof Integer ? (Integer) weight : 1);
+        }
+      }
+    }
+
+    final String url = c.get("sqs.url", "");
+    if (ret.size() == 0 && !url.isEmpty()) {
+      ret.add(url, 1);
+    }
+    LOG.log(Level.FINE, "sqs queues={0}", ret.getItems());
+    return ret;
+  }
+
+  private static Spool openDeadLetters(final YamlConfig c) {
+    final String dir = c.get("sqs.retry.dead-letter-directory", "/opt/arago/dead-letter");
+    if (dir.isEmpty()) {
+      return null;
+    }
+    try {
+      return new Spool(new File(dir), 1024L * 1024 * 16, 1024L * 1024 * (Integer) c.get("sqs.retry.dead-letter-max-mb", 256));
+    } catch (IOException ex) {
+      throw new IllegalStateException("could not open dead-letter store: " + dir, ex);
+    }
+  }
+
+  private static Set<String> parseHighPriorityStates(final YamlConfig c) {
+    final List<String> states = (List) c.get("sqs.lanes.high-states");
+    final Set<String> ret = states == null ? Collections.singleton("ALARM") : new HashSet(states);
+    LOG.log(Level.FINE, "high priority states={0}", ret);
+    return ret;
+  }
+
+  private static Map<String, Set<String>> parseSkipTransitions(final YamlConfig c) {
+    final Map<String, Set<String>> ret = new HashMap();
     List<Map> transforms = (List) c.get("sqs.skip-status-transitions");
     if (transforms != null) {
       for (Map<String, String> sub : transforms) {
         String from = sub.get("from");
         String to = sub.get("to");
         if (from != null && to != null) {
-          Set<String> l = skipTransitions.get(from);
+          Set<String> l = ret.get(from);
           if (l != null) {
             l.add(to);
           } else {
             l = new HashSet();
             l.add(to);
-            skipTransitions.put(from, l);
+            ret.put(from, l);
           }
         }
       }
     }
-    LOG.log(Level.FINE, "skip-status-transitions={0}", skipTransitions);
+    LOG.log(Level.FINE, "skip-status-transitions={0}", ret);
+    return ret;
   }
 
   public void start() {
@@ -119,16 +252,6 @@ public class CloudWatchSQSWorker implements Closeable, Runnable {
       return;
     }
 
-    ClientBuilder builder = new ClientBuilder()
-      .setRestApiUrl(graphitUrl);
-
-    builder.setTokenProvider(new TokenBuilder().makePassword(authUrl, authClientId, authClientSecret, authUser, authPasswd));
-
-    hiro = builder.makeHiroClient();
-
-    checkDefaultNode();
-    initializeVariables();
-
     final ClientConfiguration clientConfiguration = new ClientConfiguration();
     clientConfiguration.withMaxConnections(sqsMaxConnections);
 
@@ -136,24 +259,84 @@ public class CloudWatchSQSWorker implements Closeable, Runnable {
     if (awsKey.isEmpty() || awsSecret.isEmpty()) {
       sqsAsync = new AmazonSQSAsyncClient(clientConfiguration);
     } else {
-      sqsAsync = new AmazonSQSAsyncClient(new BasicAWSCredentials(awsKey, awsSecret));
+      sqsAsync = new AmazonSQSAsyncClient(new BasicAWSCredentials(awsKey, awsSecret), clientConfiguration);
     }
 
-    bufferedSQS = new AmazonSQSBufferedAsyncClient(sqsAsync);
+    // receives are prefetched into the lanes, the buffered client only batches deletes and visibility changes
+    final QueueBufferConfig bufferConfig = new QueueBufferConfig()
+      .withMaxInflightReceiveBatches(0)
+      .withMaxDoneReceiveBatches(0);
+    start(new AmazonSQSBufferedAsyncClient(sqsAsync, bufferConfig), sqsAsync);
+  }
 
-    try {
-      GetQueueAttributesRequest req = new GetQueueAttributesRequest()
-        .withQueueUrl(queueUrl);
-      GetQueueAttributesResult queueAttributes = bufferedSQS.getQueueAttributes(req);
-      LOG.log(Level.FINE, "aws: {0}", queueAttributes.getAttributes());
-    } catch (Throwable t) {
-      throw new IllegalStateException("could not connect to aws", t);
+  /**
+   * starts the worker with the given SQS clients
+   *
+   * @param buffered client of standard queues
+   * @param direct client of FIFO queues
+   */
+  void start(final AmazonSQSAsync buffered, final AmazonSQSAsync direct) {
+    bufferedSQS = buffered;
+    directSQS = direct;
+    hiro = hiroAccess.getClient("sqs");
+    capture = TrafficCapture.fromConfig(config, "sqs");
+
+    final boolean warm = loadSnapshot();
+    if (!warm) {
+      checkDefaultNode();
+      initializeVariables();
+    }
+
+    if (warm) {
+      // a previous run verified the setup, it is checked again while messages are processed
+      final Thread t = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            checkDefaultNode();
+            initializeVariables();
+            checkQueue();
+          } catch (Throwable ex) {
+            LOG.log(Level.SEVERE, "startup check failed", ex);
+          }
+        }
+      }, "sqs-startup-check");
+      t.setDaemon(true);
+      t.start();
+    } else {
+      checkQueue();
+    }
+
+    running = true;
+    for (int i = 0; i < laneWorkers; ++i) {
+      final boolean reserved = i < reservedWorkers;
+      final Thread t = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          processLanes(reserved);
+        }
+      }, "sqs-processor-" + i);
+      processors.add(t);
+      t.start();
     }
 
     worker = new Thread(this);
     worker.start();
   }
 
+  private void checkQueue() {
+    for (String queueUrl : queues.getItems()) {
+      try {
+        GetQueueAttributesRequest req = new GetQueueAttributesRequest()
+          .withQueueUrl(queueUrl);
+        GetQueueAttributesResult queueAttributes = bufferedSQS.getQueueAttributes(req);
+        LOG.log(Level.FINE, "aws: {0}", queueAttributes.getAttributes());
+      } catch (Throwable t) {
+        throw new IllegalStateException("could not connect to aws queue: " + queueUrl, t);
+      }
+    }
+  }
+
   private void checkDefaultNode() {
     try {
       Map v = hiro.getVertex(modelDefaultNodeId, new HashMap());
@@ -178,59 +361,577 @@ public class CloudWatchSQSWorker implements Closeable, Runnable {
 
   @Override
   public void close() throws IOException {
+    stopIntake();
+    flush();
+  }
+
+  @Override
+  public void stopIntake() {
+    running = false;
+  }
+
+  /**
+   * the processors finish the messages they are processing, received
+   * messages which were not started yet are released to their queue
+   */
+  @Override
+  public boolean awaitDrained(long timeoutMs) throws InterruptedException {
+    if (worker == null) {
+      return true;
+    }
+
+    final long deadline = System.currentTimeMillis() + timeoutMs;
+    worker.join(timeoutMs);
+    boolean drained = !worker.isAlive();
+    for (Thread t : processors) {
+      t.join(Math.max(1, deadline - System.currentTimeMillis()));
+      drained &= !t.isAlive();
+    }
+    return drained;
+  }
+
+  /**
+   * sends buffered deletes, so processed messages are not delivered again
+   */
+  @Override
+  public void flush() {
+    if (worker == null) {
+      return;
+    }
+
     try {
       worker.interrupt();
+      for (Thread t : processors) {
+        t.interrupt();
+      }
+      releaseLane(highLane);
+      releaseLane(lowLane);
+      held.clear();
+      for (Received r : sequencer.clear()) {
+        release(r.queueUrl, r.message, 0);
+      }
+      if (bufferedSQS instanceof AmazonSQSBufferedAsyncClient) {
+        ((AmazonSQSBufferedAsyncClient) bufferedSQS).flush();
+      }
+      bufferedSQS.shutdown();
+      saveSnapshot();
+      if (capture != null) {
+        capture.close();
+      }
+      if (spool != null) {
+        spool.close();
+      }
+      if (deadLetters != null) {
+        deadLetters.close();
+      }
     } catch (Throwable t) {
       LOG.log(Level.SEVERE, null, t);
     }
   }
 
+  private boolean isRunning() {
+    return running && !Thread.currentThread().isInterrupted();
+  }
+
+  /**
+   * receives from the queues by weight and dispatches the alarms to the
+   * priority lanes. Batch size, wait and visibility timeout of each receive
+   * come from the {@link ReceiveController}, with several queues long
+   * polling is only used while all queues are empty, so a busy queue is not
+   * delayed by an idle one.
+   */
   @Override
   public void run() {
-    while (!Thread.currentThread().isInterrupted()) {
+    final CircuitBreaker sqs = breakers.getSQS();
+    int idle = 0;
+    boolean received = false;
+    while (isRunning()) {
+      // no intake while issues can not be created, messages stay in the queue
+      if (!breakers.getHiro().isAvailable()) {
+        pause(1000);
+        continue;
+      }
+
+      replaySpool();
+      if (System.currentTimeMillis() - lastLatencyLog > LATENCY_LOG_INTERVAL_MS) {
+        lastLatencyLog = System.currentTimeMillis();
+        LOG.log(Level.INFO, "alarm latency ms: {0}", latency);
+        LOG.log(Level.INFO, "processing rate: {0}/s, prefetch: {1}",
+          new Object[]{String.format("%.1f", receiveControl.getRate()), receiveControl.getPrefetch()});
+      }
+      if (System.currentTimeMillis() - lastHoldCheck > 1000) {
+        lastHoldCheck = System.currentTimeMillis();
+        releaseExpiredHolds(lastHoldCheck);
+      }
+      if (System.currentTimeMillis() - lastSnapshot > SNAPSHOT_INTERVAL_MS) {
+        lastSnapshot = System.currentTimeMillis();
+        saveSnapshot();
+      }
 
+      final String queueUrl = queues.next();
+      final long now = System.nanoTime();
+      receiveControl.onProcessed(processed.get(), now);
+      if (!receiveControl.shouldReceive(queueUrl, now)) {
+        continue;
+      }
+      final int queued = highLane.size() + lowLane.size() + sequencer.getParked();
+      final int batch = receiveControl.getBatchSize(queueUrl, queued);
+      if (batch == 0) {
+        // the lanes hold enough messages for the processors
+        pause(10);
+        continue;
+      }
+
+      if (!sqs.tryAcquire()) {
+        pause(1000);
+        continue;
+      }
+      if (receiveControl.isRefreshDue(queueUrl, now)) {
+        refreshBacklog(queueUrl, now);
+      }
+
+      final int wait = receiveControl.getWaitSeconds(queueUrl, idle);
       ReceiveMessageResult rx;
       try {
         ReceiveMessageRequest receiveRq = new ReceiveMessageRequest()
-          .withMaxNumberOfMessages(sqsMessages)
-          .withWaitTimeSeconds(sqsWaitTimeout)
+          .withMaxNumberOfMessages(batch)
+          .withWaitTimeSeconds(wait)
+          .withVisibilityTimeout(receiveControl.getVisibilitySeconds(queueUrl, queued, batch))
           .withMessageAttributeNames("All")
+          .withAttributeNames(
+            MessageSystemAttributeName.SentTimestamp.toString(),
+            MessageSystemAttributeName.ApproximateReceiveCount.toString(),
+            MessageSystemAttributeName.MessageGroupId.toString())
           .withQueueUrl(queueUrl);
-        rx = bufferedSQS.receiveMessage(receiveRq);
+        rx = getSQS(queueUrl).receiveMessage(receiveRq);
+        sqs.onSuccess();
       } catch (Throwable t) {
-        LOG.log(Level.SEVERE, "error while receiving messages", t);
+        sqs.onFailure();
+        LOG.log(Level.SEVERE, "error while receiving messages from " + queueUrl, t);
+        pause(1000);
         continue;
       }
-
+      idle = rx.getMessages().isEmpty() ? idle + 1 : 0;
+      receiveControl.onReceived(queueUrl, rx.getMessages().size(), System.nanoTime());
+      if (!received && !rx.getMessages().isEmpty()) {
+        received = true;
+        StartupTimeline.markAndLog("first message");
+      }
       for (Message m : rx.getMessages()) {
-        if (Thread.currentThread().isInterrupted()) {
-          break;
-        }
-
+        // a message which can not be dispatched must not stop the receiver
         try {
-          if (process(m)) {
-            bufferedSQS.deleteMessage(queueUrl, m.getReceiptHandle());
+          if (capture != null) {
+            capture.recordMessage(queueUrl, m);
+          }
+          if (!isRunning()) {
+            release(queueUrl, m, 0);
+            continue;
           }
-        } catch (Exception ex) {
-          LOG.log(Level.WARNING, "could not process message: " + m.getBody(), ex);
+          dispatch(queueUrl, m);
+        } catch (RuntimeException ex) {
+          LOG.log(Level.WARNING, "could not dispatch message: " + m.getMessageId(), ex);
+          retryLater(queueUrl, m, ex.toString());
         }
       }
     }
   }
 
-  private boolean process(final Message m) throws Exception {
+  /**
+   * reads the approximate backlog and the visibility timeout of a queue,
+   * the controller keeps its last state if SQS does not answer
+   */
+  private void refreshBacklog(String queueUrl, long now) {
+    try {
+      final GetQueueAttributesResult a = bufferedSQS.getQueueAttributes(new GetQueueAttributesRequest()
+        .withQueueUrl(queueUrl)
+        .withAttributeNames(QueueAttributeName.ApproximateNumberOfMessages, QueueAttributeName.VisibilityTimeout));
+      final String backlog = a.getAttributes().get(QueueAttributeName.ApproximateNumberOfMessages.toString());
+      final String visibility = a.getAttributes().get(QueueAttributeName.VisibilityTimeout.toString());
+      receiveControl.onRefresh(queueUrl,
+        backlog == null ? -1 : Long.parseLong(backlog),
+        visibility == null ? 0 : Integer.parseInt(visibility),
+        now);
+      LOG.log(Level.FINEST, "backlog of {0}: {1}", new Object[]{queueUrl, backlog});
+    } catch (Throwable t) {
+      LOG.log(Level.FINE, "could not read backlog of " + queueUrl, t);
+    }
+  }
+
+  /**
+   * a received message waiting in a lane
+   */
+  private static final class Received {
+
+    final String queueUrl;
+    final Message message;
+    final CloudWatchAlarmMessage alarm;
+    final boolean high;
+    final String key;
+    final long queuedNanos = System.nanoTime();
+
+    Received(String queueUrl, Message message, CloudWatchAlarmMessage alarm, boolean high, String key) {
+      this.queueUrl = queueUrl;
+      this.message = message;
+      this.alarm = alarm;
+      this.high = high;
+      this.key = key;
+    }
+  }
+
+  /**
+   * an alarm which went back to its queue while later alarms of its key wait
+   */
+  private static final class Hold {
+
+    final String messageId;
+    final long visibleAt;
+    final long expiresAt;
+
+    Hold(String messageId, long visibleAt, long expiresAt) {
+      this.messageId = messageId;
+      this.visibleAt = visibleAt;
+      this.expiresAt = expiresAt;
+    }
+
+    int getSecondsUntilVisible(long now) {
+      return (int) Math.max(0, (visibleAt - now + 999) / 1000);
+    }
+  }
+
+  /**
+   * skipped transitions are deleted right away. An alarm of an instance
+   * with an alarm in progress waits behind it, as do the alarms of an
+   * instance whose alarm went back to its queue, until it is received again.
+   * Others go to their lane.
+   */
+  private void dispatch(final String queueUrl, final Message m) {
     LOG.log(Level.FINEST, "processing message : {0} : {1} : {2}", new Object[]{m.getMessageId(), m.getMessageAttributes(), m.getBody()});
 
-    final CloudWatchAlarmMessage msg = new CloudWatchAlarmMessage(m);
+    final long sent = getSentTimestamp(m);
+    if (sent > 0) {
+      latency.record(AlarmLatency.QUEUE, 1000 * (System.currentTimeMillis() - sent));
+    }
+    if (m.getAttributes().containsKey(MessageSystemAttributeName.ApproximateReceiveCount.toString())) {
+      latency.recordReceiveCount(getReceiveCount(m));
+    }
+
+    final CloudWatchAlarmMessage msg;
+    final long then = System.nanoTime();
+    try {
+      msg = new CloudWatchAlarmMessage(m);
+    } catch (Exception ex) {
+      LOG.log(Level.WARNING, "could not process message: " + m.getBody(), ex);
+      retryLater(queueUrl, m, ex.toString());
+      return;
+    }
+    latency.record(AlarmLatency.PARSE, (System.nanoTime() - then) / 1000);
 
     LOG.log(Level.FINEST, "parsed message: {0}", msg.toString());
 
-    if (skipTransitions.containsKey(msg.getOldStateValue()) && skipTransitions.get(msg.getOldStateValue()).contains(msg.getNewStateValue())) {
+    if (isSkipped(msg)) {
       LOG.log(Level.FINE, "skipping event bcs of defined transition type: {0}", m.toString());
+      delete(queueUrl, m);
+      return;
+    }
+
+    final boolean high = highPriorityStates.contains(msg.getNewStateValue());
+    final Received r = new Received(queueUrl, m, msg, high, getOrderKey(queueUrl, m, msg));
+    final Hold hold = held.get(r.key);
+    if (hold != null) {
+      if (!hold.messageId.equals(m.getMessageId())) {
+        LOG.log(Level.FINEST, "message {0} follows alarm {1} of {2} back to its queue", new Object[]{m.getMessageId(), hold.messageId, r.key});
+        release(queueUrl, m, Math.min(MAX_VISIBILITY_SEC, hold.getSecondsUntilVisible(System.currentTimeMillis()) + 1));
+        return;
+      }
+      // the key is still in progress for the alarm it was held for
+      held.remove(r.key, hold);
+      enqueue(r);
+      return;
+    }
+    if (!sequencer.admit(r.key, r)) {
+      LOG.log(Level.FINEST, "message {0} waits for the previous alarm of {1}", new Object[]{m.getMessageId(), r.key});
+      return;
+    }
+    enqueue(r);
+  }
+
+  /**
+   * puts an alarm whose key is in progress into its lane: high priority
+   * alarms wait for a free lane slot, low priority alarms are deferred in
+   * their queue while the low lane is full
+   */
+  private void enqueue(final Received r) {
+    if (r.high) {
+      try {
+        highLane.put(r);
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        // the alarms parked behind it are released when the worker is flushed
+        release(r.queueUrl, r.message, 0);
+      }
+    } else if (!lowLane.offer(r)) {
+      LOG.log(Level.FINE, "low priority lane full, deferring message: {0}", r.message.getMessageId());
+      release(r.queueUrl, r.message, deferSec);
+      hold(r, deferSec);
+    }
+  }
+
+  /**
+   * holds the key of an alarm which went back to its queue. The alarms
+   * parked behind it go back after it and later alarms of the key follow it,
+   * until it is received again or did not come back within the grace time.
+   */
+  private void hold(final Received r, int visibilitySec) {
+    final long visibleAt = System.currentTimeMillis() + 1000L * visibilitySec;
+    held.put(r.key, new Hold(r.message.getMessageId(), visibleAt, visibleAt + HOLD_GRACE_MS));
+    int i = 0;
+    for (Received p : sequencer.drain(r.key)) {
+      release(p.queueUrl, p.message, Math.min(MAX_VISIBILITY_SEC, visibilitySec + (++i)));
+    }
+  }
+
+  /**
+   * continues with the alarms of a key whose held alarm was not received
+   * again, e.g. because another consumer took it or it was deleted
+   */
+  private void releaseExpiredHolds(long now) {
+    for (Map.Entry<String, Hold> e : held.entrySet()) {
+      if (now > e.getValue().expiresAt && held.remove(e.getKey(), e.getValue())) {
+        LOG.log(Level.FINE, "alarm {0} of {1} did not come back", new Object[]{e.getValue().messageId, e.getKey()});
+        final Received next = sequencer.next(e.getKey());
+        if (next != null) {
+          enqueue(next);
+        }
+      }
+    }
+  }
+
+  /**
+   * @return the key the alarms are ordered by, the message group on FIFO
+   * queues, else the instance, alarms without instance are not ordered
+   */
+  static String getOrderKey(String queueUrl, final Message m, final CloudWatchAlarmMessage msg) {
+    final String group = m.getAttributes().get(MessageSystemAttributeName.MessageGroupId.toString());
+    if (group != null) {
+      return queueUrl + "|" + group;
+    }
+    if (msg.getInstanceId() != null) {
+      return "instance|" + msg.getInstanceId();
+    }
+    return "message|" + m.getMessageId();
+  }
+
+  private AmazonSQSAsync getSQS(String queueUrl) {
+    return queueUrl.endsWith(".fifo") ? directSQS : bufferedSQS;
+  }
+
+  /**
+   * @return the ApproximateReceiveCount of the message, 1 if SQS did not send it
+   */
+  private static int getReceiveCount(final Message m) {
+    final String count = m.getAttributes().get(MessageSystemAttributeName.ApproximateReceiveCount.toString());
+    try {
+      return count == null ? 1 : Math.max(1, Integer.parseInt(count));
+    } catch (NumberFormatException ex) {
+      LOG.log(Level.FINE, "invalid receive count of message {0}: {1}", new Object[]{m.getMessageId(), count});
+      return 1;
+    }
+  }
+
+  /**
+   * @return the SentTimestamp of the message or 0 if SQS did not send it
+   */
+  private static long getSentTimestamp(final Message m) {
+    final String sent = m.getAttributes().get(MessageSystemAttributeName.SentTimestamp.toString());
+    return sent == null ? 0 : Long.parseLong(sent);
+  }
+
+  private boolean isSkipped(final CloudWatchAlarmMessage msg) {
+    final Set<String> skipped = skipTransitions.get(msg.getOldStateValue());
+    return skipped != null && skipped.contains(msg.getNewStateValue());
+  }
+
+  /**
+   * prepares processing of recorded messages without connecting to SQS
+   */
+  void startReplay() {
+    hiro = hiroAccess.getClient("sqs");
+  }
+
+  /**
+   * processes a recorded message in the calling thread
+   *
+   * @return true if the message would have been deleted from its queue
+   */
+  boolean process(final Message m) throws Exception {
+    final CloudWatchAlarmMessage msg = new CloudWatchAlarmMessage(m);
+    return isSkipped(msg) || createIssue(msg);
+  }
+
+  /**
+   * processes alarms of the high lane first, reserved processors only process
+   * the high lane. After an alarm the processor continues with the alarms
+   * which waited for it, a reserved processor hands low priority ones to the
+   * low lane. After a failed alarm its key is held.
+   */
+  private void processLanes(boolean reserved) {
+    while (isRunning()) {
+      Received r = highLane.poll();
+      try {
+        if (r == null) {
+          r = (reserved ? highLane : lowLane).poll(200, TimeUnit.MILLISECONDS);
+        }
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+      while (r != null) {
+        if (!isRunning()) {
+          release(r.queueUrl, r.message, 0);
+        } else {
+          final int retrySec = handle(r);
+          if (retrySec >= 0) {
+            hold(r, retrySec);
+            break;
+          }
+        }
+        r = sequencer.next(r.key);
+        if (reserved && r != null && !r.high) {
+          // stays in progress, the shared processors take it from the low lane
+          enqueue(r);
+          r = null;
+        }
+      }
+    }
+  }
+
+  /**
+   * @return -1 if the message is done with, else the seconds until it is
+   * received again
+   */
+  private int handle(final Received r) {
+    latency.record(AlarmLatency.LANE, (System.nanoTime() - r.queuedNanos) / 1000);
+    processed.incrementAndGet();
+    try {
+      if (createIssue(r.alarm)) {
+        getSQS(r.queueUrl).deleteMessage(r.queueUrl, r.message.getReceiptHandle());
+        returns.remove(r.message.getMessageId());
+        final long sent = getSentTimestamp(r.message);
+        if (sent > 0) {
+          latency.record(r.high ? AlarmLatency.TOTAL_HIGH : AlarmLatency.TOTAL_LOW, 1000 * (System.currentTimeMillis() - sent));
+        }
+        return -1;
+      }
+      return retryLater(r.queueUrl, r.message, "issue not created");
+    } catch (Exception ex) {
+      LOG.log(Level.WARNING, "could not process message: " + r.message.getBody(), ex);
+      return retryLater(r.queueUrl, r.message, ex.toString());
+    }
+  }
+
+  /**
+   * returns a failed message to its queue after a back-off which doubles
+   * with every failed receive. After sqs.retry.max-receives failures the
+   * message is moved to the dead-letter store and deleted, failures while
+   * HIRO is unavailable do not move messages. Receives after which the
+   * message went back without failing, e.g. deferred or released at
+   * shutdown, do not count.
+   *
+   * @return -1 if the message was moved, else its back-off in seconds
+   */
+  private int retryLater(final String queueUrl, final Message m, String reason) {
+    final int failures = getFailures(m);
+
+    if (deadLetters != null && failures >= maxReceives && breakers.getHiro().isAvailable() && deadLetter(queueUrl, m, failures, reason)) {
+      delete(queueUrl, m);
+      return -1;
+    }
+
+    final int backoff = (int) Math.min(maxRetryBackoffSec, (long) retryBackoffSec << Math.min(failures - 1, 20));
+    setVisibility(queueUrl, m, backoff);
+    return backoff;
+  }
+
+  /**
+   * @return the failed receives of the message including the current one
+   */
+  private int getFailures(final Message m) {
+    final Integer returned = returns.get(m.getMessageId());
+    return Math.max(1, getReceiveCount(m) - (returned == null ? 0 : returned));
+  }
+
+  private boolean deadLetter(final String queueUrl, final Message m, int failures, String reason) {
+    final Map entry = new HashMap();
+    entry.put("time", System.currentTimeMillis());
+    entry.put("queue", queueUrl);
+    entry.put("id", m.getMessageId());
+    entry.put("body", m.getBody());
+    entry.put("attributes", new HashMap(m.getAttributes()));
+    entry.put("receives", getReceiveCount(m));
+    entry.put("failures", failures);
+    entry.put("reason", reason);
+    try {
+      deadLetters.append(entry);
+      LOG.log(Level.WARNING, "moved message to dead-letter store after {0} failures: {1}, {2}", new Object[]{failures, m.getMessageId(), reason});
       return true;
+    } catch (IOException ex) {
+      LOG.log(Level.WARNING, "could not store dead letter: " + m.getMessageId(), ex);
+      return false;
     }
+  }
 
-    return createIssue(msg);
+  private void releaseLane(final BlockingQueue<Received> lane) {
+    Received r;
+    while ((r = lane.poll()) != null) {
+      release(r.queueUrl, r.message, 0);
+    }
+  }
+
+  private void pause(long ms) {
+    try {
+      Thread.sleep(ms);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void delete(String queueUrl, final Message m) {
+    returns.remove(m.getMessageId());
+    try {
+      getSQS(queueUrl).deleteMessage(queueUrl, m.getReceiptHandle());
+    } catch (Throwable t) {
+      LOG.log(Level.WARNING, "could not delete message: " + m.getMessageId(), t);
+    }
+  }
+
+  /**
+   * returns a message which did not fail to its queue, the receive does
+   * not count as failure
+   */
+  private void release(String queueUrl, final Message m, int visibilitySec) {
+    synchronized (returns) {
+      final Integer n = returns.get(m.getMessageId());
+      returns.put(m.getMessageId(), n == null ? 1 : n + 1);
+    }
+    setVisibility(queueUrl, m, visibilitySec);
+  }
+
+  private void setVisibility(String queueUrl, final Message m, int visibilitySec) {
+    try {
+      getSQS(queueUrl).changeMessageVisibility(queueUrl, m.getReceiptHandle(), visibilitySec);
+    } catch (Throwable t) {
+      LOG.log(Level.FINE, "could not release message: " + m.getMessageId(), t);
+    }
+  }
+
+  /**
+   * raises the issue of an alarm which did not come from SQS
+   */
+  @Override
+  public boolean raise(CloudWatchAlarmMessage alarm) throws Exception {
+    if (!isEnabled || hiro == null) {
+      return false;
+    }
+    return createIssue(alarm);
   }
 
   private boolean createIssue(CloudWatchAlarmMessage msg) throws Exception {
@@ -245,35 +946,196 @@ public class CloudWatchSQSWorker implements Closeable, Runnable {
       nodeId = modelMachineNodePrefix + msg.getInstanceId();
     }
 
+    if (!breakers.getHiro().tryAcquire()) {
+      return false;
+    }
+
+    // the outcome is always reported, a half-open breaker waits for its probe
+    Throwable failure = null;
+    try {
+      nodeId = getOriginNode(nodeId);
+
+      final Map v = new HashMap();
+      v.put(VARIABLE_PROCESS_CLOUDWATCH_EVENT, "");
+      v.put(VARIABLE_AWSSQS_ATRIBUTES, JSONValue.toJSONString(msg.getAttributes()));
+      v.put(VARIABLE_AWSSQS_BODY, msg.getBody());
+      v.put("ogit/Automation/originNode", nodeId);
+      v.put("ogit/subject", msg.getSubject());
+
+      if (LOG.isLoggable(Level.FINE)) {
+        LOG.log(Level.FINE, "issue: {0}", v);
+      }
+
+      try {
+        final long then = System.nanoTime();
+        Map createVertexResp = hiro.createVertex(Constants.Entities.OGIT_AUTOMATION_ISSUE, v, new HashMap());
+        latency.record(AlarmLatency.CREATE, (System.nanoTime() - then) / 1000);
+        LOG.log(Level.FINE, "issue vertex: {0}", createVertexResp);
+        LOG.log(Level.INFO, "created issue vertex: {0}", createVertexResp.get("ogit/_id"));
+      } catch (Throwable t) {
+        failure = t;
+        LOG.log(Level.FINE, "could not create issue vertex: " + v, t);
+        if (!CircuitBreakers.isHiroFailure(t)) {
+          // HIRO rejected the issue, the message is retried and dead-lettered like other failures
+          throw t;
+        }
+        return spoolIssue(v);
+      }
+      return true;
+    } catch (RuntimeException | Error t) {
+      failure = t;
+      throw t;
+    } finally {
+      breakers.onHiroResult(failure);
+    }
+  }
+
+  /**
+   * @return the node of the issue, the default node if it does not exist
+   */
+  private String getOriginNode(String nodeId) {
+    final Long seen = knownNodes.get(nodeId);
+    if (seen != null && System.currentTimeMillis() - seen <= NODE_CACHE_TTL_MS) {
+      return nodeId;
+    }
+
+    final long then = System.nanoTime();
     try {
       hiro.getVertex(nodeId, new HashMap());
+      latency.record(AlarmLatency.NODE_LOOKUP, (System.nanoTime() - then) / 1000);
+      knownNodes.put(nodeId, System.currentTimeMillis());
+    } catch (Deadlines.DeadlineExceededException t) {
+      LOG.log(Level.FINE, "could not look up node for issue: " + nodeId, t);
+      return nodeId;
     } catch (HiroException t) {
-      if (t.getCode() == 404) {
-        LOG.log(Level.WARNING, "node for issue does not exists: {0}, using default: {1}", new Object[]{nodeId, modelDefaultNodeId});
-        nodeId = modelDefaultNodeId;
+      if (t.getCode() != 404) {
+        // the issue is created on the node anyway, its creation decides about the breaker
+        LOG.log(Level.FINE, "could not look up node for issue: " + nodeId, t);
+        return nodeId;
       }
+      LOG.log(Level.WARNING, "node for issue does not exists: {0}, using default: {1}", new Object[]{nodeId, modelDefaultNodeId});
+      knownNodes.remove(nodeId);
+      return modelDefaultNodeId;
     }
+    return nodeId;
+  }
 
-    final Map v = new HashMap();
-    v.put(VARIABLE_PROCESS_CLOUDWATCH_EVENT, "");
-    v.put(VARIABLE_AWSSQS_ATRIBUTES, JSONValue.toJSONString(msg.getAttributes()));
-    v.put(VARIABLE_AWSSQS_BODY, msg.getBody());
-    v.put("ogit/Automation/originNode", nodeId);
-    v.put("ogit/subject", msg.getSubject());
-    
-    if (LOG.isLoggable(Level.FINE)) {
-      LOG.log(Level.FINE, "issue: {0}", v);
+  /**
+   * @return true if the node cache was restored from the snapshot
+   */
+  private boolean loadSnapshot() {
+    final Map data = snapshot == null ? null : snapshot.read();
+    if (data == null) {
+      return false;
     }
-    
+
     try {
-      Map createVertexResp = hiro.createVertex("ogit/Automation/AutomationIssue", v, new HashMap());
-      LOG.log(Level.FINE, "issue vertex: {0}", createVertexResp);
-      LOG.log(Level.INFO, "created issue vertex: {0}", createVertexResp.get("ogit/_id"));
-    } catch (Throwable t) {
-      LOG.log(Level.FINE, "could not create issue vertex: " + v, t);
+      for (Object o : ((Map) data.get("nodes")).entrySet()) {
+        final Map.Entry e = (Map.Entry) o;
+        knownNodes.put((String) e.getKey(), ((Number) e.getValue()).longValue());
+      }
+      final Map returned = (Map) data.get("returns");
+      if (returned != null) {
+        for (Object o : returned.entrySet()) {
+          final Map.Entry e = (Map.Entry) o;
+          returns.put((String) e.getKey(), ((Number) e.getValue()).intValue());
+        }
+      }
+    } catch (RuntimeException ex) {
+      LOG.log(Level.WARNING, "ignoring invalid snapshot", ex);
+      knownNodes.clear();
+      returns.clear();
       return false;
     }
 
+    LOG.log(Level.INFO, "restored snapshot, known nodes: {0}", knownNodes.size());
     return true;
   }
+
+  private void saveSnapshot() {
+    if (snapshot == null) {
+      return;
+    }
+
+    final Map data = new HashMap();
+    data.put("nodes", new HashMap(knownNodes));
+    synchronized (returns) {
+      data.put("returns", new HashMap(returns));
+    }
+    snapshot.write(data);
+  }
+
+  /**
+   * keeps the issue until HIRO is back, the message can then be deleted
+   */
+  private boolean spoolIssue(final Map v) {
+    if (spool == null) {
+      return false;
+    }
+
+    try {
+      spool.append(v);
+      LOG.log(Level.INFO, "spooled issue for: {0}", v.get("ogit/Automation/originNode"));
+      return true;
+    } catch (IOException ex) {
+      LOG.log(Level.WARNING, "could not spool issue", ex);
+      return false;
+    }
+  }
+
+  /**
+   * keeps a spooled issue HIRO rejected in the dead-letter store
+   */
+  private void deadLetterIssue(final Map v, String reason) {
+    final Map entry = new HashMap();
+    entry.put("time", System.currentTimeMillis());
+    entry.put("issue", v);
+    entry.put("reason", reason);
+    try {
+      if (deadLetters != null) {
+        deadLetters.append(entry);
+      }
+      LOG.log(Level.WARNING, "HIRO rejected spooled issue for {0}: {1}", new Object[]{v.get("ogit/Automation/originNode"), reason});
+    } catch (IOException ex) {
+      LOG.log(Level.WARNING, "could not store rejected issue, dropping: " + v, ex);
+    }
+  }
+
+  private void replaySpool() {
+    if (spool == null || spool.isEmpty() || System.currentTimeMillis() - lastReplay < SPOOL_REPLAY_INTERVAL_MS || !breakers.getHiro().isAvailable()) {
+      return;
+    }
+    lastReplay = System.currentTimeMillis();
+
+    try {
+      int count = spool.replay(new Spool.Handler() {
+        @Override
+        public boolean replay(Map v) {
+          if (!breakers.getHiro().tryAcquire()) {
+            return false;
+          }
+          Throwable failure = null;
+          try {
+            Map createVertexResp = hiro.createVertex(Constants.Entities.OGIT_AUTOMATION_ISSUE, v, new HashMap());
+            LOG.log(Level.INFO, "created spooled issue vertex: {0}", createVertexResp.get("ogit/_id"));
+            return true;
+          } catch (Throwable t) {
+            failure = t;
+            if (!CircuitBreakers.isHiroFailure(t)) {
+              // a rejected issue would block the spool behind it
+              deadLetterIssue(v, t.toString());
+              return true;
+            }
+            LOG.log(Level.FINE, "could not create spooled issue vertex: " + v, t);
+            return false;
+          } finally {
+            breakers.onHiroResult(failure);
+          }
+        }
+      });
+      LOG.log(Level.INFO, "replayed spooled issues: {0}, remaining bytes: {1}", new Object[]{count, spool.size()});
+    } catch (IOException ex) {
+      LOG.log(Level.WARNING, "could not replay spool", ex);
+    }
+  }
 }
@@ -0,0 +1,115 @@
+package de.arago.connector.cloudwatch;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * watches the config file and hands a new config snapshot to all listeners
+ * whenever the file changes. A file that can not be parsed is ignored and
+ * the previous config stays active.
+ */
+public class ConfigReloader implements Closeable, Runnable {
+
+  private static final Logger LOG = Logger.getLogger(ConfigReloader.class.getName());
+  // editors often write a file in several steps
+  private static final long SETTLE_MS = 500;
+
+  /**
+   * implemented by components which can apply a new config at runtime
+   */
+  public interface Listener {
+
+    void reconfigure(YamlConfig c);
+  }
+
+  private final File file;
+  private final List<Listener> listeners = new CopyOnWriteArrayList();
+  private WatchService watcher;
+  private Thread worker;
+  private long lastModified;
+
+  public ConfigReloader(File file) {
+    this.file = file.getAbsoluteFile();
+  }
+
+  public void addListener(Listener l) {
+    listeners.add(l);
+  }
+
+  public void start() throws IOException {
+    lastModified = file.lastModified();
+    watcher = FileSystems.getDefault().newWatchService();
+    file.getParentFile().toPath().register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+
+    worker = new Thread(this, "config-reloader");
+    worker.setDaemon(true);
+    worker.start();
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (watcher != null) {
+      watcher.close();
+    }
+  }
+
+  @Override
+  public void run() {
+    while (!Thread.currentThread().isInterrupted()) {
+      final WatchKey key;
+      try {
+        key = watcher.take();
+      } catch (InterruptedException | ClosedWatchServiceException ex) {
+        break;
+      }
+
+      // any event in the directory, the file may be replaced through a symlink (e.g. k8s config maps)
+      final boolean changed = !key.pollEvents().isEmpty();
+      key.reset();
+
+      if (changed) {
+        try {
+          Thread.sleep(SETTLE_MS);
+        } catch (InterruptedException ex) {
+          break;
+        }
+        reload();
+      }
+    }
+  }
+
+  void reload() {
+    final long modified = file.lastModified();
+    if (modified == lastModified) {
+      return;
+    }
+
+    final YamlConfig config;
+    try {
+      config = YamlConfig.load(file);
+    } catch (Throwable t) {
+      LOG.log(Level.WARNING, "can not reload config, keeping previous: " + file, t);
+      return;
+    }
+    lastModified = modified;
+
+    LOG.log(Level.INFO, "reloading config: {0}", file);
+    for (Listener l : listeners) {
+      try {
+        l.reconfigure(config);
+      } catch (Throwable t) {
+        LOG.log(Level.WARNING, "can not apply config to " + l, t);
+      }
+    }
+  }
+}
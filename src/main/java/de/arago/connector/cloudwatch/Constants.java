@@ -19,5 +19,6 @@ public interface Constants {
   
   interface Entities {
     String OGIT_TIMESERIES = NAMESPACE_OGIT + "Timeseries";
+    String OGIT_AUTOMATION_ISSUE = NAMESPACE_OGIT + "Automation/AutomationIssue";
   }
 }
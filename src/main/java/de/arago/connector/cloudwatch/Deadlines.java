@@ -0,0 +1,212 @@
+package de.arago.connector.cloudwatch;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * deadlines of remote calls by operation. A call which does not answer in
+ * time fails with {@link DeadlineExceededException}, the caller continues
+ * while the stalled request is interrupted. Idempotent reads can be hedged:
+ * when the first request did not answer within the configured latency
+ * quantile of the operation a second one is sent and the first answer is
+ * used.
+ */
+final class Deadlines implements Closeable {
+
+  private static final Logger LOG = Logger.getLogger(Deadlines.class.getName());
+
+  /**
+   * a call did not answer within its deadline
+   */
+  static final class DeadlineExceededException extends RuntimeException {
+
+    DeadlineExceededException(String operation, long deadlineMs) {
+      super(operation + " did not answer within " + deadlineMs + " ms");
+    }
+  }
+
+  private final long defaultMs;
+  private final Map<String, Long> operationMs;
+  private final Set<String> hedged;
+  private final double hedgeQuantile;
+  private final long minHedgeMs;
+  private final long minSamples;
+  private final Map<String, LatencyHistogram> latencies = new ConcurrentHashMap();
+  private final ExecutorService executor;
+
+  /**
+   * @param defaultMs deadline of operations without their own, 0 for none
+   * @param operationMs deadlines by operation, 0 for none
+   * @param hedged operations which are hedged
+   * @param hedgeQuantile latency quantile after which a hedged request is sent
+   * @param minHedgeMs shortest delay of a hedged request
+   * @param minSamples calls of an operation measured before it is hedged
+   */
+  Deadlines(String name, long defaultMs, Map<String, Long> operationMs, Set<String> hedged, double hedgeQuantile, long minHedgeMs, long minSamples) {
+    this.defaultMs = defaultMs;
+    this.operationMs = operationMs;
+    this.hedged = hedged;
+    this.hedgeQuantile = hedgeQuantile;
+    this.minHedgeMs = minHedgeMs;
+    this.minSamples = minSamples;
+    this.executor = Executors.newCachedThreadPool(new ThreadFactory() {
+      private final AtomicInteger count = new AtomicInteger();
+
+      @Override
+      public Thread newThread(Runnable r) {
+        final Thread t = new Thread(r, name + "-call-" + count.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      }
+    });
+  }
+
+  /**
+   * @return the deadlines configured in the deadlines section
+   */
+  static Deadlines fromConfig(final YamlConfig c, String name) {
+    final Map<String, Long> ops = new HashMap();
+    final Map m = c.get("deadlines.operations");
+    if (m != null) {
+      for (Object o : m.entrySet()) {
+        final Map.Entry e = (Map.Entry) o;
+        if (e.getValue() instanceof Number) {
+          ops.put(e.getKey() + "", ((Number) e.getValue()).longValue());
+        }
+      }
+    }
+
+    final List<String> hedgedOps = c.get("deadlines.hedge.operations");
+    return new Deadlines(name,
+      ((Number) c.get("deadlines.default-ms", 60000)).longValue(),
+      ops,
+      (Boolean) c.get("deadlines.hedge.enabled", false) && hedgedOps != null ? new HashSet(hedgedOps) : Collections.<String>emptySet(),
+      ((Number) c.get("deadlines.hedge.quantile", 0.95)).doubleValue(),
+      ((Number) c.get("deadlines.hedge.min-ms", 50)).longValue(),
+      ((Number) c.get("deadlines.hedge.min-samples", 100)).longValue());
+  }
+
+  long getDeadlineMs(String operation) {
+    final Long ms = operationMs.get(operation);
+    return ms == null ? defaultMs : ms;
+  }
+
+  /**
+   * @return the delay after which a hedged request of the operation is sent, -1 if it is not hedged (yet)
+   */
+  long getHedgeDelayMs(String operation) {
+    if (!hedged.contains(operation)) {
+      return -1;
+    }
+    final LatencyHistogram h = latencies.get(operation);
+    if (h == null || h.getCount() < minSamples) {
+      return -1;
+    }
+    return Math.max(minHedgeMs, h.getValueAtQuantile(hedgeQuantile) / 1000);
+  }
+
+  LatencyHistogram getLatency(String operation) {
+    return latencies.get(operation);
+  }
+
+  /**
+   * calls c within the deadline of the operation
+   */
+  <T> T call(final String operation, final Callable<T> c) throws Exception {
+    final long deadlineMs = getDeadlineMs(operation);
+    final long hedgeMs = getHedgeDelayMs(operation);
+    if (deadlineMs <= 0 && hedgeMs < 0) {
+      return measured(operation, c).call();
+    }
+
+    final long end = deadlineMs > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(deadlineMs) : Long.MAX_VALUE;
+    final CompletionService<T> calls = new ExecutorCompletionService(executor);
+    final List<Future<T>> attempts = new ArrayList();
+    try {
+      attempts.add(calls.submit(measured(operation, c)));
+
+      Future<T> done = null;
+      if (hedgeMs >= 0) {
+        done = calls.poll(Math.min(TimeUnit.MILLISECONDS.toNanos(hedgeMs), end - System.nanoTime()), TimeUnit.NANOSECONDS);
+        if (done == null && System.nanoTime() < end) {
+          LOG.log(Level.FINE, "{0} did not answer within {1} ms, hedging", new Object[]{operation, hedgeMs});
+          attempts.add(calls.submit(measured(operation, c)));
+        }
+      }
+
+      int pending = attempts.size();
+      while (true) {
+        if (done == null) {
+          done = end == Long.MAX_VALUE ? calls.take() : calls.poll(end - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+        if (done == null) {
+          LOG.log(Level.WARNING, "{0} did not answer within {1} ms", new Object[]{operation, deadlineMs});
+          throw new DeadlineExceededException(operation, deadlineMs);
+        }
+
+        try {
+          return done.get();
+        } catch (ExecutionException ex) {
+          // the other attempt may still answer
+          if (--pending == 0) {
+            throw unwrap(ex);
+          }
+          done = null;
+        }
+      }
+    } finally {
+      for (Future<T> f : attempts) {
+        f.cancel(true);
+      }
+    }
+  }
+
+  private <T> Callable<T> measured(final String operation, final Callable<T> c) {
+    return new Callable<T>() {
+      @Override
+      public T call() throws Exception {
+        final long then = System.nanoTime();
+        final T ret = c.call();
+        LatencyHistogram h = latencies.get(operation);
+        if (h == null) {
+          latencies.putIfAbsent(operation, new LatencyHistogram());
+          h = latencies.get(operation);
+        }
+        h.record((System.nanoTime() - then) / 1000);
+        return ret;
+      }
+    };
+  }
+
+  private static Exception unwrap(ExecutionException ex) {
+    final Throwable t = ex.getCause();
+    if (t instanceof Error) {
+      throw (Error) t;
+    }
+    return t instanceof Exception ? (Exception) t : ex;
+  }
+
+  @Override
+  public void close() {
+    executor.shutdownNow();
+  }
+}
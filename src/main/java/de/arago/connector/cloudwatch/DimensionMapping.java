@@ -0,0 +1,139 @@
+package de.arago.connector.cloudwatch;
+
+import com.amazonaws.services.cloudwatch.model.Dimension;
+import com.amazonaws.services.cloudwatch.model.DimensionFilter;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * describes how metrics of one CloudWatch namespace are mapped to model nodes
+ * and timeseries names. The dimension names are resolved once when the
+ * mapping is built, so extracting keys only needs a single pass over the
+ * dimensions of a metric.
+ */
+public final class DimensionMapping {
+
+  static final String INSTANCEID = "InstanceId";
+  /**
+   * names series after the first of MountPath and ProcessName only, as the
+   * timeseries created before the mappings were configurable are named that way
+   */
+  static final DimensionMapping DEFAULT = new DimensionMapping(INSTANCEID, "", new String[]{"MountPath", "ProcessName"}, true);
+
+  private final String nodeDimension;
+  private final String nodePrefix;
+  private final String[] nameDimensions;
+  private final boolean firstNameOnly;
+  private final Map<String, Integer> nameIndex = new HashMap();
+
+  DimensionMapping(String nodeDimension, String nodePrefix, String[] nameDimensions) {
+    this(nodeDimension, nodePrefix, nameDimensions, false);
+  }
+
+  private DimensionMapping(String nodeDimension, String nodePrefix, String[] nameDimensions, boolean firstNameOnly) {
+    this.nodeDimension = nodeDimension;
+    this.nodePrefix = nodePrefix == null ? "" : nodePrefix;
+    this.nameDimensions = nameDimensions;
+    this.firstNameOnly = firstNameOnly;
+    for (int i = 0; i < nameDimensions.length; ++i) {
+      nameIndex.put(nameDimensions[i], i);
+    }
+  }
+
+  /**
+   * parses the cloudwatch.dimension-mappings config section into a map by namespace
+   */
+  static Map<String, DimensionMapping> parse(List<Map> config) {
+    if (config == null) {
+      return Collections.emptyMap();
+    }
+
+    final Map<String, DimensionMapping> ret = new HashMap();
+    for (Map<String, Object> sub : config) {
+      String namespace = (String) sub.get("namespace");
+      String node = (String) sub.get("node-dimension");
+      if (namespace == null || node == null) {
+        throw new IllegalArgumentException("dimension mapping requires namespace and node-dimension: " + sub);
+      }
+
+      List<String> names = (List) sub.get("name-dimensions");
+      String[] nameDimensions = names == null ? new String[0] : names.toArray(new String[names.size()]);
+      ret.put(namespace, new DimensionMapping(node, (String) sub.get("node-prefix"), nameDimensions));
+    }
+    return ret;
+  }
+
+  String getNodeDimension() {
+    return nodeDimension;
+  }
+
+  /**
+   * @return the prefix of the model node id, empty if nodes are looked up in the discovered machines
+   */
+  String getNodePrefix() {
+    return nodePrefix;
+  }
+
+  /**
+   * @return the node key of a model node id with the prefix of this mapping,
+   * null if the mapping has no prefix or the id does not start with it
+   */
+  String getNodeKeyOfId(String nodeId) {
+    if (nodePrefix.isEmpty() || nodeId == null || !nodeId.startsWith(nodePrefix)) {
+      return null;
+    }
+    return nodeId.substring(nodePrefix.length());
+  }
+
+  DimensionFilter getFilter() {
+    return new DimensionFilter().withName(nodeDimension);
+  }
+
+  String getNodeKey(final List<Dimension> dimensions) {
+    for (Dimension d : dimensions) {
+      if (d.getName().equals(nodeDimension)) {
+        return d.getValue();
+      }
+    }
+    return "";
+  }
+
+  String getSeriesName(String metricName, final List<Dimension> dimensions) {
+    if (nameDimensions.length == 0) {
+      return metricName;
+    }
+
+    String[] values = null;
+    for (Dimension d : dimensions) {
+      Integer idx = nameIndex.get(d.getName());
+      if (idx != null) {
+        if (values == null) {
+          values = new String[nameDimensions.length];
+        }
+        values[idx] = d.getValue() + "";
+      }
+    }
+
+    if (values == null) {
+      return metricName;
+    }
+
+    final StringBuilder b = new StringBuilder(metricName);
+    for (String v : values) {
+      if (v != null) {
+        b.append(' ').append(v);
+        if (firstNameOnly) {
+          break;
+        }
+      }
+    }
+    return b.toString();
+  }
+
+  @Override
+  public String toString() {
+    return nodeDimension + nameIndex.keySet();
+  }
+}
@@ -0,0 +1,101 @@
+package de.arago.connector.cloudwatch;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * membership kept as one heartbeat file per replica in a shared directory.
+ * Changes are serialized through a lock file, a member is live as long as
+ * its file was touched within the ttl. Memberships on the same directory
+ * within one process share an in-process lock, as the file lock is held
+ * per process.
+ */
+public class FileShardMembership implements ShardMembership {
+
+  private static final String SUFFIX = ".member";
+  private static final String LOCK_FILE = "membership.lock";
+  // canonical directory -> lock of the memberships on it in this process
+  private static final ConcurrentMap<String, Object> LOCAL_LOCKS = new ConcurrentHashMap();
+
+  private final File directory;
+  private final Object local;
+
+  public FileShardMembership(File directory) {
+    this.directory = directory;
+    String path;
+    try {
+      path = directory.getCanonicalPath();
+    } catch (IOException ex) {
+      path = directory.getAbsolutePath();
+    }
+    LOCAL_LOCKS.putIfAbsent(path, new Object());
+    this.local = LOCAL_LOCKS.get(path);
+  }
+
+  @Override
+  public void heartbeat(String memberId) throws IOException {
+    synchronized (local) {
+      try (FileChannel ch = lock(); FileLock l = ch.lock()) {
+        final File f = memberFile(memberId);
+        if (!f.exists() && !f.createNewFile()) {
+          throw new IOException("can not create member file: " + f);
+        }
+        if (!f.setLastModified(System.currentTimeMillis())) {
+          throw new IOException("can not touch member file: " + f);
+        }
+      }
+    }
+  }
+
+  @Override
+  public void leave(String memberId) throws IOException {
+    synchronized (local) {
+      try (FileChannel ch = lock(); FileLock l = ch.lock()) {
+        final File f = memberFile(memberId);
+        if (f.exists() && !f.delete()) {
+          throw new IOException("can not delete member file: " + f);
+        }
+      }
+    }
+  }
+
+  @Override
+  public Set<String> getMembers(long ttlMs) throws IOException {
+    final long oldest = System.currentTimeMillis() - ttlMs;
+    final Set<String> ret = new HashSet();
+    synchronized (local) {
+      try (FileChannel ch = lock(); FileLock l = ch.lock()) {
+        final File[] files = directory.listFiles();
+        if (files != null) {
+          for (File f : files) {
+            final String name = f.getName();
+            if (name.endsWith(SUFFIX) && f.lastModified() >= oldest) {
+              ret.add(URLDecoder.decode(name.substring(0, name.length() - SUFFIX.length()), "UTF-8"));
+            }
+          }
+        }
+      }
+    }
+    return ret;
+  }
+
+  private File memberFile(String memberId) throws IOException {
+    return new File(directory, URLEncoder.encode(memberId, "UTF-8") + SUFFIX);
+  }
+
+  private FileChannel lock() throws IOException {
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("can not create membership directory: " + directory);
+    }
+    return new RandomAccessFile(new File(directory, LOCK_FILE), "rw").getChannel();
+  }
+}
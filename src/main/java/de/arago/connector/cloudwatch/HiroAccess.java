@@ -0,0 +1,166 @@
+package de.arago.connector.cloudwatch;
+
+import co.arago.hiro.client.api.HiroClient;
+import co.arago.hiro.client.api.TokenProvider;
+import co.arago.hiro.client.builder.ClientBuilder;
+import co.arago.hiro.client.builder.TokenBuilder;
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * the one HIRO client of the connector, its token and connection pool are
+ * shared by both workers. Every worker gets a view of the client limited to
+ * its quota of concurrent calls, so one worker can not use up the pool.
+ * Calls are made within the {@link Deadlines} of their method, except
+ * writes which are not idempotent: a write without answer may have been
+ * applied, retrying it could create a vertex twice. They are bounded by the
+ * timeout of the client.
+ */
+public class HiroAccess implements Closeable {
+
+  private static final Logger LOG = Logger.getLogger(HiroAccess.class.getName());
+  private static final Set<String> NOT_IDEMPOTENT = Collections.singleton("createVertex");
+
+  private final HiroClient client;
+  private final TokenProvider tokenProvider;
+  private final Map<String, Integer> quotas = new HashMap();
+  private final int defaultQuota;
+  // worker -> permits of its quota, shared by all clients of the worker
+  private final Map<String, Semaphore> workerPermits = new ConcurrentHashMap();
+  private final Deadlines deadlines;
+
+  public HiroAccess(final YamlConfig c) {
+    final String graphitUrl = c.get("graphit.url", "");
+    if (graphitUrl.isEmpty()) {
+      throw new IllegalArgumentException("config does not contain graphit options");
+    }
+
+    tokenProvider = new TokenBuilder().makePassword(
+      (String) c.get("auth.url", ""),
+      (String) c.get("auth.clientId", ""),
+      (String) c.get("auth.clientSecret", ""),
+      (String) c.get("auth.username", ""),
+      (String) c.get("auth.passwd", ""));
+
+    client = new ClientBuilder()
+      .setRestApiUrl(graphitUrl)
+      .setTimeout((Integer) c.get("hiro.timeout-ms", 30000))
+      .setTokenProvider(tokenProvider)
+      .makeHiroClient();
+
+    defaultQuota = c.get("hiro.quotas.default", 4);
+    final Map q = c.get("hiro.quotas");
+    if (q != null) {
+      for (Object o : q.entrySet()) {
+        final Map.Entry e = (Map.Entry) o;
+        if (e.getValue() instanceof Integer) {
+          quotas.put(e.getKey() + "", (Integer) e.getValue());
+        }
+      }
+    }
+    LOG.log(Level.FINE, "hiro quotas={0}, default={1}", new Object[]{quotas, defaultQuota});
+    deadlines = Deadlines.fromConfig(c, "hiro");
+  }
+
+  HiroAccess(HiroClient client, Map<String, Integer> quotas, int defaultQuota) {
+    this(client, quotas, defaultQuota, new Deadlines("hiro", 0, Collections.<String, Long>emptyMap(), Collections.<String>emptySet(), 0, 0, 0));
+  }
+
+  HiroAccess(HiroClient client, Map<String, Integer> quotas, int defaultQuota, final Deadlines deadlines) {
+    this.client = client;
+    this.tokenProvider = null;
+    this.quotas.putAll(quotas);
+    this.defaultQuota = defaultQuota;
+    this.deadlines = deadlines;
+  }
+
+  /**
+   * @return the client for the given worker, calls beyond its quota wait
+   * for a running call to finish, also those of other clients of the
+   * worker. Closing the returned client has no effect.
+   */
+  public HiroClient getClient(final String worker) {
+    final Semaphore permits = getPermits(worker);
+
+    return (HiroClient) Proxy.newProxyInstance(HiroClient.class.getClassLoader(), new Class[]{HiroClient.class}, new InvocationHandler() {
+      @Override
+      public Object invoke(Object proxy, final Method method, final Object[] args) throws Throwable {
+        if (method.getDeclaringClass() == Object.class) {
+          return method.invoke(this, args);
+        }
+        if ("close".equals(method.getName())) {
+          return null;
+        }
+
+        if (NOT_IDEMPOTENT.contains(method.getName())) {
+          return invokeWithin(permits, worker, method, args);
+        }
+        try {
+          return deadlines.call(method.getName(), new Callable() {
+            @Override
+            public Object call() throws Exception {
+              return invokeWithin(permits, worker, method, args);
+            }
+          });
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+          throw new IllegalStateException("interrupted while calling hiro " + method.getName(), ex);
+        }
+      }
+    });
+  }
+
+  private Semaphore getPermits(String worker) {
+    Semaphore ret = workerPermits.get(worker);
+    if (ret == null) {
+      final Integer q = quotas.get(worker);
+      workerPermits.putIfAbsent(worker, new Semaphore(q == null ? defaultQuota : q, true));
+      ret = workerPermits.get(worker);
+    }
+    return ret;
+  }
+
+  /**
+   * the permit is held until HIRO answers, also when the caller stopped waiting
+   */
+  private Object invokeWithin(final Semaphore permits, String worker, final Method method, final Object[] args) throws Exception {
+    try {
+      permits.acquire();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("interrupted while waiting for hiro quota of " + worker, ex);
+    }
+    try {
+      return method.invoke(client, args);
+    } catch (InvocationTargetException ex) {
+      if (ex.getCause() instanceof Error) {
+        throw (Error) ex.getCause();
+      }
+      throw ex.getCause() instanceof Exception ? (Exception) ex.getCause() : ex;
+    } finally {
+      permits.release();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    deadlines.close();
+    client.close();
+    if (tokenProvider != null) {
+      tokenProvider.close();
+    }
+  }
+}
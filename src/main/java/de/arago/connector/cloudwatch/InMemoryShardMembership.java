@@ -0,0 +1,37 @@
+package de.arago.connector.cloudwatch;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * membership shared by coordinators of the same process, for a single
+ * replica and for local tests
+ */
+public class InMemoryShardMembership implements ShardMembership {
+
+  private final Map<String, Long> heartbeats = new ConcurrentHashMap();
+
+  @Override
+  public void heartbeat(String memberId) {
+    heartbeats.put(memberId, System.currentTimeMillis());
+  }
+
+  @Override
+  public void leave(String memberId) {
+    heartbeats.remove(memberId);
+  }
+
+  @Override
+  public Set<String> getMembers(long ttlMs) {
+    final long oldest = System.currentTimeMillis() - ttlMs;
+    final Set<String> ret = new HashSet();
+    for (Map.Entry<String, Long> e : heartbeats.entrySet()) {
+      if (e.getValue() >= oldest) {
+        ret.add(e.getKey());
+      }
+    }
+    return ret;
+  }
+}
@@ -0,0 +1,89 @@
+package de.arago.connector.cloudwatch;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * keeps the items of a key in order while items of different keys are
+ * processed in parallel. An item of a key which has an item in progress is
+ * parked until the items before it are finished.
+ */
+final class KeyedSequencer<T> {
+
+  // active key -> parked items in arrival order
+  private final Map<String, Deque<T>> active = new HashMap();
+  private int parked;
+
+  /**
+   * @return true if the item can be processed now, false if it was parked behind an item of the same key
+   */
+  synchronized boolean admit(String key, T item) {
+    final Deque<T> waiting = active.get(key);
+    if (waiting != null) {
+      waiting.add(item);
+      ++parked;
+      return false;
+    }
+    active.put(key, new ArrayDeque());
+    return true;
+  }
+
+  /**
+   * finishes the item in progress of a key
+   *
+   * @return the next parked item of the key, which is in progress now, or null if the key is idle
+   */
+  synchronized T next(String key) {
+    final Deque<T> waiting = active.get(key);
+    if (waiting == null) {
+      return null;
+    }
+
+    final T ret = waiting.poll();
+    if (ret == null) {
+      active.remove(key);
+    } else {
+      --parked;
+    }
+    return ret;
+  }
+
+  /**
+   * takes the parked items of a key, the key stays in progress
+   *
+   * @return the parked items in arrival order
+   */
+  synchronized List<T> drain(String key) {
+    final Deque<T> waiting = active.get(key);
+    if (waiting == null || waiting.isEmpty()) {
+      return Collections.emptyList();
+    }
+
+    final List<T> ret = new ArrayList(waiting);
+    waiting.clear();
+    parked -= ret.size();
+    return ret;
+  }
+
+  synchronized int getParked() {
+    return parked;
+  }
+
+  /**
+   * @return all parked items, all keys are idle afterwards
+   */
+  synchronized List<T> clear() {
+    final List<T> ret = new ArrayList();
+    for (Deque<T> waiting : active.values()) {
+      ret.addAll(waiting);
+    }
+    active.clear();
+    parked = 0;
+    return ret;
+  }
+}
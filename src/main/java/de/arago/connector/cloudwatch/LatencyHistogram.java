@@ -0,0 +1,85 @@
+package de.arago.connector.cloudwatch;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * lock free histogram of latencies in microseconds with log-linear buckets
+ * like HdrHistogram: every power of two is split into 32 buckets, so a
+ * recorded value is reported with an error of at most about 3 %.
+ */
+public final class LatencyHistogram {
+
+  private static final int SUB_BUCKET_BITS = 5;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+  private final AtomicLongArray counts = new AtomicLongArray((64 - SUB_BUCKET_BITS) * SUB_BUCKETS);
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong max = new AtomicLong();
+
+  public void record(long micros) {
+    final long v = Math.max(0, micros);
+    counts.incrementAndGet(index(v));
+    count.incrementAndGet();
+
+    long m;
+    while ((m = max.get()) < v && !max.compareAndSet(m, v)) {
+      // retry
+    }
+  }
+
+  public long getCount() {
+    return count.get();
+  }
+
+  public long getMax() {
+    return max.get();
+  }
+
+  /**
+   * @return the highest value equivalent to the value at the given quantile, 0 without values
+   */
+  public long getValueAtQuantile(double q) {
+    final long total = count.get();
+    if (total == 0) {
+      return 0;
+    }
+
+    final long target = Math.max(1, (long) Math.ceil(q * total));
+    long seen = 0;
+    for (int i = 0; i < counts.length(); ++i) {
+      seen += counts.get(i);
+      if (seen >= target) {
+        return Math.min(highestEquivalent(i), getMax());
+      }
+    }
+    return getMax();
+  }
+
+  static int index(long v) {
+    if (v < 2 * SUB_BUCKETS) {
+      return (int) v;
+    }
+    final int shift = 63 - Long.numberOfLeadingZeros(v) - SUB_BUCKET_BITS;
+    return shift * SUB_BUCKETS + (int) (v >>> shift);
+  }
+
+  static long highestEquivalent(int index) {
+    if (index < 2 * SUB_BUCKETS) {
+      return index;
+    }
+    final int shift = index / SUB_BUCKETS - 1;
+    final long sub = index % SUB_BUCKETS + SUB_BUCKETS;
+    return ((sub + 1) << shift) - 1;
+  }
+
+  /**
+   * @return count, p50, p99, p999 and max in milliseconds
+   */
+  @Override
+  public String toString() {
+    return String.format("n=%d p50=%.1f p99=%.1f p999=%.1f max=%.1f",
+      getCount(), getValueAtQuantile(0.5) / 1000.0, getValueAtQuantile(0.99) / 1000.0,
+      getValueAtQuantile(0.999) / 1000.0, getMax() / 1000.0);
+  }
+}
@@ -0,0 +1,81 @@
+package de.arago.connector.cloudwatch;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * stops the registered components in phases: first all of them stop taking
+ * new work, then in-flight work is drained within a shared timeout, finally
+ * pending writes are flushed. Components which did not drain in time are
+ * interrupted by their flush.
+ */
+public class LifecycleManager {
+
+  private static final Logger LOG = Logger.getLogger(LifecycleManager.class.getName());
+
+  /**
+   * a component taking part in the ordered shutdown
+   */
+  public interface Component {
+
+    /**
+     * stop receiving or fetching new work, must not block
+     */
+    void stopIntake();
+
+    /**
+     * wait for in-flight work to finish
+     *
+     * @return false if the work did not finish in time
+     */
+    boolean awaitDrained(long timeoutMs) throws InterruptedException;
+
+    /**
+     * flush pending writes and release resources
+     */
+    void flush();
+  }
+
+  private final List<Component> components = new CopyOnWriteArrayList();
+  private final long drainTimeoutMs;
+
+  public LifecycleManager(final YamlConfig c) {
+    drainTimeoutMs = 1000L * (Integer) c.get("shutdown.drain-timeout-sec", 20);
+  }
+
+  public void register(Component c) {
+    components.add(c);
+  }
+
+  public void shutdown() {
+    final long then = System.currentTimeMillis();
+
+    for (Component c : components) {
+      c.stopIntake();
+    }
+
+    final long deadline = then + drainTimeoutMs;
+    for (Component c : components) {
+      try {
+        if (!c.awaitDrained(Math.max(1, deadline - System.currentTimeMillis()))) {
+          LOG.log(Level.WARNING, "could not drain in time: {0}", c);
+        }
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        break;
+      }
+    }
+
+    for (Component c : components) {
+      try {
+        c.flush();
+      } catch (Throwable t) {
+        LOG.log(Level.WARNING, "could not flush: " + c, t);
+      }
+    }
+
+    LOG.log(Level.INFO, "shutdown took {0} ms", System.currentTimeMillis() - then);
+  }
+}
@@ -0,0 +1,276 @@
+package de.arago.connector.cloudwatch;
+
+import com.amazonaws.services.cloudwatch.model.Datapoint;
+import com.amazonaws.services.cloudwatch.model.Dimension;
+import com.amazonaws.services.cloudwatch.model.Metric;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import net.minidev.json.JSONValue;
+
+/**
+ * HTTP endpoint for Kinesis Firehose deliveries of CloudWatch Metric Streams
+ * in the JSON output format. Each request is decoded record by record into
+ * datapoints grouped by series and queued for the monitor worker, which
+ * writes them through the same path as polled metrics. A full queue is
+ * answered with 503, so Firehose retries the delivery later.
+ */
+public class MetricStreamEndpoint implements Closeable, HttpHandler {
+
+  private static final Logger LOG = Logger.getLogger(MetricStreamEndpoint.class.getName());
+  private static final String HEADER_REQUEST_ID = "X-Amz-Firehose-Request-Id";
+  private static final String HEADER_ACCESS_KEY = "X-Amz-Firehose-Access-Key";
+  private static final JsonFactory JSON = new JsonFactory();
+
+  private static final Comparator<Dimension> BY_NAME = new Comparator<Dimension>() {
+    @Override
+    public int compare(Dimension a, Dimension b) {
+      return a.getName().compareTo(b.getName());
+    }
+  };
+
+  private final int port;
+  private final String path;
+  private final String accessKey;
+  private final BlockingQueue<Map<Metric, List<Datapoint>>> queue;
+  private HttpServer server;
+
+  public MetricStreamEndpoint(int port, String path, String accessKey, int queueSize) {
+    this.port = port;
+    this.path = path;
+    this.accessKey = accessKey;
+    this.queue = new ArrayBlockingQueue(queueSize);
+  }
+
+  /**
+   * @return the endpoint configured in cloudwatch.stream or null if metrics are polled
+   */
+  static MetricStreamEndpoint fromConfig(final YamlConfig c) {
+    if (!"stream".equals(c.get("cloudwatch.ingestion", "poll"))) {
+      return null;
+    }
+
+    return new MetricStreamEndpoint(
+      (Integer) c.get("cloudwatch.stream.port", 8080),
+      (String) c.get("cloudwatch.stream.path", "/"),
+      (String) c.get("cloudwatch.stream.access-key", ""),
+      (Integer) c.get("cloudwatch.stream.queue-size", 100));
+  }
+
+  public void start() throws IOException {
+    server = HttpServer.create(new InetSocketAddress(port), 0);
+    server.createContext(path, this);
+    server.start();
+    LOG.log(Level.INFO, "metric stream endpoint listening on port {0}", getPort());
+  }
+
+  int getPort() {
+    return server.getAddress().getPort();
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (server != null) {
+      server.stop(1);
+    }
+  }
+
+  /**
+   * @return the datapoints of one delivery by series or null if none arrived in time
+   */
+  Map<Metric, List<Datapoint>> poll(long timeoutMs) throws InterruptedException {
+    return queue.poll(timeoutMs, TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public void handle(HttpExchange ex) throws IOException {
+    String requestId = ex.getRequestHeaders().getFirst(HEADER_REQUEST_ID);
+    try {
+      if (!"POST".equals(ex.getRequestMethod())) {
+        respond(ex, 405, requestId, "method not allowed");
+        return;
+      }
+
+      if (!accessKey.isEmpty() && !accessKey.equals(ex.getRequestHeaders().getFirst(HEADER_ACCESS_KEY))) {
+        respond(ex, 401, requestId, "invalid access key");
+        return;
+      }
+
+      final boolean gzip = "gzip".equalsIgnoreCase(ex.getRequestHeaders().getFirst("Content-Encoding"));
+      final Map<Metric, List<Datapoint>> data;
+      try (InputStream in = ex.getRequestBody()) {
+        data = decode(in, gzip);
+      }
+
+      if (!data.isEmpty() && !queue.offer(data)) {
+        respond(ex, 503, requestId, "busy");
+        return;
+      }
+
+      LOG.log(Level.FINEST, "received metric stream delivery: {0}, series: {1}", new Object[]{requestId, data.size()});
+      respond(ex, 200, requestId, null);
+    } catch (Throwable t) {
+      LOG.log(Level.WARNING, "could not process metric stream delivery: " + requestId, t);
+      respond(ex, 400, requestId, t.getMessage() + "");
+    } finally {
+      ex.close();
+    }
+  }
+
+  /**
+   * decodes a Firehose delivery request, every record contains newline
+   * separated metric updates. The request is read as a stream, only the
+   * record being decoded is held in memory.
+   */
+  static Map<Metric, List<Datapoint>> decode(InputStream in, boolean gzip) throws IOException {
+    if (gzip) {
+      in = new GZIPInputStream(in);
+    }
+
+    final Map<Metric, List<Datapoint>> ret = new LinkedHashMap();
+    try (JsonParser p = JSON.createParser(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+      if (p.nextToken() != JsonToken.START_OBJECT) {
+        throw new IOException("invalid delivery request");
+      }
+      while (p.nextToken() == JsonToken.FIELD_NAME) {
+        final String field = p.getCurrentName();
+        if (p.nextToken() == JsonToken.START_ARRAY && "records".equals(field)) {
+          decodeRecords(p, ret);
+        } else {
+          p.skipChildren();
+        }
+      }
+    }
+    return ret;
+  }
+
+  private static void decodeRecords(final JsonParser p, final Map<Metric, List<Datapoint>> ret) throws IOException {
+    JsonToken t;
+    while ((t = p.nextToken()) != JsonToken.END_ARRAY) {
+      if (t == null) {
+        throw new IOException("incomplete delivery request");
+      }
+      if (t != JsonToken.START_OBJECT) {
+        p.skipChildren();
+        continue;
+      }
+      while (p.nextToken() == JsonToken.FIELD_NAME) {
+        final String field = p.getCurrentName();
+        if (p.nextToken() == JsonToken.VALUE_STRING && "data".equals(field)) {
+          decodeRecord(p.getText(), ret);
+        } else {
+          p.skipChildren();
+        }
+      }
+    }
+  }
+
+  private static void decodeRecord(String data, final Map<Metric, List<Datapoint>> ret) throws IOException {
+    if (data == null) {
+      return;
+    }
+
+    final byte[] raw = Base64.getDecoder().decode(data);
+    try (BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(raw), StandardCharsets.UTF_8))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (line.isEmpty()) {
+          continue;
+        }
+
+        final Object o = JSONValue.parse(line);
+        if (o instanceof Map) {
+          decodeUpdate((Map) o, ret);
+        }
+      }
+    }
+  }
+
+  private static void decodeUpdate(final Map u, final Map<Metric, List<Datapoint>> ret) {
+    final Object value = u.get("value");
+    if (!(value instanceof Map) || u.get("timestamp") == null) {
+      return;
+    }
+
+    final List<Dimension> dimensions = new ArrayList();
+    final Object dims = u.get("dimensions");
+    if (dims instanceof Map) {
+      for (Object e : ((Map) dims).entrySet()) {
+        final Map.Entry d = (Map.Entry) e;
+        dimensions.add(new Dimension().withName(d.getKey() + "").withValue(d.getValue() + ""));
+      }
+    }
+    Collections.sort(dimensions, BY_NAME);
+
+    final Metric metric = new Metric()
+      .withNamespace((String) u.get("namespace"))
+      .withMetricName((String) u.get("metric_name"))
+      .withDimensions(dimensions);
+
+    final Map v = (Map) value;
+    final double sum = toDouble(v.get("sum"));
+    final double count = toDouble(v.get("count"));
+    final Datapoint dp = new Datapoint()
+      .withTimestamp(new Date(((Number) u.get("timestamp")).longValue()))
+      .withMaximum(toDouble(v.get("max")))
+      .withMinimum(toDouble(v.get("min")))
+      .withSum(sum)
+      .withSampleCount(count)
+      .withAverage(count > 0 ? sum / count : 0)
+      .withUnit((String) u.get("unit"));
+
+    List<Datapoint> points = ret.get(metric);
+    if (points == null) {
+      points = new ArrayList();
+      ret.put(metric, points);
+    }
+    points.add(dp);
+  }
+
+  private static double toDouble(Object o) {
+    return o instanceof Number ? ((Number) o).doubleValue() : 0;
+  }
+
+  private static void respond(HttpExchange ex, int code, String requestId, String error) throws IOException {
+    final Map body = new HashMap();
+    body.put("requestId", requestId);
+    body.put("timestamp", System.currentTimeMillis());
+    if (error != null) {
+      body.put("errorMessage", error);
+    }
+
+    final byte[] out = JSONValue.toJSONString(body).getBytes(StandardCharsets.UTF_8);
+    ex.getResponseHeaders().set("Content-Type", "application/json");
+    ex.sendResponseHeaders(code, out.length);
+    try (OutputStream os = ex.getResponseBody()) {
+      os.write(out);
+    }
+  }
+}
@@ -0,0 +1,104 @@
+package de.arago.connector.cloudwatch;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * immutable snapshot of the reloadable settings of the monitor worker.
+ * A new snapshot is built on every config reload and picked up by the
+ * worker at the start of its next cycle.
+ */
+final class MonitorSettings {
+
+  private static final Logger LOG = Logger.getLogger(MonitorSettings.class.getName());
+
+  final Set<String> allowedMetricNames;
+  final Set<String> namespaces;
+  final Map<String, DimensionMapping> dimensionMappings;
+  final Map<String, Integer> metricsPeriodities;
+  final Map<String, String> metricsTransforms;
+  final int defaultPeriodity;
+  final String defaultTransform;
+  final int metricsPollInterval;
+  final int metricsBatchSize;
+  final int cycleBudget;
+  final List<RuleEngine.Rule> rules;
+
+  MonitorSettings(final YamlConfig c) {
+    defaultTransform = c.get("cloudwatch.default-transform", "Average");
+    defaultPeriodity = c.get("cloudwatch.default-periodity", 180);
+    metricsPollInterval = c.get("cloudwatch.poll-interval-sec", 300);
+    metricsBatchSize = c.get("cloudwatch.batch-size", 500);
+    cycleBudget = c.get("cloudwatch.cycle-budget-sec", metricsPollInterval);
+
+    final Set<String> names = new HashSet((List) c.get("cloudwatch.metrics-names"));
+    if (names.isEmpty()) {
+      names.add("All");
+    }
+    allowedMetricNames = Collections.unmodifiableSet(names);
+    LOG.log(Level.FINE, "allowed metrics names={0}", allowedMetricNames);
+
+    namespaces = Collections.unmodifiableSet(new HashSet((List) (c.get("cloudwatch.namespaces"))));
+    LOG.log(Level.FINE, "allowed namespaces={0}", namespaces);
+
+    rules = RuleEngine.parse((List) c.get("cloudwatch.rules"));
+    LOG.log(Level.FINE, "rules={0}", rules);
+
+    dimensionMappings = Collections.unmodifiableMap(DimensionMapping.parse((List) c.get("cloudwatch.dimension-mappings")));
+    LOG.log(Level.FINE, "dimension mappings={0}", dimensionMappings);
+
+    final Map<String, Integer> p = new HashMap();
+    List<Map> periodities = c.get("cloudwatch.metrics-periodities");
+    if (periodities != null) {
+      for (Map<String, Object> sub : periodities) {
+        String name = (String) sub.get("name");
+        Integer period = (Integer) sub.get("periodity");
+        if (name != null && period != null) {
+          p.put(name, period);
+        }
+      }
+    }
+    metricsPeriodities = Collections.unmodifiableMap(p);
+    LOG.log(Level.FINE, "metrics periodities={0}", metricsPeriodities);
+
+    final Map<String, String> t = new HashMap();
+    List<Map> transforms = c.get("cloudwatch.metrics-transforms");
+    if (transforms != null) {
+      for (Map<String, String> sub : transforms) {
+        String name = sub.get("name");
+        String type = sub.get("type");
+        if (name != null && type != null) {
+          t.put(name, type);
+        }
+      }
+    }
+    metricsTransforms = Collections.unmodifiableMap(t);
+    LOG.log(Level.FINE, "metrics transforms={0}", metricsTransforms);
+  }
+
+  boolean isAllowedMetricName(String metricName) {
+    return allowedMetricNames.contains("All") || allowedMetricNames.contains(metricName);
+  }
+
+  int getPeriodity(String metricName) {
+    Integer ret = metricsPeriodities.get(metricName);
+    if (ret == null) {
+      ret = metricsPeriodities.get("All");
+    }
+    return ret == null ? defaultPeriodity : ret;
+  }
+
+  String getTransform(String metricName) {
+    String ret = metricsTransforms.get(metricName);
+    if (ret == null) {
+      ret = metricsTransforms.get("All");
+    }
+    return ret == null ? defaultTransform : ret;
+  }
+}
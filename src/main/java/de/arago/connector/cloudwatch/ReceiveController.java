@@ -0,0 +1,191 @@
+package de.arago.connector.cloudwatch;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * sizes the SQS receives from the approximate backlog of each queue and the
+ * measured processing rate. Queues with a backlog are received from without
+ * waiting in full batches, idle queues are long polled, so an idle
+ * connector does not send empty receives. Received messages are prefetched
+ * into the lanes for about two seconds of processing, their visibility
+ * timeout covers the time they wait there.
+ */
+final class ReceiveController {
+
+  private static final double RATE_WEIGHT = 0.5;
+  private static final long PREFETCH_NANOS = 2000000000L;
+  // a queue without backlog is received from at most this often while others are busy
+  private static final long IDLE_RECEIVE_NANOS = 1000000000L;
+
+  /**
+   * receive state of one queue
+   */
+  static final class QueueState {
+
+    long backlog = -1;
+    int minVisibilitySec;
+    boolean refreshed;
+    long refreshedNanos;
+    boolean empty;
+    long lastEmptyNanos;
+  }
+
+  private final boolean adaptive;
+  private final int maxBatch;
+  private final int maxWaitSec;
+  private final int laneCapacity;
+  private final long refreshNanos;
+  private final Map<String, QueueState> queues = new HashMap();
+
+  // processed messages per second
+  private double rate;
+  private long sampledNanos;
+  private long sampledCount;
+
+  /**
+   * @param adaptive false receives maxBatch messages with the given wait like before
+   * @param maxBatch largest receive batch, SQS allows 10
+   * @param maxWaitSec longest long poll, SQS allows 20
+   * @param laneCapacity messages the lanes hold
+   * @param refreshSec interval of backlog refreshes
+   */
+  ReceiveController(boolean adaptive, int maxBatch, int maxWaitSec, int laneCapacity, int refreshSec, Collection<String> queueUrls) {
+    this.adaptive = adaptive;
+    this.maxBatch = Math.max(1, Math.min(10, maxBatch));
+    this.maxWaitSec = Math.max(0, Math.min(20, maxWaitSec));
+    this.laneCapacity = laneCapacity;
+    this.refreshNanos = refreshSec * 1000000000L;
+    for (String q : queueUrls) {
+      queues.put(q, new QueueState());
+    }
+  }
+
+  boolean isRefreshDue(String queueUrl, long nanos) {
+    final QueueState s = queues.get(queueUrl);
+    return adaptive && (!s.refreshed || nanos - s.refreshedNanos >= refreshNanos);
+  }
+
+  /**
+   * @param backlog ApproximateNumberOfMessages of the queue
+   * @param visibilitySec VisibilityTimeout of the queue
+   */
+  void onRefresh(String queueUrl, long backlog, int visibilitySec, long nanos) {
+    final QueueState s = queues.get(queueUrl);
+    s.backlog = backlog;
+    s.minVisibilitySec = visibilitySec;
+    s.refreshed = true;
+    s.refreshedNanos = nanos;
+  }
+
+  void onReceived(String queueUrl, int messages, long nanos) {
+    final QueueState s = queues.get(queueUrl);
+    if (messages == 0) {
+      s.backlog = 0;
+      s.empty = true;
+      s.lastEmptyNanos = nanos;
+    } else {
+      s.empty = false;
+      if (s.backlog > 0) {
+        s.backlog = Math.max(0, s.backlog - messages);
+      }
+    }
+  }
+
+  /**
+   * updates the processing rate from the number of messages processed since start
+   */
+  void onProcessed(long total, long nanos) {
+    if (sampledNanos != 0 && nanos - sampledNanos >= 1000000000L) {
+      final double current = (total - sampledCount) * 1e9 / (nanos - sampledNanos);
+      rate = rate == 0 ? current : RATE_WEIGHT * current + (1 - RATE_WEIGHT) * rate;
+    } else if (sampledNanos != 0) {
+      return;
+    }
+    sampledNanos = nanos;
+    sampledCount = total;
+  }
+
+  double getRate() {
+    return rate;
+  }
+
+  /**
+   * @return false while the queue has no backlog and other queues keep the processors busy
+   */
+  boolean shouldReceive(String queueUrl, long nanos) {
+    if (!adaptive || queues.size() == 1) {
+      return true;
+    }
+    final QueueState s = queues.get(queueUrl);
+    return s.backlog != 0 || !s.empty || isAllIdle() || nanos - s.lastEmptyNanos >= IDLE_RECEIVE_NANOS;
+  }
+
+  /**
+   * @param queued messages waiting in the lanes
+   * @return the number of messages to receive, 0 while the lanes hold enough
+   */
+  int getBatchSize(String queueUrl, int queued) {
+    if (!adaptive) {
+      return maxBatch;
+    }
+
+    final int room = getPrefetch() - queued;
+    if (room <= 0) {
+      return 0;
+    }
+    final long backlog = queues.get(queueUrl).backlog;
+    final int wanted = backlog > 0 ? (int) Math.min(maxBatch, backlog) : maxBatch;
+    return Math.max(1, Math.min(wanted, room));
+  }
+
+  /**
+   * @return the number of messages kept in the lanes ahead of the processors
+   */
+  int getPrefetch() {
+    final int ahead = (int) Math.ceil(rate * PREFETCH_NANOS / 1e9);
+    return Math.max(maxBatch, Math.min(laneCapacity, ahead));
+  }
+
+  /**
+   * @param idleTurns receives in a row without messages from any queue
+   */
+  int getWaitSeconds(String queueUrl, int idleTurns) {
+    if (!adaptive) {
+      return queues.size() == 1 ? maxWaitSec : (idleTurns >= queues.size() ? 1 : 0);
+    }
+
+    if (queues.get(queueUrl).backlog > 0) {
+      return 0;
+    }
+    if (queues.size() == 1) {
+      return maxWaitSec;
+    }
+    // a long poll delays the other queues
+    return isAllIdle() ? Math.max(1, maxWaitSec / queues.size()) : 0;
+  }
+
+  /**
+   * @param queued messages waiting in the lanes ahead of the received ones
+   * @return the visibility timeout of received messages, null for the queue default
+   */
+  Integer getVisibilitySeconds(String queueUrl, int queued, int batch) {
+    final QueueState s = queues.get(queueUrl);
+    if (!adaptive || rate <= 0 || s.minVisibilitySec <= 0) {
+      return null;
+    }
+    // twice the expected wait in the lanes on top of the time configured for the queue
+    final long wait = (long) Math.ceil(2 * (queued + batch) / rate);
+    return (int) Math.min(43200, s.minVisibilitySec + wait);
+  }
+
+  private boolean isAllIdle() {
+    for (QueueState s : queues.values()) {
+      if (s.backlog != 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
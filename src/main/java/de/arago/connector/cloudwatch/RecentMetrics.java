@@ -0,0 +1,229 @@
+package de.arago.connector.cloudwatch;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * the last points of every written series in a fixed block of off-heap
+ * memory. Each series gets a slot of a ring of timestamp/value pairs on its
+ * first write, points not newer than the last point of a series are
+ * ignored. When all slots are taken further series are not kept until the
+ * slots of series which are no longer written are reclaimed.
+ */
+final class RecentMetrics {
+
+  private static final Logger LOG = Logger.getLogger(RecentMetrics.class.getName());
+  private static final int POINT_BYTES = 16;
+
+  /**
+   * aggregates of the points of a series within a time range
+   */
+  static final class Stats {
+
+    int count;
+    double min = Double.POSITIVE_INFINITY;
+    double max = Double.NEGATIVE_INFINITY;
+    double sum;
+    long first;
+    long last;
+    double lastValue;
+
+    double avg() {
+      return count == 0 ? 0 : sum / count;
+    }
+  }
+
+  private final int maxSeries;
+  private final int points;
+  private final ByteBuffer buffer;
+  private final Map<String, Integer> slots = new ConcurrentHashMap();
+  // reclaimed slots, used before the never used ones
+  private final Deque<Integer> free = new ArrayDeque();
+  private int used;
+  private final int[] next;
+  private final int[] size;
+  private final long[] lastTimestamp;
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+  private int dropped;
+
+  /**
+   * @param maxSeries number of series kept
+   * @param points number of points kept per series
+   */
+  RecentMetrics(int maxSeries, int points) {
+    if ((long) maxSeries * points * POINT_BYTES > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("recent metrics too large: " + maxSeries + " series of " + points + " points");
+    }
+    this.maxSeries = maxSeries;
+    this.points = points;
+    this.buffer = ByteBuffer.allocateDirect(maxSeries * points * POINT_BYTES);
+    this.next = new int[maxSeries];
+    this.size = new int[maxSeries];
+    this.lastTimestamp = new long[maxSeries];
+  }
+
+  void add(String series, long timestamp, double value) {
+    lock.writeLock().lock();
+    try {
+      Integer slot = slots.get(series);
+      if (slot == null) {
+        if (!free.isEmpty()) {
+          slot = free.poll();
+        } else if (used < maxSeries) {
+          slot = used++;
+        } else {
+          if (dropped++ == 0) {
+            LOG.log(Level.WARNING, "recent metrics full with {0} series, further series are not kept", maxSeries);
+          }
+          return;
+        }
+        next[slot] = 0;
+        size[slot] = 0;
+        lastTimestamp[slot] = 0;
+        slots.put(series, slot);
+      } else if (timestamp <= lastTimestamp[slot]) {
+        return;
+      }
+
+      final int offset = (slot * points + next[slot]) * POINT_BYTES;
+      buffer.putLong(offset, timestamp);
+      buffer.putDouble(offset + 8, value);
+      next[slot] = (next[slot] + 1) % points;
+      size[slot] = Math.min(points, size[slot] + 1);
+      lastTimestamp[slot] = timestamp;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * @return the points of a series within [from, to] as {timestamp, value} in time order, null for an unknown series
+   */
+  List<Object[]> getRange(String series, long from, long to) {
+    final List<Object[]> ret = new ArrayList();
+    lock.readLock().lock();
+    try {
+      final Integer slot = slots.get(series);
+      if (slot == null) {
+        return null;
+      }
+
+      final int n = size[slot];
+      for (int i = 0; i < n; ++i) {
+        final int offset = (slot * points + (next[slot] - n + i + points) % points) * POINT_BYTES;
+        final long t = buffer.getLong(offset);
+        if (t >= from && t <= to) {
+          ret.add(new Object[]{t, buffer.getDouble(offset + 8)});
+        }
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+    return ret;
+  }
+
+  /**
+   * @return the aggregates of a series within [from, to], null for an unknown series
+   */
+  Stats getStats(String series, long from, long to) {
+    final Stats ret = new Stats();
+    lock.readLock().lock();
+    try {
+      final Integer slot = slots.get(series);
+      if (slot == null) {
+        return null;
+      }
+
+      final int n = size[slot];
+      for (int i = 0; i < n; ++i) {
+        final int offset = (slot * points + (next[slot] - n + i + points) % points) * POINT_BYTES;
+        final long t = buffer.getLong(offset);
+        if (t < from || t > to) {
+          continue;
+        }
+
+        final double v = buffer.getDouble(offset + 8);
+        if (ret.count++ == 0) {
+          ret.first = t;
+        }
+        ret.last = t;
+        ret.lastValue = v;
+        ret.sum += v;
+        ret.min = Math.min(ret.min, v);
+        ret.max = Math.max(ret.max, v);
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+    return ret;
+  }
+
+  /**
+   * reclaims the slots of all series not in keep
+   */
+  void retain(final Set<String> keep) {
+    lock.writeLock().lock();
+    try {
+      final Iterator<Map.Entry<String, Integer>> it = slots.entrySet().iterator();
+      while (it.hasNext()) {
+        final Map.Entry<String, Integer> e = it.next();
+        if (!keep.contains(e.getKey())) {
+          free.add(e.getValue());
+          it.remove();
+        }
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * reclaims the slots of all series without a point since oldest, for
+   * sources which do not list their series
+   *
+   * @return the number of reclaimed slots
+   */
+  int expire(long oldest) {
+    int ret = 0;
+    lock.writeLock().lock();
+    try {
+      final Iterator<Map.Entry<String, Integer>> it = slots.entrySet().iterator();
+      while (it.hasNext()) {
+        final Map.Entry<String, Integer> e = it.next();
+        if (lastTimestamp[e.getValue()] < oldest) {
+          free.add(e.getValue());
+          it.remove();
+          ++ret;
+        }
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+    return ret;
+  }
+
+  /**
+   * @return the names of the kept series starting with prefix
+   */
+  List<String> getSeries(String prefix) {
+    final TreeSet<String> ret = new TreeSet();
+    for (String s : slots.keySet()) {
+      if (s.startsWith(prefix)) {
+        ret.add(s);
+      }
+    }
+    return new ArrayList(ret);
+  }
+}
@@ -0,0 +1,217 @@
+package de.arago.connector.cloudwatch;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import net.minidev.json.JSONValue;
+
+/**
+ * local HTTP endpoint answering queries on the recently written points, so
+ * automation does not have to ask CloudWatch or HIRO again for them.
+ *
+ * <pre>
+ * GET path?node=i-1                                     series of the node
+ * GET path?node=i-1&amp;series=CPUUtilization                 latest point
+ * GET path?node=i-1&amp;series=CPUUtilization&amp;op=range      points within from, to (ms)
+ * GET path?node=i-1&amp;series=CPUUtilization&amp;op=stats      count, min, max, avg, sum within from, to (ms)
+ * </pre>
+ */
+public class RecentMetricsEndpoint implements Closeable, HttpHandler {
+
+  private static final Logger LOG = Logger.getLogger(RecentMetricsEndpoint.class.getName());
+
+  private final String bind;
+  private final int port;
+  private final String path;
+  private final RecentMetrics metrics;
+  private HttpServer server;
+
+  RecentMetricsEndpoint(String bind, int port, String path, final RecentMetrics metrics) {
+    this.bind = bind;
+    this.port = port;
+    this.path = path;
+    this.metrics = metrics;
+  }
+
+  /**
+   * @return the endpoint configured in cloudwatch.recent or null if disabled
+   */
+  static RecentMetricsEndpoint fromConfig(final YamlConfig c) {
+    if (!(Boolean) c.get("cloudwatch.recent.enabled", false)) {
+      return null;
+    }
+
+    return new RecentMetricsEndpoint(
+      (String) c.get("cloudwatch.recent.bind", "127.0.0.1"),
+      (Integer) c.get("cloudwatch.recent.port", 8081),
+      (String) c.get("cloudwatch.recent.path", "/recent"),
+      new RecentMetrics(
+        (Integer) c.get("cloudwatch.recent.max-series", 10000),
+        (Integer) c.get("cloudwatch.recent.points", 64)));
+  }
+
+  RecentMetrics getMetrics() {
+    return metrics;
+  }
+
+  public void start() throws IOException {
+    server = HttpServer.create(new InetSocketAddress(bind, port), 0);
+    server.createContext(path, this);
+    server.start();
+    LOG.log(Level.INFO, "recent metrics endpoint listening on {0}:{1}", new Object[]{bind, getPort() + ""});
+  }
+
+  int getPort() {
+    return server.getAddress().getPort();
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (server != null) {
+      server.stop(0);
+    }
+  }
+
+  @Override
+  public void handle(HttpExchange ex) throws IOException {
+    try {
+      if (!"GET".equals(ex.getRequestMethod())) {
+        respond(ex, 405, error("method not allowed"));
+        return;
+      }
+
+      final Map<String, String> q = parseQuery(ex.getRequestURI().getRawQuery());
+      final String node = q.get("node");
+      final String series = q.get("series");
+      if (node == null) {
+        respond(ex, 400, error("node missing"));
+        return;
+      }
+
+      if (series == null) {
+        final List<String> names = new ArrayList();
+        for (String s : metrics.getSeries(node + "|")) {
+          names.add(s.substring(node.length() + 1));
+        }
+        final Map body = new HashMap();
+        body.put("node", node);
+        body.put("series", names);
+        respond(ex, 200, body);
+        return;
+      }
+
+      final String op = q.containsKey("op") ? q.get("op") : "latest";
+      final long from = q.containsKey("from") ? Long.parseLong(q.get("from")) : 0;
+      final long to = q.containsKey("to") ? Long.parseLong(q.get("to")) : Long.MAX_VALUE;
+      final Object body = query(node + "|" + series, op, from, to);
+      if (body == null) {
+        respond(ex, 404, error("unknown series: " + series));
+      } else {
+        respond(ex, 200, body);
+      }
+    } catch (IllegalArgumentException t) {
+      respond(ex, 400, error(t.getMessage() + ""));
+    } catch (Throwable t) {
+      LOG.log(Level.WARNING, "could not answer recent metrics query: " + ex.getRequestURI(), t);
+      respond(ex, 500, error(t.getMessage() + ""));
+    } finally {
+      ex.close();
+    }
+  }
+
+  private Object query(String key, String op, long from, long to) {
+    switch (op) {
+      case "latest": {
+        final RecentMetrics.Stats s = metrics.getStats(key, from, to);
+        if (s == null) {
+          return null;
+        }
+
+        final Map ret = new HashMap();
+        if (s.count > 0) {
+          ret.put("timestamp", s.last);
+          ret.put("value", s.lastValue);
+        }
+        return ret;
+      }
+      case "range": {
+        final List<Object[]> points = metrics.getRange(key, from, to);
+        if (points == null) {
+          return null;
+        }
+
+        final List ret = new ArrayList();
+        for (Object[] p : points) {
+          final Map m = new HashMap();
+          m.put("timestamp", p[0]);
+          m.put("value", p[1]);
+          ret.add(m);
+        }
+        return ret;
+      }
+      case "stats": {
+        final RecentMetrics.Stats s = metrics.getStats(key, from, to);
+        if (s == null) {
+          return null;
+        }
+
+        final Map ret = new HashMap();
+        ret.put("count", s.count);
+        if (s.count > 0) {
+          ret.put("from", s.first);
+          ret.put("to", s.last);
+          ret.put("min", s.min);
+          ret.put("max", s.max);
+          ret.put("avg", s.avg());
+          ret.put("sum", s.sum);
+        }
+        return ret;
+      }
+      default:
+        throw new IllegalArgumentException("invalid op: " + op);
+    }
+  }
+
+  static Map<String, String> parseQuery(String query) throws UnsupportedEncodingException {
+    final Map<String, String> ret = new HashMap();
+    if (query == null) {
+      return ret;
+    }
+
+    for (String p : query.split("&")) {
+      final int i = p.indexOf('=');
+      if (i > 0) {
+        ret.put(URLDecoder.decode(p.substring(0, i), "UTF-8"), URLDecoder.decode(p.substring(i + 1), "UTF-8"));
+      }
+    }
+    return ret;
+  }
+
+  private static Map error(String message) {
+    final Map ret = new HashMap();
+    ret.put("errorMessage", message);
+    return ret;
+  }
+
+  private static void respond(HttpExchange ex, int code, Object body) throws IOException {
+    final byte[] out = JSONValue.toJSONString(body).getBytes(StandardCharsets.UTF_8);
+    ex.getResponseHeaders().set("Content-Type", "application/json");
+    ex.sendResponseHeaders(code, out.length);
+    try (OutputStream os = ex.getResponseBody()) {
+      os.write(out);
+    }
+  }
+}
@@ -0,0 +1,243 @@
+package de.arago.connector.cloudwatch;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * threshold rules evaluated on the datapoints of every stored series. Each
+ * rule keeps a rolling window per series with running sums, so a point is
+ * evaluated in constant time. A rule fires once when its condition starts
+ * to hold and is re-armed when it no longer holds.
+ */
+final class RuleEngine {
+
+  private static final Logger LOG = Logger.getLogger(RuleEngine.class.getName());
+
+  /**
+   * receives the alarms of fired rules
+   */
+  interface IssueSink {
+
+    /**
+     * @return false if the issue could not be raised, the rule fires again on the next point
+     */
+    boolean raise(CloudWatchAlarmMessage alarm) throws Exception;
+  }
+
+  /**
+   * one configured rule
+   */
+  static final class Rule {
+
+    final String name;
+    final String namespace;
+    final String metric;
+    final String statistic;
+    final int window;
+    final String operator;
+    final double threshold;
+
+    Rule(String name, String namespace, String metric, String statistic, int window, String operator, double threshold) {
+      if (name == null || metric == null) {
+        throw new IllegalArgumentException("rule without name or metric");
+      }
+      if (!Arrays.asList("value", "mean", "stddev").contains(statistic)) {
+        throw new IllegalArgumentException("invalid statistic of rule " + name + ": " + statistic);
+      }
+      if (!Arrays.asList(">", ">=", "<", "<=").contains(operator)) {
+        throw new IllegalArgumentException("invalid operator of rule " + name + ": " + operator);
+      }
+      this.name = name;
+      this.namespace = namespace;
+      this.metric = metric;
+      this.statistic = statistic;
+      this.window = "value".equals(statistic) ? 1 : Math.max(1, window);
+      this.operator = operator;
+      this.threshold = threshold;
+    }
+
+    boolean matches(String namespace, String metricName) {
+      return metric.equals(metricName) && (this.namespace == null || this.namespace.equals(namespace));
+    }
+
+    boolean holds(double v) {
+      switch (operator) {
+        case ">":
+          return v > threshold;
+        case ">=":
+          return v >= threshold;
+        case "<":
+          return v < threshold;
+        default:
+          return v <= threshold;
+      }
+    }
+
+    @Override
+    public String toString() {
+      return name + ": " + metric + " " + statistic + (window > 1 ? "(" + window + ")" : "") + " " + operator + " " + threshold;
+    }
+  }
+
+  /**
+   * rolling window of one rule on one series
+   */
+  static final class Window {
+
+    private final double[] values;
+    private int next;
+    private int size;
+    private double sum;
+    private double sumSquares;
+    // points fetched again from the watermark on are not added twice
+    long lastTimestamp = Long.MIN_VALUE;
+    boolean fired;
+
+    Window(int size) {
+      values = new double[size];
+    }
+
+    void add(double v) {
+      if (size == values.length) {
+        final double old = values[next];
+        sum -= old;
+        sumSquares -= old * old;
+      } else {
+        ++size;
+      }
+      values[next] = v;
+      sum += v;
+      sumSquares += v * v;
+      next = (next + 1) % values.length;
+
+      if (next == 0) {
+        // keeps rounding errors of the running sums from adding up
+        sum = 0;
+        sumSquares = 0;
+        for (int i = 0; i < size; ++i) {
+          sum += values[i];
+          sumSquares += values[i] * values[i];
+        }
+      }
+    }
+
+    boolean isFull() {
+      return size == values.length;
+    }
+
+    double mean() {
+      return size == 0 ? 0 : sum / size;
+    }
+
+    double stddev() {
+      if (size == 0) {
+        return 0;
+      }
+      final double m = mean();
+      return Math.sqrt(Math.max(0, sumSquares / size - m * m));
+    }
+  }
+
+  private final List<Rule> rules;
+  // series key -> rule name -> window
+  private final Map<String, Map<String, Window>> windows = new HashMap();
+
+  RuleEngine(final List<Rule> rules) {
+    this.rules = rules;
+  }
+
+  List<Rule> getRules() {
+    return rules;
+  }
+
+  static List<Rule> parse(final List<Map> config) {
+    if (config == null) {
+      return Collections.emptyList();
+    }
+
+    final List<Rule> ret = new ArrayList();
+    for (Map r : config) {
+      final Object threshold = r.get("threshold");
+      final Object window = r.get("window");
+      ret.add(new Rule(
+        (String) r.get("name"),
+        (String) r.get("namespace"),
+        (String) r.get("metric"),
+        r.get("statistic") == null ? "value" : (String) r.get("statistic"),
+        window instanceof Integer ? (Integer) window : 1,
+        r.get("operator") == null ? ">" : (String) r.get("operator"),
+        threshold instanceof Number ? ((Number) threshold).doubleValue() : Double.parseDouble(threshold + "")));
+    }
+    return Collections.unmodifiableList(ret);
+  }
+
+  /**
+   * adds one point of a series to the windows of the matching rules, points
+   * not newer than the last one of a window are ignored
+   *
+   * @return the rules which start to hold with this point, with the evaluated statistic
+   */
+  synchronized Map<Rule, Double> evaluate(String namespace, String metricName, String seriesKey, long timestamp, double value) {
+    Map<Rule, Double> ret = null;
+    for (Rule rule : rules) {
+      if (!rule.matches(namespace, metricName)) {
+        continue;
+      }
+
+      Map<String, Window> series = windows.get(seriesKey);
+      if (series == null) {
+        series = new HashMap();
+        windows.put(seriesKey, series);
+      }
+      Window w = series.get(rule.name);
+      if (w == null) {
+        w = new Window(rule.window);
+        series.put(rule.name, w);
+      }
+      if (timestamp <= w.lastTimestamp) {
+        continue;
+      }
+      w.lastTimestamp = timestamp;
+      w.add(value);
+      if (!w.isFull()) {
+        continue;
+      }
+
+      final double v = "stddev".equals(rule.statistic) ? w.stddev() : w.mean();
+      if (!rule.holds(v)) {
+        w.fired = false;
+      } else if (!w.fired) {
+        if (ret == null) {
+          ret = new HashMap();
+        }
+        ret.put(rule, v);
+      }
+    }
+    return ret == null ? Collections.<Rule, Double>emptyMap() : ret;
+  }
+
+  /**
+   * marks a rule as fired for a series, it fires again after its condition stopped to hold
+   */
+  synchronized void onFired(Rule rule, String seriesKey) {
+    final Map<String, Window> series = windows.get(seriesKey);
+    if (series != null && series.containsKey(rule.name)) {
+      series.get(rule.name).fired = true;
+    }
+    LOG.log(Level.FINE, "rule fired: {0} on {1}", new Object[]{rule, seriesKey});
+  }
+
+  /**
+   * drops the windows of all series not in seriesKeys
+   */
+  synchronized void retain(final Set<String> seriesKeys) {
+    windows.keySet().retainAll(seriesKeys);
+  }
+}
@@ -0,0 +1,105 @@
+package de.arago.connector.cloudwatch;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * fetch statistics of the polled series. A series which returned no
+ * datapoints for several fetches in a row is fetched less often, the pause
+ * doubles with every further empty fetch. The fetch after a pause is a
+ * probe, a series returning data again is fetched every cycle. Statistics
+ * of series which are no longer listed are dropped, so a series listed
+ * again starts without back-off.
+ */
+final class SeriesBackoff {
+
+  /**
+   * statistics of one series
+   */
+  static final class Stats {
+
+    int fetches;
+    int empty;
+    long lastData;
+    long nextFetch;
+  }
+
+  private final Map<String, Stats> series = new HashMap();
+  private final int threshold;
+  private final long baseMs;
+  private final long maxMs;
+
+  /**
+   * @param threshold number of empty fetches in a row before the series is paused
+   * @param baseMs first pause
+   * @param maxMs longest pause
+   */
+  SeriesBackoff(int threshold, long baseMs, long maxMs) {
+    this.threshold = threshold;
+    this.baseMs = baseMs;
+    this.maxMs = maxMs;
+  }
+
+  static SeriesBackoff fromConfig(final YamlConfig c) {
+    if (!(Boolean) c.get("cloudwatch.backoff.enabled", true)) {
+      return null;
+    }
+    return new SeriesBackoff(
+      (Integer) c.get("cloudwatch.backoff.empty-threshold", 3),
+      1000L * (Integer) c.get("cloudwatch.poll-interval-sec", 300),
+      1000L * (Integer) c.get("cloudwatch.backoff.max-sec", 21600));
+  }
+
+  boolean isDue(String key, long now) {
+    final Stats s = series.get(key);
+    return s == null || s.nextFetch <= now;
+  }
+
+  void onFetch(String key, boolean data, long now) {
+    Stats s = series.get(key);
+    if (s == null) {
+      s = new Stats();
+      series.put(key, s);
+    }
+
+    ++s.fetches;
+    if (data) {
+      s.empty = 0;
+      s.lastData = now;
+      s.nextFetch = 0;
+      return;
+    }
+
+    ++s.empty;
+    if (s.empty >= threshold) {
+      s.nextFetch = now + Math.min(maxMs, baseMs << Math.min(s.empty - threshold, 20));
+    }
+  }
+
+  /**
+   * drops the statistics of all series not in keys
+   */
+  void retain(final Collection<String> keys) {
+    series.keySet().retainAll(keys instanceof Set ? keys : new HashSet(keys));
+  }
+
+  Stats getStats(String key) {
+    return series.get(key);
+  }
+
+  /**
+   * @return the number of series which are paused at the given time
+   */
+  int countPaused(long now) {
+    int ret = 0;
+    for (Stats s : series.values()) {
+      if (s.nextFetch > now) {
+        ++ret;
+      }
+    }
+    return ret;
+  }
+}
@@ -0,0 +1,125 @@
+package de.arago.connector.cloudwatch;
+
+import com.amazonaws.services.cloudwatch.model.Dimension;
+import com.amazonaws.services.cloudwatch.model.Metric;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * resolves each listed CloudWatch metric once into a series descriptor, so
+ * the poll loop does not rebuild names, keys and settings lookups of every
+ * series in every cycle. The registry belongs to one settings snapshot and
+ * is replaced with it.
+ */
+final class SeriesRegistry {
+
+  /**
+   * a series of one metric with the names and settings it is fetched and stored with
+   */
+  static final class Series {
+
+    final String namespace;
+    final DimensionMapping mapping;
+    final Metric metric;
+    final String metricName;
+    final List<Dimension> dimensions;
+    final String instanceId;
+    // name of the timeseries vertex
+    final String name;
+    // namespace|instance|name, key of the back-off
+    final String key;
+    // instance|name, key of the rules and the recent metrics
+    final String seriesKey;
+    final boolean allowed;
+    final int periodity;
+    final String periodityParam;
+    final String statistic;
+    private volatile String tsid;
+
+    Series(String namespace, DimensionMapping mapping, Metric metric, String metricName, String instanceId, final MonitorSettings settings) {
+      this.namespace = namespace;
+      this.mapping = mapping;
+      this.metric = metric;
+      this.metricName = metricName;
+      this.dimensions = metric.getDimensions();
+      this.instanceId = instanceId;
+      this.name = mapping.getSeriesName(metricName, dimensions);
+      this.key = namespace + "|" + instanceId + "|" + name;
+      this.seriesKey = instanceId + "|" + name;
+      this.allowed = settings.isAllowedMetricName(metricName);
+      this.periodity = settings.getPeriodity(metricName);
+      this.periodityParam = periodity + "";
+      this.statistic = settings.getTransform(metricName);
+    }
+
+    /**
+     * @return the id of the timeseries vertex, null until it was found or created
+     */
+    String getTsid() {
+      return tsid;
+    }
+
+    void setTsid(String tsid) {
+      this.tsid = tsid;
+    }
+
+    @Override
+    public String toString() {
+      return key;
+    }
+  }
+
+  private final MonitorSettings settings;
+  private final Map<Metric, Series> series = new ConcurrentHashMap();
+  // instance ids and metric names shared by the series
+  private final Map<String, String> names = new ConcurrentHashMap();
+
+  SeriesRegistry(final MonitorSettings settings) {
+    this.settings = settings;
+  }
+
+  MonitorSettings getSettings() {
+    return settings;
+  }
+
+  /**
+   * @return the series of the metric, resolved on first use
+   */
+  Series get(String namespace, final DimensionMapping mapping, final Metric metric) {
+    Series ret = series.get(metric);
+    if (ret == null || ret.mapping != mapping || !ret.namespace.equals(namespace)) {
+      ret = new Series(namespace, mapping, metric, intern(metric.getMetricName()), intern(mapping.getNodeKey(metric.getDimensions())), settings);
+      series.put(metric, ret);
+    }
+    return ret;
+  }
+
+  /**
+   * drops the series whose key is not in keys, e.g. after their metric was no longer listed
+   */
+  void retain(final Set<String> keys) {
+    final Iterator<Series> it = series.values().iterator();
+    while (it.hasNext()) {
+      if (!keys.contains(it.next().key)) {
+        it.remove();
+      }
+    }
+    names.clear();
+    for (Series s : series.values()) {
+      names.put(s.metricName, s.metricName);
+      names.put(s.instanceId, s.instanceId);
+    }
+  }
+
+  int size() {
+    return series.size();
+  }
+
+  private String intern(String s) {
+    final String ret = names.putIfAbsent(s, s);
+    return ret == null ? s : ret;
+  }
+}
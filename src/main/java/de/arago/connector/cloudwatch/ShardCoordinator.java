@@ -0,0 +1,113 @@
+package de.arago.connector.cloudwatch;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * assigns node keys to connector replicas. Each replica sends heartbeats
+ * to the membership backend and rebuilds its ring when members join or
+ * leave; a replica only polls the keys it owns on the current ring.
+ */
+public class ShardCoordinator implements Closeable, Runnable {
+
+  private static final Logger LOG = Logger.getLogger(ShardCoordinator.class.getName());
+
+  private final ShardMembership membership;
+  private final String memberId;
+  private final long ttlMs;
+  private final int virtualNodes;
+  private volatile ShardRing ring;
+  private Thread worker;
+
+  public ShardCoordinator(ShardMembership membership, String memberId, long ttlMs, int virtualNodes) {
+    this.membership = membership;
+    this.memberId = memberId;
+    this.ttlMs = ttlMs;
+    this.virtualNodes = virtualNodes;
+    this.ring = new ShardRing(Collections.singleton(memberId), virtualNodes);
+  }
+
+  /**
+   * @return the coordinator configured in cloudwatch.sharding or null if sharding is disabled
+   */
+  static ShardCoordinator fromConfig(final YamlConfig c) {
+    if (!(Boolean) c.get("cloudwatch.sharding.enabled", false)) {
+      return null;
+    }
+
+    final String backend = c.get("cloudwatch.sharding.backend", "file");
+    final ShardMembership membership;
+    if ("memory".equals(backend)) {
+      membership = new InMemoryShardMembership();
+    } else if ("file".equals(backend)) {
+      membership = new FileShardMembership(new File((String) c.get("cloudwatch.sharding.directory", "/opt/arago/shards")));
+    } else {
+      throw new IllegalArgumentException("unknown sharding backend: " + backend);
+    }
+
+    final String memberId = c.get("cloudwatch.sharding.member-id", ManagementFactory.getRuntimeMXBean().getName());
+    final int ttl = c.get("cloudwatch.sharding.member-ttl-sec", 60);
+    final int vnodes = c.get("cloudwatch.sharding.virtual-nodes", 64);
+    return new ShardCoordinator(membership, memberId, 1000L * ttl, vnodes);
+  }
+
+  public void start() {
+    refresh();
+    worker = new Thread(this, "shard-coordinator");
+    worker.setDaemon(true);
+    worker.start();
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (worker != null) {
+      worker.interrupt();
+    }
+    membership.leave(memberId);
+  }
+
+  @Override
+  public void run() {
+    while (!Thread.currentThread().isInterrupted()) {
+      try {
+        Thread.sleep(ttlMs / 3);
+      } catch (InterruptedException ex) {
+        break;
+      }
+      refresh();
+    }
+  }
+
+  boolean owns(String key) {
+    return memberId.equals(ring.ownerOf(key));
+  }
+
+  String getMemberId() {
+    return memberId;
+  }
+
+  Set<String> getMembers() {
+    return ring.getMembers();
+  }
+
+  void refresh() {
+    try {
+      membership.heartbeat(memberId);
+      final Set<String> live = new HashSet(membership.getMembers(ttlMs));
+      live.add(memberId);
+      if (!live.equals(ring.getMembers())) {
+        LOG.log(Level.INFO, "rebalancing shards, members: {0}", live);
+        ring = new ShardRing(live, virtualNodes);
+      }
+    } catch (Throwable t) {
+      LOG.log(Level.WARNING, "could not refresh shard membership, keeping members: " + ring.getMembers(), t);
+    }
+  }
+}
@@ -0,0 +1,22 @@
+package de.arago.connector.cloudwatch;
+
+import java.io.IOException;
+import java.util.Set;
+
+/**
+ * backend tracking the live connector replicas taking part in sharding
+ */
+public interface ShardMembership {
+
+  /**
+   * registers the member or renews its registration
+   */
+  void heartbeat(String memberId) throws IOException;
+
+  void leave(String memberId) throws IOException;
+
+  /**
+   * @return members with a heartbeat not older than ttlMs
+   */
+  Set<String> getMembers(long ttlMs) throws IOException;
+}
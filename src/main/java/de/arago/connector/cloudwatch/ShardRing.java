@@ -0,0 +1,59 @@
+package de.arago.connector.cloudwatch;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * immutable consistent hash ring over the live members. Every member is
+ * placed on the ring several times, so keys spread evenly and only the
+ * keys of a joining or leaving member change owner.
+ */
+final class ShardRing {
+
+  private final TreeMap<Long, String> ring = new TreeMap();
+  private final Set<String> members;
+
+  ShardRing(Collection<String> members, int virtualNodes) {
+    this.members = Collections.unmodifiableSet(new TreeSet(members));
+    for (String m : this.members) {
+      for (int i = 0; i < virtualNodes; ++i) {
+        ring.put(hash(m + "#" + i), m);
+      }
+    }
+  }
+
+  Set<String> getMembers() {
+    return members;
+  }
+
+  String ownerOf(String key) {
+    if (ring.isEmpty()) {
+      return null;
+    }
+    Map.Entry<Long, String> e = ring.ceilingEntry(hash(key));
+    if (e == null) {
+      e = ring.firstEntry();
+    }
+    return e.getValue();
+  }
+
+  /**
+   * 64 bit FNV-1a with a final mix, stable across processes
+   */
+  static long hash(String s) {
+    long h = 0xcbf29ce484222325L;
+    for (byte b : s.getBytes(StandardCharsets.UTF_8)) {
+      h ^= b & 0xff;
+      h *= 0x100000001b3L;
+    }
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    return h;
+  }
+}
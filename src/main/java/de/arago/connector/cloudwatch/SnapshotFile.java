@@ -0,0 +1,119 @@
+package de.arago.connector.cloudwatch;
+
+import com.amazonaws.services.cloudwatch.model.Dimension;
+import com.amazonaws.services.cloudwatch.model.Metric;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import net.minidev.json.JSONValue;
+
+/**
+ * local JSON file holding discovery state of a worker, so a restarted
+ * connector can work with it while the state is refreshed from HIRO and
+ * CloudWatch.
+ */
+final class SnapshotFile {
+
+  private static final Logger LOG = Logger.getLogger(SnapshotFile.class.getName());
+
+  private final File file;
+  private final long maxAgeMs;
+
+  SnapshotFile(File file, long maxAgeMs) {
+    this.file = file;
+    this.maxAgeMs = maxAgeMs;
+  }
+
+  /**
+   * @return the snapshot configured in the snapshot section for the given name or null if snapshots are disabled
+   */
+  static SnapshotFile fromConfig(final YamlConfig c, String name) {
+    if (!(Boolean) c.get("snapshot.enabled", false)) {
+      return null;
+    }
+    return new SnapshotFile(new File((String) c.get("snapshot.directory", "/opt/arago/snapshot"), name + ".json"),
+      1000L * (Integer) c.get("snapshot.max-age-sec", 86400));
+  }
+
+  /**
+   * @return the stored state or null if there is none or it is too old
+   */
+  Map read() {
+    if (!file.exists()) {
+      return null;
+    }
+
+    if (System.currentTimeMillis() - file.lastModified() > maxAgeMs) {
+      LOG.log(Level.INFO, "ignoring outdated snapshot: {0}", file);
+      return null;
+    }
+
+    try (Reader r = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+      final Object o = JSONValue.parse(r);
+      if (o instanceof Map) {
+        return (Map) o;
+      }
+      LOG.log(Level.WARNING, "ignoring invalid snapshot: {0}", file);
+    } catch (Throwable t) {
+      LOG.log(Level.WARNING, "could not read snapshot: " + file, t);
+    }
+    return null;
+  }
+
+  void write(final Map data) {
+    final File tmp = new File(file.getPath() + ".tmp");
+    try {
+      final File dir = file.getAbsoluteFile().getParentFile();
+      if (!dir.isDirectory() && !dir.mkdirs()) {
+        throw new IOException("can not create snapshot directory: " + dir);
+      }
+
+      try (Writer w = new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8)) {
+        w.write(JSONValue.toJSONString(data));
+      }
+      if (!tmp.renameTo(file)) {
+        throw new IOException("can not replace " + file);
+      }
+    } catch (Throwable t) {
+      LOG.log(Level.WARNING, "could not write snapshot: " + file, t);
+    }
+  }
+
+  static Map encodeMetric(final Metric m) {
+    final List<List<String>> dims = new ArrayList();
+    for (Dimension d : m.getDimensions()) {
+      dims.add(Arrays.asList(d.getName(), d.getValue()));
+    }
+
+    final Map ret = new HashMap();
+    ret.put("namespace", m.getNamespace());
+    ret.put("name", m.getMetricName());
+    ret.put("dimensions", dims);
+    return ret;
+  }
+
+  static Metric decodeMetric(final Map m) {
+    final List<Dimension> dims = new ArrayList();
+    for (Object o : (List) m.get("dimensions")) {
+      final List d = (List) o;
+      dims.add(new Dimension().withName((String) d.get(0)).withValue((String) d.get(1)));
+    }
+    return new Metric()
+      .withNamespace((String) m.get("namespace"))
+      .withMetricName((String) m.get("name"))
+      .withDimensions(dims);
+  }
+}
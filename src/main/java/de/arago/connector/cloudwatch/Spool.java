@@ -0,0 +1,275 @@
+package de.arago.connector.cloudwatch;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import net.minidev.json.JSONValue;
+
+/**
+ * bounded write-ahead spool for writes which could not be delivered to
+ * HIRO. Entries are appended as JSON lines to numbered segment files, a
+ * cursor file records how far the spool was replayed. Fully replayed
+ * segments are deleted; when the spool grows beyond its limit the oldest
+ * segment is dropped.
+ */
+public class Spool implements Closeable {
+
+  private static final Logger LOG = Logger.getLogger(Spool.class.getName());
+  private static final String SUFFIX = ".spool";
+  private static final String CURSOR_FILE = "cursor";
+  private static final int REPLAY_BATCH = 256;
+
+  /**
+   * delivers one spooled entry
+   */
+  public interface Handler {
+
+    /**
+     * @return false if the entry could not be delivered and is tried again
+     * later, replay stops there. An entry which can never be delivered is
+     * moved away or dropped by the handler, which returns true then.
+     */
+    boolean replay(Map entry);
+  }
+
+  private final File directory;
+  private final long segmentBytes;
+  private final long maxBytes;
+  // segment number -> size in bytes
+  private final TreeMap<Long, Long> segments = new TreeMap();
+  // only one replay at a time, appends do not wait for it
+  private final Object replaying = new Object();
+  private FileOutputStream out;
+  private long cursorSegment;
+  private long cursorOffset;
+
+  public Spool(File directory, long segmentBytes, long maxBytes) throws IOException {
+    this.directory = directory;
+    this.segmentBytes = segmentBytes;
+    this.maxBytes = maxBytes;
+
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("can not create spool directory: " + directory);
+    }
+
+    final File[] files = directory.listFiles();
+    if (files != null) {
+      for (File f : files) {
+        final String name = f.getName();
+        if (name.endsWith(SUFFIX)) {
+          segments.put(Long.parseLong(name.substring(0, name.length() - SUFFIX.length())), f.length());
+        }
+      }
+    }
+    readCursor();
+
+    if (!segments.isEmpty()) {
+      LOG.log(Level.INFO, "spool {0} contains {1} bytes", new Object[]{directory, size()});
+    }
+  }
+
+  /**
+   * @return the spool configured in the spool section for the given name or null if spooling is disabled
+   */
+  static Spool fromConfig(final YamlConfig c, String name) {
+    if (!(Boolean) c.get("spool.enabled", false)) {
+      return null;
+    }
+
+    final File dir = new File((String) c.get("spool.directory", "/opt/arago/spool"), name);
+    final long segment = 1024L * 1024 * (Integer) c.get("spool.segment-mb", 16);
+    final long max = 1024L * 1024 * (Integer) c.get("spool.max-mb", 512);
+    try {
+      return new Spool(dir, segment, max);
+    } catch (IOException ex) {
+      throw new IllegalStateException("could not open spool: " + dir, ex);
+    }
+  }
+
+  public synchronized boolean isEmpty() {
+    return segments.isEmpty() || (segments.size() == 1 && cursorSegment == segments.firstKey() && cursorOffset >= segments.firstEntry().getValue());
+  }
+
+  public synchronized long size() {
+    long ret = 0;
+    for (long s : segments.values()) {
+      ret += s;
+    }
+    return ret;
+  }
+
+  public synchronized void append(Map entry) throws IOException {
+    final byte[] line = (JSONValue.toJSONString(entry) + "\n").getBytes(StandardCharsets.UTF_8);
+
+    if (out == null || segments.lastEntry().getValue() + line.length > segmentBytes) {
+      roll();
+    }
+
+    out.write(line);
+    out.getChannel().force(false);
+    final Map.Entry<Long, Long> last = segments.lastEntry();
+    segments.put(last.getKey(), last.getValue() + line.length);
+
+    while (size() > maxBytes && segments.size() > 1) {
+      final long oldest = segments.firstKey();
+      LOG.log(Level.WARNING, "spool {0} is full, dropping {1} bytes", new Object[]{directory, segments.get(oldest)});
+      deleteSegment(oldest);
+    }
+  }
+
+  /**
+   * replays the entries in order from the cursor on. Entries are read in
+   * batches under the lock, the handler runs without it, so appends are not
+   * blocked by a slow delivery. The cursor is written once per batch.
+   *
+   * @return the number of delivered entries
+   */
+  public int replay(Handler handler) throws IOException {
+    synchronized (replaying) {
+      int count = 0;
+      while (true) {
+        final long seq;
+        final List<Object> entries = new ArrayList();
+        final List<Long> offsets = new ArrayList();
+        synchronized (this) {
+          if (segments.isEmpty()) {
+            return count;
+          }
+          seq = segments.firstKey();
+          if (cursorSegment != seq) {
+            cursorSegment = seq;
+            cursorOffset = 0;
+          }
+          readBatch(seq, entries, offsets);
+          if (entries.isEmpty()) {
+            deleteSegment(seq);
+            continue;
+          }
+        }
+
+        boolean delivered = true;
+        long offset = -1;
+        for (int i = 0; i < entries.size(); ++i) {
+          final Object o = entries.get(i);
+          if (o instanceof Map) {
+            if (!handler.replay((Map) o)) {
+              delivered = false;
+              break;
+            }
+            ++count;
+          } else if (o != null) {
+            LOG.log(Level.WARNING, "skipping corrupt spool entry in {0}", segmentFile(seq));
+          }
+          offset = offsets.get(i);
+        }
+
+        synchronized (this) {
+          // the segment may have been dropped by a full spool meanwhile
+          if (offset >= 0 && cursorSegment == seq && segments.containsKey(seq)) {
+            cursorOffset = offset;
+            writeCursor();
+          }
+        }
+        if (!delivered) {
+          return count;
+        }
+      }
+    }
+  }
+
+  /**
+   * reads up to one batch of entries of a segment from the cursor on, with the
+   * offset behind each entry. Corrupt lines are returned as strings, empty ones as null.
+   */
+  private void readBatch(long seq, final List<Object> entries, final List<Long> offsets) throws IOException {
+    try (FileInputStream in = new FileInputStream(segmentFile(seq))) {
+      if (cursorOffset > in.getChannel().size()) {
+        LOG.log(Level.WARNING, "spool cursor beyond end of segment {0}", segmentFile(seq));
+        return;
+      }
+      // segments are written by this class, offsets always point to a line start
+      in.getChannel().position(cursorOffset);
+      final BufferedReader r = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+      long next = cursorOffset;
+      String line;
+      while (entries.size() < REPLAY_BATCH && (line = r.readLine()) != null) {
+        next += line.getBytes(StandardCharsets.UTF_8).length + 1;
+        final Object o = line.isEmpty() ? null : JSONValue.parse(line);
+        entries.add(o instanceof Map ? o : line.isEmpty() ? null : line);
+        offsets.add(next);
+      }
+    }
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    if (out != null) {
+      out.close();
+      out = null;
+    }
+  }
+
+  private void roll() throws IOException {
+    close();
+    final long seq = segments.isEmpty() ? cursorSegment + 1 : segments.lastKey() + 1;
+    out = new FileOutputStream(segmentFile(seq), true);
+    segments.put(seq, 0L);
+  }
+
+  private void deleteSegment(long seq) throws IOException {
+    if (out != null && seq == segments.lastKey()) {
+      close();
+    }
+    segments.remove(seq);
+    if (!segmentFile(seq).delete()) {
+      LOG.log(Level.WARNING, "could not delete spool segment: {0}", segmentFile(seq));
+    }
+    if (cursorSegment == seq) {
+      cursorOffset = 0;
+      cursorSegment = segments.isEmpty() ? seq : segments.firstKey();
+      writeCursor();
+    }
+  }
+
+  private File segmentFile(long seq) {
+    return new File(directory, String.format("%012d%s", seq, SUFFIX));
+  }
+
+  private void readCursor() throws IOException {
+    final File f = new File(directory, CURSOR_FILE);
+    if (!f.exists()) {
+      cursorSegment = segments.isEmpty() ? 0 : segments.firstKey();
+      cursorOffset = 0;
+      return;
+    }
+
+    try (BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(f), StandardCharsets.UTF_8))) {
+      final String[] s = (r.readLine() + "").trim().split(" ");
+      cursorSegment = Long.parseLong(s[0]);
+      cursorOffset = Long.parseLong(s[1]);
+    } catch (RuntimeException ex) {
+      throw new IOException("invalid spool cursor: " + f, ex);
+    }
+  }
+
+  private void writeCursor() throws IOException {
+    final File tmp = new File(directory, CURSOR_FILE + ".tmp");
+    try (FileOutputStream o = new FileOutputStream(tmp)) {
+      o.write((cursorSegment + " " + cursorOffset + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+    if (!tmp.renameTo(new File(directory, CURSOR_FILE))) {
+      throw new IOException("can not write spool cursor in " + directory);
+    }
+  }
+}
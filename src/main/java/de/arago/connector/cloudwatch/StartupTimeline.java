@@ -0,0 +1,51 @@
+package de.arago.connector.cloudwatch;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * milestones of the connector start in ms since the JVM was launched, the
+ * timeline is logged when the workers are started and again with the first
+ * received message and the first stored metrics
+ */
+final class StartupTimeline {
+
+  private static final Logger LOG = Logger.getLogger(StartupTimeline.class.getName());
+  private static final Map<String, Long> MILESTONES = new LinkedHashMap();
+  private static long launched;
+
+  private StartupTimeline() {
+  }
+
+  /**
+   * records a milestone, only its first time is kept
+   *
+   * @return true if the milestone was recorded now
+   */
+  static synchronized boolean mark(String milestone) {
+    if (MILESTONES.containsKey(milestone)) {
+      return false;
+    }
+    if (launched == 0) {
+      launched = ManagementFactory.getRuntimeMXBean().getStartTime();
+    }
+    MILESTONES.put(milestone, System.currentTimeMillis() - launched);
+    return true;
+  }
+
+  /**
+   * records a milestone and logs the timeline the first time
+   */
+  static void markAndLog(String milestone) {
+    if (mark(milestone)) {
+      log();
+    }
+  }
+
+  static synchronized void log() {
+    LOG.log(Level.INFO, "startup timeline ms: {0}", MILESTONES);
+  }
+}
@@ -0,0 +1,237 @@
+package de.arago.connector.cloudwatch;
+
+import com.amazonaws.services.cloudwatch.model.Datapoint;
+import com.amazonaws.services.cloudwatch.model.Metric;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.MessageAttributeValue;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import net.minidev.json.JSONValue;
+
+/**
+ * records received SQS messages and CloudWatch datapoints as gzipped JSON
+ * lines, so the traffic can be replayed offline by {@link TrafficReplay}.
+ * Every entry is flushed, a capture of a killed connector is readable up
+ * to its last complete entry.
+ */
+public class TrafficCapture implements Closeable {
+
+  private static final Logger LOG = Logger.getLogger(TrafficCapture.class.getName());
+
+  static final String TYPE_SQS = "sqs";
+  static final String TYPE_CLOUDWATCH = "cloudwatch";
+
+  /**
+   * receives the entries of a capture
+   */
+  public interface Handler {
+
+    void onMessage(long time, String queueUrl, Message m) throws Exception;
+
+    void onDatapoints(long time, Metric metric, List<Datapoint> datapoints) throws Exception;
+  }
+
+  private final File file;
+  private OutputStream out;
+
+  public TrafficCapture(File file) throws IOException {
+    this.file = file;
+    final File dir = file.getAbsoluteFile().getParentFile();
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("can not create capture directory: " + dir);
+    }
+    out = new GZIPOutputStream(new FileOutputStream(file, false), true);
+    LOG.log(Level.INFO, "capturing traffic to {0}", file);
+  }
+
+  /**
+   * @return the capture configured in the capture section for the given worker or null if capturing is disabled
+   */
+  static TrafficCapture fromConfig(final YamlConfig c, String name) {
+    if (!(Boolean) c.get("capture.enabled", false)) {
+      return null;
+    }
+
+    final File f = new File((String) c.get("capture.directory", "/opt/arago/capture"), name + "-" + System.currentTimeMillis() + ".jsonl.gz");
+    try {
+      return new TrafficCapture(f);
+    } catch (IOException ex) {
+      throw new IllegalStateException("could not open capture: " + f, ex);
+    }
+  }
+
+  public void recordMessage(String queueUrl, final Message m) {
+    final Map attrs = new HashMap();
+    for (Map.Entry<String, MessageAttributeValue> e : m.getMessageAttributes().entrySet()) {
+      final Map a = new HashMap();
+      a.put("type", e.getValue().getDataType());
+      a.put("value", e.getValue().getStringValue());
+      attrs.put(e.getKey(), a);
+    }
+
+    final Map entry = new HashMap();
+    entry.put("type", TYPE_SQS);
+    entry.put("queue", queueUrl);
+    entry.put("id", m.getMessageId());
+    entry.put("body", m.getBody());
+    entry.put("attributes", new HashMap(m.getAttributes()));
+    entry.put("messageAttributes", attrs);
+    write(entry);
+  }
+
+  public void recordDatapoints(final Metric metric, final List<Datapoint> datapoints) {
+    final List points = new ArrayList();
+    for (Datapoint d : datapoints) {
+      final Map p = new HashMap();
+      p.put("t", d.getTimestamp().getTime());
+      p.put("avg", d.getAverage());
+      p.put("sum", d.getSum());
+      p.put("min", d.getMinimum());
+      p.put("max", d.getMaximum());
+      p.put("count", d.getSampleCount());
+      p.put("unit", d.getUnit());
+      points.add(p);
+    }
+
+    final Map entry = new HashMap();
+    entry.put("type", TYPE_CLOUDWATCH);
+    entry.put("metric", SnapshotFile.encodeMetric(metric));
+    entry.put("datapoints", points);
+    write(entry);
+  }
+
+  private synchronized void write(final Map entry) {
+    if (out == null) {
+      return;
+    }
+
+    entry.put("time", System.currentTimeMillis());
+    try {
+      out.write((JSONValue.toJSONString(entry) + "\n").getBytes(StandardCharsets.UTF_8));
+      out.flush();
+    } catch (IOException ex) {
+      LOG.log(Level.WARNING, "could not write capture, capturing stopped: " + file, ex);
+      closeQuietly();
+    }
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    if (out != null) {
+      out.close();
+      out = null;
+    }
+  }
+
+  private void closeQuietly() {
+    try {
+      close();
+    } catch (IOException ignored) {
+      out = null;
+    }
+  }
+
+  /**
+   * reads a capture in order
+   *
+   * @return the number of entries read
+   */
+  static int read(final File f, final Handler handler) throws Exception {
+    int count = 0;
+    try (BufferedReader r = new BufferedReader(new InputStreamReader(new UnfinishedGZIPInputStream(new FileInputStream(f)), StandardCharsets.UTF_8))) {
+      String line;
+      while ((line = r.readLine()) != null) {
+        final Object o = JSONValue.parse(line);
+        if (!(o instanceof Map)) {
+          continue;
+        }
+
+        final Map e = (Map) o;
+        final long time = ((Number) e.get("time")).longValue();
+        if (TYPE_SQS.equals(e.get("type"))) {
+          handler.onMessage(time, (String) e.get("queue"), decodeMessage(e));
+        } else if (TYPE_CLOUDWATCH.equals(e.get("type"))) {
+          handler.onDatapoints(time, SnapshotFile.decodeMetric((Map) e.get("metric")), decodeDatapoints((List) e.get("datapoints")));
+        }
+        ++count;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * reads the flushed part of a capture which was not closed, a truncated
+   * last entry is skipped as invalid JSON
+   */
+  private static final class UnfinishedGZIPInputStream extends GZIPInputStream {
+
+    UnfinishedGZIPInputStream(InputStream in) throws IOException {
+      super(in);
+    }
+
+    @Override
+    public int read(byte[] buf, int off, int len) throws IOException {
+      try {
+        return super.read(buf, off, len);
+      } catch (EOFException ex) {
+        return -1;
+      }
+    }
+  }
+
+  private static Message decodeMessage(final Map e) {
+    final Map<String, MessageAttributeValue> attrs = new HashMap();
+    for (Object o : ((Map) e.get("messageAttributes")).entrySet()) {
+      final Map.Entry a = (Map.Entry) o;
+      final Map v = (Map) a.getValue();
+      attrs.put((String) a.getKey(), new MessageAttributeValue()
+        .withDataType((String) v.get("type"))
+        .withStringValue((String) v.get("value")));
+    }
+
+    return new Message()
+      .withMessageId((String) e.get("id"))
+      .withReceiptHandle((String) e.get("id"))
+      .withBody((String) e.get("body"))
+      .withAttributes(new HashMap((Map) e.get("attributes")))
+      .withMessageAttributes(attrs);
+  }
+
+  private static List<Datapoint> decodeDatapoints(final List points) {
+    final List<Datapoint> ret = new ArrayList();
+    for (Object o : points) {
+      final Map p = (Map) o;
+      ret.add(new Datapoint()
+        .withTimestamp(new Date(((Number) p.get("t")).longValue()))
+        .withAverage(toDouble(p.get("avg")))
+        .withSum(toDouble(p.get("sum")))
+        .withMinimum(toDouble(p.get("min")))
+        .withMaximum(toDouble(p.get("max")))
+        .withSampleCount(toDouble(p.get("count")))
+        .withUnit((String) p.get("unit")));
+    }
+    return ret;
+  }
+
+  private static Double toDouble(Object o) {
+    return o instanceof Number ? ((Number) o).doubleValue() : null;
+  }
+}
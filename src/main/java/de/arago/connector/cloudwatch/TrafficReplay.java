@@ -0,0 +1,257 @@
+package de.arago.connector.cloudwatch;
+
+import co.arago.hiro.client.api.HiroClient;
+import com.amazonaws.services.cloudwatch.model.Datapoint;
+import com.amazonaws.services.cloudwatch.model.Metric;
+import com.amazonaws.services.sqs.model.Message;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * replays captures of {@link TrafficCapture} through the message processing
+ * of the SQS worker and the store path of the monitor worker against an
+ * in-memory HIRO and reports throughput and latency percentiles.
+ *
+ * <pre>
+ * TrafficReplay [--speed 1|N|max] [--config file] [--hiro-latency-ms ms] capture...
+ * </pre>
+ */
+public final class TrafficReplay {
+
+  private static final Logger LOG = Logger.getLogger(TrafficReplay.class.getName());
+  private static final String DEFAULT_CONFIG = "/opt/arago/conf/cloudwatch-connector.yaml";
+
+  private final double speed;
+  private final CloudWatchSQSWorker sqs;
+  private final CloudWatchMonitorWorker monitoring;
+  private final List<Long> messageNanos = Collections.synchronizedList(new ArrayList());
+  private final List<Long> datapointNanos = Collections.synchronizedList(new ArrayList());
+  private final AtomicLong messageErrors = new AtomicLong();
+  private final AtomicLong datapointErrors = new AtomicLong();
+
+  /**
+   * @param speed factor of the recorded pace, 0 replays as fast as possible
+   */
+  TrafficReplay(YamlConfig c, double speed, long hiroLatencyMs) throws IOException {
+    this(c, speed, createInMemoryHiro(hiroLatencyMs));
+  }
+
+  TrafficReplay(YamlConfig c, double speed, HiroClient client) throws IOException {
+    this.speed = speed;
+    c = forReplay(c, Files.createTempDirectory("replay").toFile());
+
+    final HiroAccess hiro = new HiroAccess(client, Collections.<String, Integer>emptyMap(), Integer.MAX_VALUE);
+    final CircuitBreakers breakers = new CircuitBreakers(c);
+
+    sqs = new CloudWatchSQSWorker(breakers, hiro);
+    sqs.configure(c);
+    sqs.startReplay();
+
+    monitoring = new CloudWatchMonitorWorker(breakers, hiro);
+    monitoring.configure(c);
+    monitoring.startReplay();
+  }
+
+  /**
+   * @return the config without the state of a running connector: spool and
+   * dead-letter store are kept in dir, snapshot, capture and sharding are off
+   */
+  static YamlConfig forReplay(final YamlConfig c, File dir) {
+    return c.with("spool.directory", new File(dir, "spool").getPath())
+      .with("sqs.retry.dead-letter-directory", new File(dir, "dead-letter").getPath())
+      .with("snapshot.enabled", false)
+      .with("capture.enabled", false)
+      .with("cloudwatch.sharding.enabled", false);
+  }
+
+  public static void main(String[] args) throws Exception {
+    double speed = 1;
+    String config = DEFAULT_CONFIG;
+    long latency = 0;
+    final List<File> captures = new ArrayList();
+    for (int i = 0; i < args.length; ++i) {
+      switch (args[i]) {
+        case "--speed":
+          speed = "max".equals(args[++i]) ? 0 : Double.parseDouble(args[i]);
+          break;
+        case "--config":
+          config = args[++i];
+          break;
+        case "--hiro-latency-ms":
+          latency = Long.parseLong(args[++i]);
+          break;
+        default:
+          captures.add(new File(args[i]));
+      }
+    }
+
+    if (captures.isEmpty()) {
+      System.err.println("usage: TrafficReplay [--speed 1|N|max] [--config file] [--hiro-latency-ms ms] capture...");
+      System.exit(2);
+    }
+
+    final TrafficReplay replay = new TrafficReplay(YamlConfig.load(new File(config)), speed, latency);
+    final long start = System.nanoTime();
+    replay.run(captures);
+    System.out.println(replay.report(System.nanoTime() - start));
+  }
+
+  /**
+   * replays every capture in its own thread
+   */
+  void run(final List<File> captures) throws Exception {
+    final List<Thread> threads = new ArrayList();
+    final List<Throwable> errors = Collections.synchronizedList(new ArrayList());
+    for (final File f : captures) {
+      final Thread t = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            replay(f);
+          } catch (Throwable t) {
+            errors.add(t);
+          }
+        }
+      }, "replay-" + f.getName());
+      threads.add(t);
+      t.start();
+    }
+
+    for (Thread t : threads) {
+      t.join();
+    }
+    if (!errors.isEmpty()) {
+      throw new IllegalStateException("replay failed", errors.get(0));
+    }
+  }
+
+  private void replay(File f) throws Exception {
+    final long startNanos = System.nanoTime();
+    final long[] first = {-1};
+
+    TrafficCapture.read(f, new TrafficCapture.Handler() {
+      @Override
+      public void onMessage(long time, String queueUrl, Message m) throws Exception {
+        pace(time);
+        final long then = System.nanoTime();
+        try {
+          sqs.process(m);
+        } catch (Exception ex) {
+          // the replay continues like the worker with the next message
+          LOG.log(Level.FINE, "could not replay message: " + m.getMessageId(), ex);
+          messageErrors.incrementAndGet();
+        }
+        messageNanos.add(System.nanoTime() - then);
+      }
+
+      @Override
+      public void onDatapoints(long time, Metric metric, List<Datapoint> datapoints) throws Exception {
+        pace(time);
+        final long then = System.nanoTime();
+        try {
+          monitoring.replayDatapoints(metric, datapoints);
+        } catch (RuntimeException ex) {
+          LOG.log(Level.FINE, "could not replay datapoints: " + metric, ex);
+          datapointErrors.incrementAndGet();
+        }
+        datapointNanos.add(System.nanoTime() - then);
+      }
+
+      private void pace(long time) throws InterruptedException {
+        if (first[0] < 0) {
+          first[0] = time;
+        }
+        if (speed <= 0) {
+          return;
+        }
+
+        final long due = startNanos + (long) ((time - first[0]) * 1000000L / speed);
+        final long wait = due - System.nanoTime();
+        if (wait > 0) {
+          Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+        }
+      }
+    });
+  }
+
+  String report(long elapsedNanos) {
+    final StringBuilder b = new StringBuilder();
+    b.append(String.format("replayed in %.1f s%n", elapsedNanos / 1e9));
+    b.append(summary("sqs messages", messageNanos, messageErrors.get(), elapsedNanos));
+    b.append(summary("cloudwatch series", datapointNanos, datapointErrors.get(), elapsedNanos));
+    return b.toString();
+  }
+
+  private static String summary(String name, List<Long> nanos, long errors, long elapsedNanos) {
+    final long[] sorted;
+    synchronized (nanos) {
+      sorted = new long[nanos.size()];
+      for (int i = 0; i < sorted.length; ++i) {
+        sorted[i] = nanos.get(i);
+      }
+    }
+    if (sorted.length == 0) {
+      return String.format("%s: none%n", name);
+    }
+
+    Arrays.sort(sorted);
+    return String.format("%s: %d, failed: %d, %.1f/s, latency ms p50=%.2f p90=%.2f p99=%.2f p999=%.2f max=%.2f%n",
+      name, sorted.length, errors, sorted.length / (elapsedNanos / 1e9),
+      percentile(sorted, 0.5), percentile(sorted, 0.9), percentile(sorted, 0.99), percentile(sorted, 0.999),
+      sorted[sorted.length - 1] / 1e6);
+  }
+
+  static double percentile(long[] sorted, double p) {
+    final int i = (int) Math.ceil(p * sorted.length) - 1;
+    return sorted[Math.max(0, Math.min(sorted.length - 1, i))] / 1e6;
+  }
+
+  /**
+   * @return a HIRO stand-in which accepts every call after the given latency,
+   * created vertices get generated ids, queries find nothing
+   */
+  static HiroClient createInMemoryHiro(final long latencyMs) {
+    final AtomicLong ids = new AtomicLong();
+    return (HiroClient) Proxy.newProxyInstance(HiroClient.class.getClassLoader(), new Class[]{HiroClient.class}, new InvocationHandler() {
+      @Override
+      public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        if (method.getDeclaringClass() == Object.class) {
+          return method.invoke(this, args);
+        }
+        if (latencyMs > 0) {
+          Thread.sleep(latencyMs);
+        }
+
+        final Class type = method.getReturnType();
+        if (type == Map.class) {
+          final Map ret = new HashMap();
+          ret.put(Constants.Attributes.OGIT__ID, "replay-" + ids.incrementAndGet());
+          if (method.getName().equals("createVertex") && args[1] instanceof Map) {
+            ret.putAll((Map) args[1]);
+          }
+          return ret;
+        }
+        if (type == List.class) {
+          return new ArrayList();
+        }
+        if (type == boolean.class) {
+          return true;
+        }
+        return null;
+      }
+    });
+  }
+}
@@ -0,0 +1,51 @@
+package de.arago.connector.cloudwatch;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * smooth weighted round robin, every item is chosen weight times per round
+ * and the choices of an item are spread evenly over the round
+ */
+final class WeightedRoundRobin<T> {
+
+  private final List<T> items = new ArrayList();
+  private final List<Integer> weights = new ArrayList();
+  private final List<Integer> current = new ArrayList();
+  private int total;
+
+  void add(T item, int weight) {
+    if (weight < 1) {
+      throw new IllegalArgumentException("weight must be positive: " + item);
+    }
+    items.add(item);
+    weights.add(weight);
+    current.add(0);
+    total += weight;
+  }
+
+  synchronized T next() {
+    if (items.isEmpty()) {
+      throw new IllegalStateException("no items");
+    }
+
+    int best = 0;
+    for (int i = 0; i < items.size(); ++i) {
+      current.set(i, current.get(i) + weights.get(i));
+      if (current.get(i) > current.get(best)) {
+        best = i;
+      }
+    }
+    current.set(best, current.get(best) - total);
+    return items.get(best);
+  }
+
+  int size() {
+    return items.size();
+  }
+
+  List<T> getItems() {
+    return Collections.unmodifiableList(items);
+  }
+}
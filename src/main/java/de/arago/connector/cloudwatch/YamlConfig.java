@@ -6,26 +6,57 @@
 package de.arago.connector.cloudwatch;
 
 import static co.arago.hiro.client.util.Helper.notEmpty;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.yaml.snakeyaml.Yaml;
 
 /**
  *
  */
 public final class YamlConfig {
+  // split dotted paths, shared by all config snapshots
+  private static final Map<String, String[]> PATHS = new ConcurrentHashMap();
+
   private final Map<String, ?> data;
 
   public YamlConfig(Map data) {
     this.data = data;
   }
+
+  public static YamlConfig load(File file) throws IOException {
+    final Map c;
+    try (InputStream in = new FileInputStream(file);)
+    {
+      c = new Yaml().load(in);
+    }
+    
+    if (c == null) {
+      throw new IOException("empty config file: " + file);
+    }
+    
+    return new YamlConfig(c);
+  }
   
   public <T> T get(String what) {
     notEmpty(what, "what");
     Map here     = data;
     Object value = null;
     
-    for (final String part: what.split("\\."))
+    String[] parts = PATHS.get(what);
+    if (parts == null) {
+      parts = what.split("\\.");
+      PATHS.put(what, parts);
+    }
+    
+    for (final String part: parts)
     {
       if (here == null) {
+        value = null;
         break;
       }
       
@@ -33,12 +64,32 @@ public final class YamlConfig {
       
       if (value instanceof Map){
         here = (Map) value;
+      } else {
+        here = null;
       }
     }
     
     return (T) value;
   }
   
+  /**
+   * @return a copy of the config with the value at the dotted path replaced
+   */
+  YamlConfig with(String what, Object value) {
+    notEmpty(what, "what");
+    final String[] parts = what.split("\\.");
+    final Map ret = new HashMap(data);
+    Map here = ret;
+    for (int i = 0; i < parts.length - 1; ++i) {
+      final Object next = here.get(parts[i]);
+      final Map copy = next instanceof Map ? new HashMap((Map) next) : new HashMap();
+      here.put(parts[i], copy);
+      here = copy;
+    }
+    here.put(parts[parts.length - 1], value);
+    return new YamlConfig(ret);
+  }
+
   public <T> T get(String what, Object orElse) {
     Object ret = get(what);
     return (T) (ret == null?orElse:ret);
@@ -0,0 +1,70 @@
+package de.arago.connector.cloudwatch;
+
+import co.arago.hiro.client.util.HiroException;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ */
+public class CircuitBreakerTest {
+
+  public CircuitBreakerTest() {
+  }
+
+  @Test
+  public void testOpenAndHalfOpenProbe() throws Exception {
+    CircuitBreaker b = new CircuitBreaker("test", 2, 50);
+
+    b.onFailure();
+    assertEquals(CircuitBreaker.State.CLOSED, b.getState());
+    b.onFailure();
+    assertEquals(CircuitBreaker.State.OPEN, b.getState());
+    assertFalse(b.isAvailable());
+    assertFalse(b.tryAcquire());
+
+    Thread.sleep(60);
+    assertTrue(b.isAvailable());
+    assertTrue(b.tryAcquire());
+    assertEquals(CircuitBreaker.State.HALF_OPEN, b.getState());
+    // only one probe
+    assertFalse(b.tryAcquire());
+
+    // a failed probe opens again right away
+    b.onFailure();
+    assertEquals(CircuitBreaker.State.OPEN, b.getState());
+
+    Thread.sleep(60);
+    assertTrue(b.tryAcquire());
+    b.onSuccess();
+    assertEquals(CircuitBreaker.State.CLOSED, b.getState());
+    assertTrue(b.tryAcquire());
+  }
+
+  @Test
+  public void testHiroProbeIsAlwaysResolved() throws Exception {
+    CircuitBreakers breakers = new CircuitBreakers(1, 50);
+    CircuitBreaker b = breakers.getHiro();
+    b.onFailure();
+
+    Thread.sleep(60);
+    assertTrue(b.tryAcquire());
+    // a probe which throws without an answer of HIRO opens again
+    breakers.onHiroResult(new Deadlines.DeadlineExceededException("getVertex", 50));
+    assertEquals(CircuitBreaker.State.OPEN, b.getState());
+
+    Thread.sleep(60);
+    assertTrue(b.tryAcquire());
+    // a client error is an answer
+    breakers.onHiroResult(new HiroException("not found", 404));
+    assertEquals(CircuitBreaker.State.CLOSED, b.getState());
+
+    // calls which were not sent do not count
+    breakers.onHiroFailure(new CircuitBreaker.OpenException("hiro"));
+    assertEquals(CircuitBreaker.State.CLOSED, b.getState());
+    breakers.onHiroFailure(new IllegalStateException("connection refused"));
+    assertEquals(CircuitBreaker.State.OPEN, b.getState());
+  }
+}
@@ -0,0 +1,36 @@
+package de.arago.connector.cloudwatch;
+
+import java.util.Collections;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ */
+public class CloudWatchBudgetTest {
+
+  public CloudWatchBudgetTest() {
+  }
+
+  @Test
+  public void testStretchAndExhaustWithinTheHour() {
+    CloudWatchBudget b = new CloudWatchBudget(1.0, 10, 10, 0.5, 4, Collections.singleton("DiskReadOps"));
+    long now = 3600000L * 1000;
+
+    b.onGetMetrics("AWS/EC2", 50, now);
+    assertEquals(0.5, b.getHourlyCost(now), 0.0001);
+    assertEquals(4, b.getStretch("DiskReadOps", now));
+    assertEquals(1, b.getStretch("CPUUtilization", now));
+    assertFalse(b.isExhausted(now));
+
+    b.onListMetrics("AWS/EC2", now + 60000);
+    b.onGetMetrics("AWS/EBS", 49, now + 60000);
+    assertTrue(b.isExhausted(now + 60000));
+
+    // the usage of the first minute is older than an hour
+    assertEquals(0.5, b.getHourlyCost(now + 3600000), 0.0001);
+    assertEquals(0, b.getHourlyCost(now + 3660000), 0.0001);
+  }
+}
@@ -1,8 +1,34 @@
 package de.arago.connector.cloudwatch;
 
+import co.arago.hiro.client.api.HiroClient;
+import co.arago.hiro.client.util.HiroException;
+import com.amazonaws.services.sqs.AmazonSQSAsync;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityResult;
+import com.amazonaws.services.sqs.model.DeleteMessageResult;
+import com.amazonaws.services.sqs.model.GetQueueAttributesResult;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.ReceiveMessageResult;
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import net.minidev.json.JSONValue;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import org.junit.Test;
 
 /**
@@ -13,6 +39,361 @@ public class CloudWatchSQSWorkerTest {
   public CloudWatchSQSWorkerTest() {
   }
 
+  /**
+   * one SQS queue serving the messages put into it
+   */
+  private static class FakeSQS implements InvocationHandler {
+
+    final BlockingQueue<Message> incoming = new LinkedBlockingQueue();
+    final List<String> deleted = Collections.synchronizedList(new ArrayList<String>());
+    // receipt handle -> visibility timeout it was released with
+    final Map<String, Integer> released = new ConcurrentHashMap();
+
+    AmazonSQSAsync client() {
+      return (AmazonSQSAsync) Proxy.newProxyInstance(AmazonSQSAsync.class.getClassLoader(), new Class[]{AmazonSQSAsync.class}, this);
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      if (method.getDeclaringClass() == Object.class) {
+        return method.invoke(this, args);
+      }
+      switch (method.getName()) {
+        case "receiveMessage":
+          final List<Message> messages = new ArrayList();
+          Message m = null;
+          try {
+            m = incoming.poll(50, TimeUnit.MILLISECONDS);
+          } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+          }
+          if (m != null) {
+            messages.add(m);
+            incoming.drainTo(messages, ((ReceiveMessageRequest) args[0]).getMaxNumberOfMessages() - 1);
+          }
+          return new ReceiveMessageResult().withMessages(messages);
+        case "deleteMessage":
+          deleted.add((String) args[1]);
+          return new DeleteMessageResult();
+        case "changeMessageVisibility":
+          released.put((String) args[1], (Integer) args[2]);
+          return new ChangeMessageVisibilityResult();
+        case "getQueueAttributes":
+          return new GetQueueAttributesResult();
+        default:
+          return null;
+      }
+    }
+  }
+
+  /**
+   * HIRO which knows every node and records the created issues
+   */
+  private static class FakeHiro implements InvocationHandler {
+
+    final List<Map> issues = Collections.synchronizedList(new ArrayList<Map>());
+    // issue subject -> thread which created it
+    final Map<String, String> threads = new ConcurrentHashMap();
+    volatile RuntimeException createFailure;
+
+    HiroClient client() {
+      return (HiroClient) Proxy.newProxyInstance(HiroClient.class.getClassLoader(), new Class[]{HiroClient.class}, this);
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      if (method.getDeclaringClass() == Object.class) {
+        return method.invoke(this, args);
+      }
+      if ("createVertex".equals(method.getName())) {
+        if (createFailure != null) {
+          throw createFailure;
+        }
+        issues.add((Map) args[1]);
+        threads.put(((Map) args[1]).get("ogit/subject") + "", Thread.currentThread().getName());
+      }
+      return new HashMap();
+    }
+  }
+
+  private static Map config(Map sqs) {
+    final Map model = new HashMap();
+    model.put("default-node-id", "default");
+    model.put("machine-node-prefix", "machine:");
+
+    final Map retry = new HashMap();
+    retry.put("dead-letter-directory", "");
+    sqs.put("url", "queue");
+    sqs.put("timeout", 1);
+    sqs.put("retry", retry);
+
+    final Map c = new HashMap();
+    c.put("sqs", sqs);
+    c.put("model", model);
+    return c;
+  }
+
+  private static CloudWatchSQSWorker startWorker(Map config, FakeHiro hiro, FakeSQS sqs) {
+    return startWorker(config, new CircuitBreakers(5, 30000), hiro, sqs);
+  }
+
+  private static CloudWatchSQSWorker startWorker(Map config, CircuitBreakers breakers, FakeHiro hiro, FakeSQS sqs) {
+    final CloudWatchSQSWorker worker = new CloudWatchSQSWorker(breakers,
+      new HiroAccess(hiro.client(), Collections.<String, Integer>emptyMap(), 4));
+    worker.configure(new YamlConfig(config));
+    worker.start(sqs.client(), sqs.client());
+    return worker;
+  }
+
+  static Message message(String id, String instanceId, String oldState, String newState, int receives) {
+    final Message m = message(id, instanceId, oldState, newState);
+    m.getAttributes().put("ApproximateReceiveCount", receives + "");
+    return m;
+  }
+
+  static Message message(String id, String instanceId, String oldState, String newState) {
+    final Map dimension = new HashMap();
+    dimension.put("name", "InstanceId");
+    dimension.put("value", instanceId);
+    final Map trigger = new HashMap();
+    trigger.put("Dimensions", Arrays.asList(dimension));
+    final Map alarm = new HashMap();
+    alarm.put("OldStateValue", oldState);
+    alarm.put("NewStateValue", newState);
+    alarm.put("Trigger", trigger);
+    final Map body = new HashMap();
+    body.put("Subject", "ALARM: " + id);
+    body.put("Message", alarm);
+
+    final Map<String, String> attributes = new HashMap();
+    attributes.put("ApproximateReceiveCount", "1");
+    return new Message().withMessageId(id).withReceiptHandle("receipt-" + id).withBody(JSONValue.toJSONString(body)).withAttributes(attributes);
+  }
+
+  private static void waitFor(Callable<Boolean> condition) throws Exception {
+    final long end = System.currentTimeMillis() + 5000;
+    while (!condition.call()) {
+      assertTrue("condition not met in time", System.currentTimeMillis() < end);
+      Thread.sleep(10);
+    }
+  }
+
+  @Test
+  public void testInvalidMessageDoesNotStopReceiver() throws Exception {
+    final FakeHiro hiro = new FakeHiro();
+    final FakeSQS sqs = new FakeSQS();
+    final CloudWatchSQSWorker worker = startWorker(config(new HashMap()), hiro, sqs);
+    try {
+      final Message invalid = message("m1", "i-1", "OK", "ALARM");
+      invalid.getAttributes().put("SentTimestamp", "yesterday");
+      sqs.incoming.add(invalid);
+      sqs.incoming.add(message("m2", "i-2", "OK", "ALARM"));
+
+      waitFor(new Callable<Boolean>() {
+        @Override
+        public Boolean call() {
+          return sqs.deleted.contains("receipt-m2");
+        }
+      });
+      assertEquals(1, hiro.issues.size());
+      assertEquals(30, (int) sqs.released.get("receipt-m1"));
+    } finally {
+      worker.close();
+    }
+  }
+
+  @Test
+  public void testFailedAlarmKeepsOrderOfInstance() throws Exception {
+    final FakeHiro hiro = new FakeHiro();
+    final FakeSQS sqs = new FakeSQS();
+    final CloudWatchSQSWorker worker = startWorker(config(new HashMap()), hiro, sqs);
+    try {
+      hiro.createFailure = new IllegalStateException("HIRO unavailable");
+      sqs.incoming.add(message("m1", "i-1", "OK", "ALARM"));
+      sqs.incoming.add(message("m2", "i-1", "ALARM", "OK"));
+      waitFor(new Callable<Boolean>() {
+        @Override
+        public Boolean call() {
+          return sqs.released.containsKey("receipt-m1") && sqs.released.containsKey("receipt-m2");
+        }
+      });
+      assertEquals(30, (int) sqs.released.get("receipt-m1"));
+      // the later alarm goes back behind the failed one
+      assertTrue(sqs.released.get("receipt-m2") > 30);
+      hiro.createFailure = null;
+
+      // the later alarm is received first, it follows the failed one again
+      sqs.incoming.add(message("m2", "i-1", "ALARM", "OK").withReceiptHandle("receipt-m2-2"));
+      waitFor(new Callable<Boolean>() {
+        @Override
+        public Boolean call() {
+          return sqs.released.containsKey("receipt-m2-2");
+        }
+      });
+      assertTrue(hiro.issues.isEmpty());
+
+      sqs.incoming.add(message("m1", "i-1", "OK", "ALARM").withReceiptHandle("receipt-m1-2"));
+      waitFor(new Callable<Boolean>() {
+        @Override
+        public Boolean call() {
+          return sqs.deleted.contains("receipt-m1-2");
+        }
+      });
+      sqs.incoming.add(message("m2", "i-1", "ALARM", "OK").withReceiptHandle("receipt-m2-3"));
+      waitFor(new Callable<Boolean>() {
+        @Override
+        public Boolean call() {
+          return sqs.deleted.contains("receipt-m2-3");
+        }
+      });
+      assertEquals(2, hiro.issues.size());
+      assertEquals("ALARM: m1", hiro.issues.get(0).get("ogit/subject"));
+      assertEquals("ALARM: m2", hiro.issues.get(1).get("ogit/subject"));
+    } finally {
+      worker.close();
+    }
+  }
+
+  @Test
+  public void testReservedProcessorsOnlyProcessHighPriority() throws Exception {
+    final Map sqsConfig = new HashMap();
+    final Map lanes = new HashMap();
+    lanes.put("workers", 2);
+    lanes.put("reserved-workers", 1);
+    sqsConfig.put("lanes", lanes);
+    final FakeHiro hiro = new FakeHiro();
+    final FakeSQS sqs = new FakeSQS();
+    final CloudWatchSQSWorker worker = startWorker(config(sqsConfig), hiro, sqs);
+    try {
+      // the low priority alarms wait behind a high priority alarm of their instance
+      for (int i = 0; i < 10; ++i) {
+        sqs.incoming.add(message("high-" + i, "i-" + i, "OK", "ALARM"));
+        sqs.incoming.add(message("low-" + i, "i-" + i, "ALARM", "OK"));
+      }
+      waitFor(new Callable<Boolean>() {
+        @Override
+        public Boolean call() {
+          return sqs.deleted.size() == 20;
+        }
+      });
+      for (int i = 0; i < 10; ++i) {
+        assertFalse("sqs-processor-0".equals(hiro.threads.get("ALARM: low-" + i)));
+      }
+    } finally {
+      worker.close();
+    }
+  }
+
+  @Test
+  public void testRetryBackoffCountsFailedReceives() throws Exception {
+    final Map sqsConfig = new HashMap();
+    final Map config = config(sqsConfig);
+    final Map retry = (Map) sqsConfig.get("retry");
+    retry.put("backoff-sec", 10);
+    retry.put("max-backoff-sec", 25);
+
+    final FakeHiro hiro = new FakeHiro();
+    final FakeSQS sqs = new FakeSQS();
+    final CloudWatchSQSWorker worker = startWorker(config, hiro, sqs);
+    try {
+      hiro.createFailure = new HiroException("rejected", 400);
+      sqs.incoming.add(message("a", "i-1", "OK", "ALARM", 1));
+      sqs.incoming.add(message("b", "i-2", "OK", "ALARM", 2));
+      sqs.incoming.add(message("c", "i-3", "OK", "ALARM", 3));
+      // d2 goes back behind the failed d1 without failing itself
+      sqs.incoming.add(message("d1", "i-4", "OK", "ALARM", 1));
+      sqs.incoming.add(message("d2", "i-4", "ALARM", "OK", 1));
+      waitFor(new Callable<Boolean>() {
+        @Override
+        public Boolean call() {
+          return sqs.released.size() == 5;
+        }
+      });
+      assertEquals(10, (int) sqs.released.get("receipt-a"));
+      assertEquals(20, (int) sqs.released.get("receipt-b"));
+      assertEquals(25, (int) sqs.released.get("receipt-c"));
+      assertEquals(10, (int) sqs.released.get("receipt-d1"));
+
+      hiro.createFailure = null;
+      sqs.incoming.add(message("d1", "i-4", "OK", "ALARM", 2).withReceiptHandle("receipt-d1-2"));
+      waitFor(new Callable<Boolean>() {
+        @Override
+        public Boolean call() {
+          return sqs.deleted.contains("receipt-d1-2");
+        }
+      });
+
+      hiro.createFailure = new HiroException("rejected", 400);
+      sqs.incoming.add(message("d2", "i-4", "ALARM", "OK", 2).withReceiptHandle("receipt-d2-2"));
+      waitFor(new Callable<Boolean>() {
+        @Override
+        public Boolean call() {
+          return sqs.released.containsKey("receipt-d2-2");
+        }
+      });
+      // the first receive of d2 did not fail
+      assertEquals(10, (int) sqs.released.get("receipt-d2-2"));
+    } finally {
+      worker.close();
+    }
+  }
+
+  @Test
+  public void testDeadLetterOnlyWhileHiroIsAvailable() throws Exception {
+    final File dir = Files.createTempDirectory("dead-letter").toFile();
+    final Map sqsConfig = new HashMap();
+    final Map config = config(sqsConfig);
+    final Map retry = (Map) sqsConfig.get("retry");
+    retry.put("max-receives", 2);
+    retry.put("dead-letter-directory", dir.getPath());
+
+    final FakeHiro hiro = new FakeHiro();
+    final FakeSQS sqs = new FakeSQS();
+    final CloudWatchSQSWorker worker = startWorker(config, new CircuitBreakers(1, 30000), hiro, sqs);
+    try {
+      // HIRO answered, the message can not be processed
+      hiro.createFailure = new HiroException("rejected", 400);
+      sqs.incoming.add(message("m1", "i-1", "OK", "ALARM", 2));
+      waitFor(new Callable<Boolean>() {
+        @Override
+        public Boolean call() {
+          return sqs.deleted.contains("receipt-m1");
+        }
+      });
+
+      // HIRO did not answer and its breaker opened, the message is kept
+      hiro.createFailure = new IllegalStateException("HIRO unavailable");
+      sqs.incoming.add(message("m2", "i-2", "OK", "ALARM", 5));
+      waitFor(new Callable<Boolean>() {
+        @Override
+        public Boolean call() {
+          return sqs.released.containsKey("receipt-m2");
+        }
+      });
+      assertEquals(480, (int) sqs.released.get("receipt-m2"));
+      assertFalse(sqs.deleted.contains("receipt-m2"));
+    } finally {
+      worker.close();
+    }
+
+    final List<Map> letters = new ArrayList();
+    final Spool store = new Spool(dir, 1024 * 1024, 1024 * 1024);
+    try {
+      store.replay(new Spool.Handler() {
+        @Override
+        public boolean replay(Map entry) {
+          letters.add(entry);
+          return true;
+        }
+      });
+    } finally {
+      store.close();
+    }
+    assertEquals(1, letters.size());
+    assertEquals("m1", letters.get(0).get("id"));
+    assertEquals(2, ((Number) letters.get(0).get("failures")).intValue());
+  }
+
   @Test
   public void testMessageParse() {
     String body = "{\"Message\":{\n"
@@ -0,0 +1,68 @@
+package de.arago.connector.cloudwatch;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ */
+public class ConfigReloaderTest {
+
+  public ConfigReloaderTest() {
+  }
+
+  private static void write(File f, String content, long modified) throws Exception {
+    Files.write(f.toPath(), content.getBytes(StandardCharsets.UTF_8));
+    // file times may be too coarse to tell quick writes apart
+    f.setLastModified(modified);
+  }
+
+  @Test
+  public void testReloadOnChange() throws Exception {
+    File f = new File(Files.createTempDirectory("config").toFile(), "cloudwatch-connector.yaml");
+    write(f, "sqs:\n  timeout: 1\n", 1000000);
+
+    final List<YamlConfig> applied = new CopyOnWriteArrayList();
+    ConfigReloader reloader = new ConfigReloader(f);
+    reloader.addListener(new ConfigReloader.Listener() {
+      @Override
+      public void reconfigure(YamlConfig c) {
+        applied.add(c);
+      }
+    });
+    reloader.start();
+    try {
+      // unchanged file
+      reloader.reload();
+      assertTrue(applied.isEmpty());
+
+      write(f, "sqs:\n  timeout: 2\n", 2000000);
+      final long end = System.currentTimeMillis() + 10000;
+      while (applied.isEmpty() && System.currentTimeMillis() < end) {
+        Thread.sleep(50);
+      }
+      assertEquals(1, applied.size());
+      assertEquals(2, (int) applied.get(0).get("sqs.timeout"));
+      // the watcher is stopped, so the following reloads do not race it
+      reloader.close();
+
+      // invalid YAML keeps the previous config
+      write(f, "sqs: [timeout: 3\n", 3000000);
+      reloader.reload();
+      assertEquals(1, applied.size());
+
+      write(f, "sqs:\n  timeout: 4\n", 4000000);
+      reloader.reload();
+      assertEquals(2, applied.size());
+      assertEquals(4, (int) applied.get(1).get("sqs.timeout"));
+    } finally {
+      reloader.close();
+    }
+  }
+}
@@ -0,0 +1,78 @@
+package de.arago.connector.cloudwatch;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ *
+ */
+public class DeadlinesTest {
+
+  public DeadlinesTest() {
+  }
+
+  @Test
+  public void testStalledCallFailsAtDeadline() throws Exception {
+    Deadlines d = new Deadlines("test", 50, Collections.singletonMap("fast", 0L), Collections.<String>emptySet(), 0.9, 1, 1);
+    try {
+      d.call("slow", new Callable<String>() {
+        @Override
+        public String call() throws Exception {
+          Thread.sleep(5000);
+          return "late";
+        }
+      });
+      fail();
+    } catch (Deadlines.DeadlineExceededException expected) {
+    }
+
+    // without deadline the caller's thread is used
+    final Thread caller = Thread.currentThread();
+    assertTrue(d.call("fast", new Callable<Boolean>() {
+      @Override
+      public Boolean call() {
+        return Thread.currentThread() == caller;
+      }
+    }));
+    d.close();
+  }
+
+  @Test
+  public void testHedgedCallUsesFirstAnswer() throws Exception {
+    Deadlines d = new Deadlines("test", 2000, Collections.<String, Long>emptyMap(), new HashSet(Arrays.asList("read")), 0.9, 1, 5);
+    final AtomicInteger calls = new AtomicInteger();
+    Callable<Integer> fast = new Callable<Integer>() {
+      @Override
+      public Integer call() {
+        return calls.incrementAndGet();
+      }
+    };
+    for (int i = 0; i < 5; ++i) {
+      d.call("read", fast);
+    }
+    assertTrue(d.getHedgeDelayMs("read") >= 1);
+
+    calls.set(0);
+    long then = System.nanoTime();
+    int answer = d.call("read", new Callable<Integer>() {
+      @Override
+      public Integer call() throws Exception {
+        if (calls.incrementAndGet() == 1) {
+          // the first request stalls
+          Thread.sleep(1500);
+        }
+        return calls.get();
+      }
+    });
+    assertEquals(2, answer);
+    assertTrue((System.nanoTime() - then) / 1000000 < 1000);
+    d.close();
+  }
+}
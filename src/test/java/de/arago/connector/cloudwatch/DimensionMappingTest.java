@@ -0,0 +1,92 @@
+package de.arago.connector.cloudwatch;
+
+import com.amazonaws.services.cloudwatch.model.Dimension;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import org.junit.Test;
+
+/**
+ *
+ */
+public class DimensionMappingTest {
+
+  public DimensionMappingTest() {
+  }
+
+  @Test
+  public void testDefault() {
+    List<Dimension> dims = Arrays.asList(
+      new Dimension().withName("InstanceId").withValue("i-xxxx"),
+      new Dimension().withName("MountPath").withValue("/var"));
+
+    assertEquals("i-xxxx", DimensionMapping.DEFAULT.getNodeKey(dims));
+    assertEquals("DiskSpaceUtilization /var", DimensionMapping.DEFAULT.getSeriesName("DiskSpaceUtilization", dims));
+    assertEquals("", DimensionMapping.DEFAULT.getNodeKey(dims.subList(1, 2)));
+
+    // existing series keep their names, MountPath wins over ProcessName
+    List<Dimension> both = Arrays.asList(
+      new Dimension().withName("ProcessName").withValue("java"),
+      new Dimension().withName("InstanceId").withValue("i-xxxx"),
+      new Dimension().withName("MountPath").withValue("/var"));
+    assertEquals("DiskSpaceUtilization /var", DimensionMapping.DEFAULT.getSeriesName("DiskSpaceUtilization", both));
+    assertEquals("ProcessCount java", DimensionMapping.DEFAULT.getSeriesName("ProcessCount", both.subList(0, 2)));
+  }
+
+  @Test
+  public void testParse() {
+    Map rds = new HashMap();
+    rds.put("namespace", "AWS/RDS");
+    rds.put("node-dimension", "DBInstanceIdentifier");
+    rds.put("node-prefix", "ogit:aws:rds:");
+
+    Map agent = new HashMap();
+    agent.put("namespace", "CWAgent");
+    agent.put("node-dimension", "InstanceId");
+    agent.put("name-dimensions", Arrays.asList("path", "device"));
+
+    Map<String, DimensionMapping> mappings = DimensionMapping.parse(Arrays.asList((Map) rds, agent));
+    assertEquals(2, mappings.size());
+
+    List<Dimension> dims = Arrays.asList(
+      new Dimension().withName("device").withValue("xvda1"),
+      new Dimension().withName("InstanceId").withValue("i-xxxx"),
+      new Dimension().withName("path").withValue("/"));
+
+    DimensionMapping m = mappings.get("CWAgent");
+    assertEquals("i-xxxx", m.getNodeKey(dims));
+    assertEquals("disk_used_percent / xvda1", m.getSeriesName("disk_used_percent", dims));
+    assertEquals("", m.getNodePrefix());
+
+    m = mappings.get("AWS/RDS");
+    assertEquals("ogit:aws:rds:", m.getNodePrefix());
+    assertEquals("CPUUtilization", m.getSeriesName("CPUUtilization", dims));
+    assertEquals("db1", m.getNodeKey(Arrays.asList(new Dimension().withName("DBInstanceIdentifier").withValue("db1"))));
+    assertEquals("db1", m.getNodeKeyOfId("ogit:aws:rds:db1"));
+    assertNull(m.getNodeKeyOfId("ogit:aws:ec2:i-xxxx"));
+    assertNull(mappings.get("CWAgent").getNodeKeyOfId("ogit:aws:ec2:i-xxxx"));
+  }
+
+  @Test
+  public void testNodeKeyOfIdWithOtherPrefix() {
+    Map lambda = new HashMap();
+    lambda.put("namespace", "AWS/Lambda");
+    lambda.put("node-dimension", "FunctionName");
+    lambda.put("node-prefix", "aws-lambda:");
+
+    Map elb = new HashMap();
+    elb.put("namespace", "AWS/ELB");
+    elb.put("node-dimension", "LoadBalancerName");
+    elb.put("node-prefix", "ogit:aws:eu-west-1:elb:");
+
+    Map<String, DimensionMapping> mappings = DimensionMapping.parse(Arrays.asList((Map) lambda, elb));
+    assertEquals("resize", mappings.get("AWS/Lambda").getNodeKeyOfId("aws-lambda:resize"));
+    // keys may contain the separator themselves
+    assertEquals("lb:web", mappings.get("AWS/ELB").getNodeKeyOfId("ogit:aws:eu-west-1:elb:lb:web"));
+    assertNull(mappings.get("AWS/ELB").getNodeKeyOfId("aws-lambda:resize"));
+    assertNull(DimensionMapping.DEFAULT.getNodeKeyOfId("ogit:aws:ec2:i-xxxx"));
+  }
+}
@@ -0,0 +1,91 @@
+package de.arago.connector.cloudwatch;
+
+import co.arago.hiro.client.api.HiroClient;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ *
+ */
+public class HiroAccessTest {
+
+  public HiroAccessTest() {
+  }
+
+  @Test
+  public void testQuotaLimitsConcurrentCalls() throws Exception {
+    final AtomicInteger running = new AtomicInteger();
+    final AtomicInteger max = new AtomicInteger();
+    HiroClient fake = (HiroClient) Proxy.newProxyInstance(HiroClient.class.getClassLoader(), new Class[]{HiroClient.class}, new InvocationHandler() {
+      @Override
+      public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        int n = running.incrementAndGet();
+        synchronized (max) {
+          max.set(Math.max(max.get(), n));
+        }
+        Thread.sleep(20);
+        running.decrementAndGet();
+        return new HashMap();
+      }
+    });
+
+    Map<String, Integer> quotas = new HashMap();
+    quotas.put("sqs", 2);
+    final HiroAccess access = new HiroAccess(fake, quotas, 1);
+    // clients of one worker share its quota
+    final HiroClient[] sqs = {access.getClient("sqs"), access.getClient("sqs")};
+
+    List<Thread> threads = new ArrayList();
+    for (int i = 0; i < 6; ++i) {
+      final HiroClient client = sqs[i % 2];
+      Thread t = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          client.getVertex("node", Collections.<String, String>emptyMap());
+        }
+      });
+      threads.add(t);
+      t.start();
+    }
+    for (Thread t : threads) {
+      t.join();
+    }
+
+    assertEquals(2, max.get());
+  }
+
+  @Test
+  public void testCreateVertexHasNoDeadline() throws Exception {
+    HiroClient slow = (HiroClient) Proxy.newProxyInstance(HiroClient.class.getClassLoader(), new Class[]{HiroClient.class}, new InvocationHandler() {
+      @Override
+      public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        Thread.sleep(100);
+        return new HashMap();
+      }
+    });
+
+    final Deadlines deadlines = new Deadlines("hiro", 10, Collections.<String, Long>emptyMap(), Collections.<String>emptySet(), 0, 0, 0);
+    final HiroClient hiro = new HiroAccess(slow, Collections.<String, Integer>emptyMap(), 1, deadlines).getClient("sqs");
+    try {
+      assertNotNull(hiro.createVertex("ogit/Automation/AutomationIssue", new HashMap(), Collections.<String, String>emptyMap()));
+      try {
+        hiro.getVertex("node", Collections.<String, String>emptyMap());
+        fail();
+      } catch (Deadlines.DeadlineExceededException expected) {
+      }
+    } finally {
+      deadlines.close();
+    }
+  }
+}
@@ -0,0 +1,47 @@
+package de.arago.connector.cloudwatch;
+
+import java.util.Arrays;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ */
+public class KeyedSequencerTest {
+
+  public KeyedSequencerTest() {
+  }
+
+  @Test
+  public void testKeysStayOrdered() {
+    KeyedSequencer<String> s = new KeyedSequencer();
+
+    assertTrue(s.admit("i-1", "a1"));
+    assertTrue(s.admit("i-2", "b1"));
+    assertFalse(s.admit("i-1", "a2"));
+    assertFalse(s.admit("i-1", "a3"));
+    assertEquals(2, s.getParked());
+
+    assertNull(s.next("i-2"));
+    assertTrue(s.admit("i-2", "b2"));
+
+    assertEquals("a2", s.next("i-1"));
+    assertEquals("a3", s.next("i-1"));
+    assertNull(s.next("i-1"));
+    assertTrue(s.admit("i-1", "a4"));
+
+    assertFalse(s.admit("i-2", "b3"));
+    assertFalse(s.admit("i-2", "b4"));
+    assertEquals(Arrays.asList("b3", "b4"), s.drain("i-2"));
+    assertNull(s.next("i-2"));
+    assertTrue(s.admit("i-2", "b2"));
+
+    assertFalse(s.admit("i-2", "b3"));
+    assertEquals(Arrays.asList("b3"), s.clear());
+    assertEquals(0, s.getParked());
+    assertTrue(s.admit("i-2", "b4"));
+  }
+}
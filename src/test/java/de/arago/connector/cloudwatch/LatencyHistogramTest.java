@@ -0,0 +1,42 @@
+package de.arago.connector.cloudwatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ */
+public class LatencyHistogramTest {
+
+  public LatencyHistogramTest() {
+  }
+
+  @Test
+  public void testQuantilesWithinPrecision() {
+    LatencyHistogram h = new LatencyHistogram();
+    for (long v = 1; v <= 100000; ++v) {
+      h.record(v * 10);
+    }
+
+    assertEquals(100000, h.getCount());
+    assertEquals(1000000, h.getMax());
+    assertWithin(500000, h.getValueAtQuantile(0.5));
+    assertWithin(990000, h.getValueAtQuantile(0.99));
+    assertWithin(999000, h.getValueAtQuantile(0.999));
+    assertEquals(1000000, h.getValueAtQuantile(1.0));
+  }
+
+  @Test
+  public void testBucketsAreContiguous() {
+    for (long v = 0; v < 100000; ++v) {
+      int i = LatencyHistogram.index(v);
+      assertTrue(v <= LatencyHistogram.highestEquivalent(i));
+      assertTrue(i == 0 || v > LatencyHistogram.highestEquivalent(i - 1));
+    }
+  }
+
+  private static void assertWithin(long expected, long actual) {
+    assertTrue(expected + " ~ " + actual, Math.abs(expected - actual) <= expected * 0.035);
+  }
+}
@@ -0,0 +1,82 @@
+package de.arago.connector.cloudwatch;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ */
+public class LifecycleManagerTest {
+
+  public LifecycleManagerTest() {
+  }
+
+  /**
+   * records its phases, drains after drainMs or not at all
+   */
+  private static class Recorder implements LifecycleManager.Component {
+
+    final String name;
+    final List<String> events;
+    final long drainMs;
+    long timeoutMs = -1;
+
+    Recorder(String name, List<String> events, long drainMs) {
+      this.name = name;
+      this.events = events;
+      this.drainMs = drainMs;
+    }
+
+    @Override
+    public void stopIntake() {
+      events.add("stop " + name);
+    }
+
+    @Override
+    public boolean awaitDrained(long timeoutMs) throws InterruptedException {
+      this.timeoutMs = timeoutMs;
+      final boolean drained = drainMs >= 0 && drainMs <= timeoutMs;
+      Thread.sleep(drained ? drainMs : timeoutMs);
+      events.add((drained ? "drained " : "timeout ") + name);
+      return drained;
+    }
+
+    @Override
+    public void flush() {
+      events.add("flush " + name);
+      if ("b".equals(name)) {
+        throw new IllegalStateException("flush failed");
+      }
+    }
+  }
+
+  @Test
+  public void testPhasesShareTheDrainTimeout() {
+    final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+    LifecycleManager lifecycle = new LifecycleManager(new YamlConfig(Collections.singletonMap("shutdown", Collections.singletonMap("drain-timeout-sec", 1))));
+    Recorder a = new Recorder("a", events, 600);
+    Recorder b = new Recorder("b", events, -1);
+    Recorder c = new Recorder("c", events, -1);
+    lifecycle.register(a);
+    lifecycle.register(b);
+    lifecycle.register(c);
+
+    final long then = System.currentTimeMillis();
+    lifecycle.shutdown();
+    final long took = System.currentTimeMillis() - then;
+
+    // all stop before any drains, all drain before any flushes, a failed flush does not stop the others
+    assertEquals(Arrays.asList("stop a", "stop b", "stop c", "drained a", "timeout b", "timeout c", "flush a", "flush b", "flush c"), events);
+    assertTrue(a.timeoutMs > 900);
+    // b only gets what a left of the shared timeout
+    assertTrue(b.timeoutMs <= 400);
+    // the timeout is used up, c still gets a last check
+    assertEquals(1, c.timeoutMs);
+    assertTrue("shutdown took " + took + " ms", took >= 1000 && took < 2000);
+  }
+}
@@ -0,0 +1,108 @@
+package de.arago.connector.cloudwatch;
+
+import com.amazonaws.services.cloudwatch.model.Datapoint;
+import com.amazonaws.services.cloudwatch.model.Metric;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ *
+ */
+public class MetricStreamEndpointTest {
+
+  private static final String UPDATES
+    = "{\"metric_stream_name\":\"s\",\"account_id\":\"0000\",\"region\":\"eu-west-1\",\"namespace\":\"AWS/EC2\",\"metric_name\":\"CPUUtilization\","
+    + "\"dimensions\":{\"InstanceId\":\"i-xxxx\"},\"timestamp\":1611929698000,\"value\":{\"max\":4.0,\"min\":1.0,\"sum\":6.0,\"count\":3.0},\"unit\":\"Percent\"}\n"
+    + "{\"metric_stream_name\":\"s\",\"account_id\":\"0000\",\"region\":\"eu-west-1\",\"namespace\":\"AWS/EC2\",\"metric_name\":\"CPUUtilization\","
+    + "\"dimensions\":{\"InstanceId\":\"i-xxxx\"},\"timestamp\":1611929758000,\"value\":{\"max\":2.0,\"min\":2.0,\"sum\":2.0,\"count\":1.0},\"unit\":\"Percent\"}\n";
+
+  public MetricStreamEndpointTest() {
+  }
+
+  private static byte[] delivery() throws Exception {
+    String data = Base64.getEncoder().encodeToString(UPDATES.getBytes(StandardCharsets.UTF_8));
+    String body = "{\"requestId\":\"r-1\",\"timestamp\":1611929760000,\"records\":[{\"data\":\"" + data + "\"}]}";
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (OutputStream gz = new GZIPOutputStream(out)) {
+      gz.write(body.getBytes(StandardCharsets.UTF_8));
+    }
+    return out.toByteArray();
+  }
+
+  private static int post(int port, String accessKey, byte[] body) throws Exception {
+    HttpURLConnection con = (HttpURLConnection) new URL("http://localhost:" + port + "/").openConnection();
+    con.setRequestMethod("POST");
+    con.setDoOutput(true);
+    con.setRequestProperty("Content-Encoding", "gzip");
+    con.setRequestProperty("X-Amz-Firehose-Request-Id", "r-1");
+    con.setRequestProperty("X-Amz-Firehose-Access-Key", accessKey);
+    try (OutputStream os = con.getOutputStream()) {
+      os.write(body);
+    }
+    int code = con.getResponseCode();
+    con.disconnect();
+    return code;
+  }
+
+  @Test
+  public void testReplay() throws Exception {
+    MetricStreamEndpoint endpoint = new MetricStreamEndpoint(0, "/", "secret", 1);
+    endpoint.start();
+    try {
+      assertEquals(401, post(endpoint.getPort(), "wrong", delivery()));
+      assertNull(endpoint.poll(0));
+
+      assertEquals(200, post(endpoint.getPort(), "secret", delivery()));
+      // queue is full
+      assertEquals(503, post(endpoint.getPort(), "secret", delivery()));
+
+      Map<Metric, List<Datapoint>> data = endpoint.poll(1000);
+      assertNotNull(data);
+      assertEquals(1, data.size());
+
+      Metric metric = data.keySet().iterator().next();
+      assertEquals("AWS/EC2", metric.getNamespace());
+      assertEquals("CPUUtilization", metric.getMetricName());
+      assertEquals("i-xxxx", DimensionMapping.DEFAULT.getNodeKey(metric.getDimensions()));
+
+      List<Datapoint> points = data.get(metric);
+      assertEquals(2, points.size());
+      assertEquals(2.0, points.get(0).getAverage(), 0.0001);
+      assertEquals(4.0, points.get(0).getMaximum(), 0.0001);
+      assertEquals(1611929758000L, points.get(1).getTimestamp().getTime());
+    } finally {
+      endpoint.close();
+    }
+  }
+
+  @Test
+  public void testDecodeRecords() throws Exception {
+    String data = Base64.getEncoder().encodeToString(UPDATES.getBytes(StandardCharsets.UTF_8));
+    String body = "{\"requestId\":\"r-1\",\"meta\":{\"records\":[1]},\"records\":[\"x\",{\"extra\":[{}],\"data\":\"" + data + "\"},{\"data\":null}]}";
+
+    Map<Metric, List<Datapoint>> decoded = MetricStreamEndpoint.decode(new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)), false);
+    assertEquals(1, decoded.size());
+    assertEquals(2, decoded.values().iterator().next().size());
+
+    try {
+      MetricStreamEndpoint.decode(new ByteArrayInputStream(body.substring(0, body.length() - 2).getBytes(StandardCharsets.UTF_8)), false);
+      fail();
+    } catch (IOException expected) {
+    }
+  }
+}
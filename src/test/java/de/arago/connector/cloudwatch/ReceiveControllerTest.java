@@ -0,0 +1,82 @@
+package de.arago.connector.cloudwatch;
+
+import java.util.Arrays;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ */
+public class ReceiveControllerTest {
+
+  private static final long SEC = 1000000000L;
+
+  public ReceiveControllerTest() {
+  }
+
+  @Test
+  public void testSingleQueueFollowsBacklogAndRate() {
+    ReceiveController c = new ReceiveController(true, 10, 20, 100, 10, Arrays.asList("q"));
+
+    // idle queue is long polled
+    assertTrue(c.isRefreshDue("q", 0));
+    c.onRefresh("q", 0, 30, 0);
+    assertFalse(c.isRefreshDue("q", 5 * SEC));
+    assertEquals(20, c.getWaitSeconds("q", 0));
+    assertNull(c.getVisibilitySeconds("q", 0, 10));
+
+    c.onRefresh("q", 3, 30, 10 * SEC);
+    assertEquals(0, c.getWaitSeconds("q", 0));
+    assertEquals(3, c.getBatchSize("q", 0));
+    c.onReceived("q", 3, 11 * SEC);
+    assertEquals(20, c.getWaitSeconds("q", 0));
+
+    // 25 messages per second keep 50 in the lanes
+    c.onProcessed(0, 20 * SEC);
+    c.onProcessed(50, 22 * SEC);
+    assertEquals(25, c.getRate(), 0.001);
+    assertEquals(50, c.getPrefetch());
+    assertEquals(0, c.getBatchSize("q", 50));
+    assertEquals(10, c.getBatchSize("q", 20));
+    assertEquals(4, c.getBatchSize("q", 46));
+    // two times 40 messages at 25/s
+    assertEquals(34, (int) c.getVisibilitySeconds("q", 30, 10));
+  }
+
+  @Test
+  public void testIdleQueueIsNotPolledWhileOthersAreBusy() {
+    ReceiveController c = new ReceiveController(true, 10, 20, 100, 10, Arrays.asList("a", "b"));
+    c.onRefresh("a", 100, 30, 0);
+    c.onRefresh("b", 0, 30, 0);
+
+    assertTrue(c.shouldReceive("a", SEC));
+    assertTrue(c.shouldReceive("b", SEC));
+    c.onReceived("b", 0, SEC);
+    assertFalse(c.shouldReceive("b", SEC + 1));
+    assertTrue(c.shouldReceive("b", 2 * SEC));
+    assertEquals(0, c.getWaitSeconds("b", 0));
+
+    // messages arrived before the next refresh, the queue is received from again right away
+    c.onReceived("b", 3, 2 * SEC);
+    assertTrue(c.shouldReceive("b", 2 * SEC + 1));
+    c.onReceived("b", 0, 2 * SEC + 1);
+    assertFalse(c.shouldReceive("b", 2 * SEC + 2));
+
+    c.onReceived("a", 0, 2 * SEC);
+    // all idle, the long poll is shared between the queues
+    assertTrue(c.shouldReceive("b", 2 * SEC));
+    assertEquals(10, c.getWaitSeconds("b", 0));
+  }
+
+  @Test
+  public void testFixedReceives() {
+    ReceiveController c = new ReceiveController(false, 10, 10, 100, 10, Arrays.asList("a", "b"));
+    assertFalse(c.isRefreshDue("a", 0));
+    assertEquals(10, c.getBatchSize("a", 100));
+    assertEquals(0, c.getWaitSeconds("a", 0));
+    assertEquals(1, c.getWaitSeconds("a", 2));
+  }
+}
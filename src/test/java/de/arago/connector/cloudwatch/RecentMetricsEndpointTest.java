@@ -0,0 +1,83 @@
+package de.arago.connector.cloudwatch;
+
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import net.minidev.json.JSONValue;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ */
+public class RecentMetricsEndpointTest {
+
+  public RecentMetricsEndpointTest() {
+  }
+
+  private static Object[] get(int port, String method, String query) throws Exception {
+    HttpURLConnection con = (HttpURLConnection) new URL("http://127.0.0.1:" + port + "/recent" + query).openConnection();
+    con.setRequestMethod(method);
+    int code = con.getResponseCode();
+    StringBuilder body = new StringBuilder();
+    try (InputStream in = code < 400 ? con.getInputStream() : con.getErrorStream()) {
+      int c;
+      while ((c = in.read()) != -1) {
+        body.append((char) c);
+      }
+    }
+    con.disconnect();
+    return new Object[]{code, JSONValue.parse(body.toString())};
+  }
+
+  @Test
+  public void testParseQuery() throws Exception {
+    Map<String, String> q = RecentMetricsEndpoint.parseQuery("node=i-1&series=DiskSpaceUtilization+%2Fvar&flag&=x");
+    assertEquals("i-1", q.get("node"));
+    assertEquals("DiskSpaceUtilization /var", q.get("series"));
+    assertEquals(2, q.size());
+    assertTrue(RecentMetricsEndpoint.parseQuery(null).isEmpty());
+  }
+
+  @Test
+  public void testQueries() throws Exception {
+    RecentMetrics metrics = new RecentMetrics(4, 8);
+    metrics.add("i-1|CPUUtilization", 1000L, 10);
+    metrics.add("i-1|CPUUtilization", 2000L, 20);
+    metrics.add("i-1|DiskSpaceUtilization /var", 1000L, 50);
+
+    RecentMetricsEndpoint endpoint = new RecentMetricsEndpoint("127.0.0.1", 0, "/recent", metrics);
+    endpoint.start();
+    try {
+      int port = endpoint.getPort();
+
+      Object[] r = get(port, "GET", "?node=i-1");
+      assertEquals(200, r[0]);
+      assertEquals(Arrays.asList("CPUUtilization", "DiskSpaceUtilization /var"), ((Map) r[1]).get("series"));
+
+      r = get(port, "GET", "?node=i-1&series=CPUUtilization");
+      assertEquals(200, r[0]);
+      assertEquals(20.0, ((Number) ((Map) r[1]).get("value")).doubleValue(), 0.0001);
+
+      r = get(port, "GET", "?node=i-1&series=CPUUtilization&op=range&from=1500");
+      assertEquals(200, r[0]);
+      assertEquals(1, ((List) r[1]).size());
+
+      r = get(port, "GET", "?node=i-1&series=CPUUtilization&op=stats&to=2000");
+      assertEquals(200, r[0]);
+      assertEquals(15.0, ((Number) ((Map) r[1]).get("avg")).doubleValue(), 0.0001);
+
+      assertEquals(404, get(port, "GET", "?node=i-1&series=NetworkIn")[0]);
+      assertEquals(400, get(port, "GET", "?series=CPUUtilization")[0]);
+      assertEquals(400, get(port, "GET", "?node=i-1&series=CPUUtilization&op=median")[0]);
+      assertEquals(400, get(port, "GET", "?node=i-1&series=CPUUtilization&from=yesterday")[0]);
+      assertEquals(405, get(port, "POST", "?node=i-1")[0]);
+    } finally {
+      endpoint.close();
+    }
+  }
+}
@@ -0,0 +1,70 @@
+package de.arago.connector.cloudwatch;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import org.junit.Test;
+
+/**
+ *
+ */
+public class RecentMetricsTest {
+
+  public RecentMetricsTest() {
+  }
+
+  @Test
+  public void testRingKeepsLastPoints() {
+    RecentMetrics m = new RecentMetrics(2, 3);
+    for (int i = 1; i <= 5; ++i) {
+      m.add("i-1|CPU", i * 1000L, i);
+    }
+    // not newer than the last point
+    m.add("i-1|CPU", 4000L, 100);
+
+    List<Object[]> points = m.getRange("i-1|CPU", 0, Long.MAX_VALUE);
+    assertEquals(3, points.size());
+    assertEquals(3000L, points.get(0)[0]);
+    assertEquals(5.0, (Double) points.get(2)[1], 0.0001);
+    assertEquals(2, m.getRange("i-1|CPU", 4000, 5000).size());
+
+    RecentMetrics.Stats s = m.getStats("i-1|CPU", 0, 4500);
+    assertEquals(2, s.count);
+    assertEquals(3.5, s.avg(), 0.0001);
+    assertEquals(4000L, s.last);
+    assertEquals(4.0, s.lastValue, 0.0001);
+
+    m.add("i-2|CPU", 1000L, 1);
+    // full, not kept
+    m.add("i-3|CPU", 1000L, 1);
+    assertNull(m.getStats("i-3|CPU", 0, Long.MAX_VALUE));
+    assertEquals(Arrays.asList("i-1|CPU", "i-2|CPU"), m.getSeries("i-"));
+
+    // the slot of a series no longer written is reused
+    m.retain(Collections.singleton("i-2|CPU"));
+    assertNull(m.getStats("i-1|CPU", 0, Long.MAX_VALUE));
+    m.add("i-3|CPU", 500L, 7);
+    assertEquals(1, m.getRange("i-3|CPU", 0, Long.MAX_VALUE).size());
+    assertEquals(1, m.getStats("i-2|CPU", 0, Long.MAX_VALUE).count);
+    assertEquals(Arrays.asList("i-2|CPU", "i-3|CPU"), m.getSeries("i-"));
+  }
+
+  @Test
+  public void testExpireByAge() {
+    RecentMetrics m = new RecentMetrics(2, 3);
+    m.add("i-1|CPU", 1000L, 1);
+    m.add("i-2|CPU", 1000L, 1);
+    m.add("i-2|CPU", 5000L, 2);
+
+    assertEquals(1, m.expire(2000L));
+    assertNull(m.getStats("i-1|CPU", 0, Long.MAX_VALUE));
+    assertEquals(2, m.getStats("i-2|CPU", 0, Long.MAX_VALUE).count);
+
+    // the slot is free for a new series
+    m.add("i-3|CPU", 6000L, 3);
+    assertEquals(Arrays.asList("i-2|CPU", "i-3|CPU"), m.getSeries("i-"));
+    assertEquals(0, m.expire(5000L));
+  }
+}
@@ -0,0 +1,92 @@
+package de.arago.connector.cloudwatch;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ *
+ */
+public class RuleEngineTest {
+
+  public RuleEngineTest() {
+  }
+
+  @Test
+  public void testMeanRuleFiresOnceUntilReArmed() {
+    final Map r = new HashMap();
+    r.put("name", "cpu");
+    r.put("metric", "CPUUtilization");
+    r.put("statistic", "mean");
+    r.put("window", 3);
+    r.put("threshold", 50);
+    final RuleEngine e = new RuleEngine(RuleEngine.parse(Arrays.<Map>asList(r)));
+    final RuleEngine.Rule rule = e.getRules().get(0);
+
+    assertTrue(e.evaluate("AWS/EC2", "CPUUtilization", "i-1", 1000L, 90).isEmpty());
+    assertTrue(e.evaluate("AWS/EC2", "CPUUtilization", "i-1", 2000L, 90).isEmpty());
+    assertEquals(60, e.evaluate("AWS/EC2", "CPUUtilization", "i-1", 3000L, 0).get(rule), 0.0001);
+    // not marked as fired, fires again
+    assertEquals(1, e.evaluate("AWS/EC2", "CPUUtilization", "i-1", 4000L, 90).size());
+    e.onFired(rule, "i-1");
+    assertTrue(e.evaluate("AWS/EC2", "CPUUtilization", "i-1", 5000L, 90).isEmpty());
+    // other series and metrics have their own windows
+    assertTrue(e.evaluate("AWS/EC2", "CPUUtilization", "i-2", 6000L, 90).isEmpty());
+    assertTrue(e.evaluate("AWS/EC2", "NetworkIn", "i-1", 7000L, 90).isEmpty());
+
+    e.evaluate("AWS/EC2", "CPUUtilization", "i-1", 8000L, 0);
+    e.evaluate("AWS/EC2", "CPUUtilization", "i-1", 9000L, 0);
+    assertTrue(e.evaluate("AWS/EC2", "CPUUtilization", "i-1", 10000L, 0).isEmpty());
+    e.evaluate("AWS/EC2", "CPUUtilization", "i-1", 11000L, 100);
+    assertEquals(1, e.evaluate("AWS/EC2", "CPUUtilization", "i-1", 12000L, 100).size());
+
+    // series no longer listed start with an empty window
+    e.evaluate("AWS/EC2", "CPUUtilization", "i-2", 13000L, 90);
+    e.retain(Collections.singleton("i-1"));
+    assertTrue(e.evaluate("AWS/EC2", "CPUUtilization", "i-2", 14000L, 90).isEmpty());
+    assertTrue(e.evaluate("AWS/EC2", "CPUUtilization", "i-2", 15000L, 90).isEmpty());
+    assertEquals(1, e.evaluate("AWS/EC2", "CPUUtilization", "i-2", 16000L, 90).size());
+  }
+
+  @Test
+  public void testBoundaryPointCountedOnce() {
+    final Map r = new HashMap();
+    r.put("name", "cpu");
+    r.put("metric", "CPUUtilization");
+    r.put("statistic", "mean");
+    r.put("window", 2);
+    r.put("threshold", 50);
+    final RuleEngine e = new RuleEngine(RuleEngine.parse(Arrays.<Map>asList(r)));
+
+    assertTrue(e.evaluate("AWS/EC2", "CPUUtilization", "i-1", 1000L, 10).isEmpty());
+    assertTrue(e.evaluate("AWS/EC2", "CPUUtilization", "i-1", 2000L, 90).isEmpty());
+    // the next fetch starts at the watermark and returns the last point again
+    assertTrue(e.evaluate("AWS/EC2", "CPUUtilization", "i-1", 2000L, 90).isEmpty());
+    assertTrue(e.evaluate("AWS/EC2", "CPUUtilization", "i-1", 1000L, 90).isEmpty());
+    assertEquals(1, e.evaluate("AWS/EC2", "CPUUtilization", "i-1", 3000L, 90).size());
+  }
+
+  @Test
+  public void testStddev() {
+    final RuleEngine.Window w = new RuleEngine.Window(4);
+    for (double v : new double[]{1, 2, 3, 4, 5, 6, 7, 8, 9}) {
+      w.add(v);
+    }
+    assertEquals(7.5, w.mean(), 0.0001);
+    assertEquals(Math.sqrt(1.25), w.stddev(), 0.0001);
+  }
+
+  @Test
+  public void testInvalidOperator() {
+    try {
+      new RuleEngine.Rule("r", null, "m", "value", 1, "!=", 0);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+}
@@ -0,0 +1,43 @@
+package de.arago.connector.cloudwatch;
+
+import java.util.Collections;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ */
+public class SeriesBackoffTest {
+
+  public SeriesBackoffTest() {
+  }
+
+  @Test
+  public void testEmptySeriesArePausedAndReactivated() {
+    SeriesBackoff b = new SeriesBackoff(2, 100, 250);
+
+    b.onFetch("s", false, 0);
+    assertTrue(b.isDue("s", 0));
+    b.onFetch("s", false, 0);
+    assertFalse(b.isDue("s", 99));
+    assertTrue(b.isDue("s", 100));
+
+    b.onFetch("s", false, 100);
+    assertFalse(b.isDue("s", 299));
+    b.onFetch("s", false, 300);
+    // capped at the longest pause
+    assertTrue(b.isDue("s", 550));
+    assertEquals(1, b.countPaused(549));
+
+    b.onFetch("s", true, 550);
+    assertTrue(b.isDue("s", 550));
+
+    b.onFetch("s", false, 600);
+    b.onFetch("s", false, 600);
+    assertFalse(b.isDue("s", 650));
+    b.retain(Collections.<String>emptySet());
+    assertTrue(b.isDue("s", 650));
+  }
+}
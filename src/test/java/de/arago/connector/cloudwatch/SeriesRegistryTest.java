@@ -0,0 +1,75 @@
+package de.arago.connector.cloudwatch;
+
+import com.amazonaws.services.cloudwatch.model.Dimension;
+import com.amazonaws.services.cloudwatch.model.Metric;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ */
+public class SeriesRegistryTest {
+
+  public SeriesRegistryTest() {
+  }
+
+  private static MonitorSettings settings() {
+    final Map periodity = new HashMap();
+    periodity.put("name", "CPUUtilization");
+    periodity.put("periodity", 60);
+
+    final Map cloudwatch = new HashMap();
+    cloudwatch.put("metrics-names", Arrays.asList("CPUUtilization", "DiskSpaceUtilization"));
+    cloudwatch.put("namespaces", Arrays.asList("AWS/EC2"));
+    cloudwatch.put("metrics-periodities", Arrays.asList(periodity));
+
+    return new MonitorSettings(new YamlConfig(Collections.singletonMap("cloudwatch", cloudwatch)));
+  }
+
+  private static Metric metric(String name, String instanceId, String mountPath) {
+    final Metric m = new Metric().withNamespace("AWS/EC2").withMetricName(name);
+    if (mountPath == null) {
+      return m.withDimensions(new Dimension().withName("InstanceId").withValue(instanceId));
+    }
+    return m.withDimensions(new Dimension().withName("InstanceId").withValue(instanceId),
+      new Dimension().withName("MountPath").withValue(mountPath));
+  }
+
+  @Test
+  public void testSeriesResolvedOnce() {
+    SeriesRegistry registry = new SeriesRegistry(settings());
+
+    SeriesRegistry.Series cpu = registry.get("AWS/EC2", DimensionMapping.DEFAULT, metric("CPUUtilization", "i-1", null));
+    assertSame(cpu, registry.get("AWS/EC2", DimensionMapping.DEFAULT, metric("CPUUtilization", "i-1", null)));
+    assertEquals("i-1", cpu.instanceId);
+    assertEquals("CPUUtilization", cpu.name);
+    assertEquals("AWS/EC2|i-1|CPUUtilization", cpu.key);
+    assertEquals("i-1|CPUUtilization", cpu.seriesKey);
+    assertEquals(60, cpu.periodity);
+    assertEquals("Average", cpu.statistic);
+    assertTrue(cpu.allowed);
+
+    SeriesRegistry.Series disk = registry.get("AWS/EC2", DimensionMapping.DEFAULT, metric("DiskSpaceUtilization", new String("i-1"), "/var"));
+    assertEquals("DiskSpaceUtilization /var", disk.name);
+    assertEquals(180, disk.periodity);
+    // series of one instance share its id
+    assertSame(cpu.instanceId, disk.instanceId);
+
+    assertFalse(registry.get("AWS/EC2", DimensionMapping.DEFAULT, metric("NetworkIn", "i-1", null)).allowed);
+    assertEquals(3, registry.size());
+
+    cpu.setTsid("ts-1");
+    registry.retain(Collections.singleton(cpu.key));
+    assertEquals(1, registry.size());
+    assertEquals("ts-1", registry.get("AWS/EC2", DimensionMapping.DEFAULT, metric("CPUUtilization", "i-1", null)).getTsid());
+    assertNotSame(disk, registry.get("AWS/EC2", DimensionMapping.DEFAULT, metric("DiskSpaceUtilization", "i-1", "/var")));
+  }
+}
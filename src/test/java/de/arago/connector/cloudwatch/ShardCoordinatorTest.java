@@ -0,0 +1,119 @@
+package de.arago.connector.cloudwatch;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ */
+public class ShardCoordinatorTest {
+
+  public ShardCoordinatorTest() {
+  }
+
+  @Test
+  public void testRingBalanceAndMovement() {
+    ShardRing three = new ShardRing(Arrays.asList("a", "b", "c"), 64);
+    ShardRing four = new ShardRing(Arrays.asList("a", "b", "c", "d"), 64);
+
+    Map<String, Integer> counts = new HashMap();
+    int moved = 0;
+    for (int i = 0; i < 3000; ++i) {
+      String key = "i-" + Integer.toHexString(i * 7919);
+      String owner = three.ownerOf(key);
+      counts.put(owner, counts.containsKey(owner) ? counts.get(owner) + 1 : 1);
+      String next = four.ownerOf(key);
+      if (!owner.equals(next)) {
+        assertEquals("keys may only move to the new member", "d", next);
+        ++moved;
+      }
+    }
+
+    for (int c : counts.values()) {
+      assertTrue("unbalanced: " + counts, c > 600 && c < 1400);
+    }
+    assertTrue("moved: " + moved, moved > 300 && moved < 1300);
+  }
+
+  @Test
+  public void testRebalanceOnJoinAndLeave() throws Exception {
+    InMemoryShardMembership membership = new InMemoryShardMembership();
+    ShardCoordinator a = new ShardCoordinator(membership, "a", 60000, 64);
+    ShardCoordinator b = new ShardCoordinator(membership, "b", 60000, 64);
+
+    a.refresh();
+    assertTrue(a.owns("i-1") && a.owns("i-2") && a.owns("i-3"));
+
+    b.refresh();
+    a.refresh();
+    assertEquals(2, a.getMembers().size());
+    for (int i = 0; i < 100; ++i) {
+      assertTrue(a.owns("i-" + i) != b.owns("i-" + i));
+    }
+
+    b.close();
+    a.refresh();
+    assertEquals(1, a.getMembers().size());
+  }
+
+  @Test
+  public void testFileMembership() throws Exception {
+    File dir = Files.createTempDirectory("shards").toFile();
+    FileShardMembership m = new FileShardMembership(dir);
+
+    m.heartbeat("a");
+    m.heartbeat("b@host");
+    assertEquals(2, m.getMembers(60000).size());
+    assertTrue(m.getMembers(60000).contains("b@host"));
+
+    assertTrue(new File(dir, "a.member").setLastModified(System.currentTimeMillis() - 120000));
+    assertFalse(m.getMembers(60000).contains("a"));
+
+    m.leave("b@host");
+    assertTrue(m.getMembers(60000).isEmpty());
+  }
+
+  @Test
+  public void testFileMembershipsInOneProcess() throws Exception {
+    final File dir = Files.createTempDirectory("shards").toFile();
+    final FileShardMembership a = new FileShardMembership(dir);
+    final FileShardMembership b = new FileShardMembership(new File(dir, "."));
+    final List<Throwable> errors = new CopyOnWriteArrayList();
+
+    final Thread[] threads = new Thread[2];
+    for (int i = 0; i < threads.length; ++i) {
+      final FileShardMembership m = i == 0 ? a : b;
+      final String id = i == 0 ? "a" : "b";
+      threads[i] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            for (int j = 0; j < 200; ++j) {
+              m.heartbeat(id);
+              m.getMembers(60000);
+            }
+          } catch (Throwable t) {
+            errors.add(t);
+          }
+        }
+      };
+      threads[i].start();
+    }
+    for (Thread t : threads) {
+      t.join();
+    }
+
+    assertTrue(errors.toString(), errors.isEmpty());
+    assertEquals(2, a.getMembers(60000).size());
+    assertEquals(2, b.getMembers(60000).size());
+  }
+}
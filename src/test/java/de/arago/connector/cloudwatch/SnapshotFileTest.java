@@ -0,0 +1,46 @@
+package de.arago.connector.cloudwatch;
+
+import com.amazonaws.services.cloudwatch.model.Dimension;
+import com.amazonaws.services.cloudwatch.model.Metric;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import org.junit.Test;
+
+/**
+ *
+ */
+public class SnapshotFileTest {
+
+  public SnapshotFileTest() {
+  }
+
+  @Test
+  public void testWriteAndRead() throws Exception {
+    File dir = Files.createTempDirectory("snapshot").toFile();
+    SnapshotFile snapshot = new SnapshotFile(new File(dir, "monitor.json"), 60000);
+    assertNull(snapshot.read());
+
+    Metric metric = new Metric()
+      .withNamespace("AWS/EC2")
+      .withMetricName("CPUUtilization")
+      .withDimensions(Arrays.asList(new Dimension().withName("InstanceId").withValue("i-1")));
+
+    Map instances = new HashMap();
+    instances.put("i-1", "ogit:aws:ec2:");
+    Map data = new HashMap();
+    data.put("instances", instances);
+    data.put("metric", SnapshotFile.encodeMetric(metric));
+    snapshot.write(data);
+
+    Map read = snapshot.read();
+    assertEquals(instances, read.get("instances"));
+    assertEquals(metric, SnapshotFile.decodeMetric((Map) read.get("metric")));
+
+    assertNull(new SnapshotFile(new File(dir, "monitor.json"), -1).read());
+  }
+}
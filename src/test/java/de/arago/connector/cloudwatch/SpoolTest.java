@@ -0,0 +1,131 @@
+package de.arago.connector.cloudwatch;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ */
+public class SpoolTest {
+
+  public SpoolTest() {
+  }
+
+  private static Map entry(int i) {
+    Map m = new HashMap();
+    m.put("id", "entry-" + i);
+    return m;
+  }
+
+  private static class Collector implements Spool.Handler {
+
+    final List<String> ids = new ArrayList();
+    int failAfter = Integer.MAX_VALUE;
+
+    @Override
+    public boolean replay(Map entry) {
+      if (ids.size() >= failAfter) {
+        return false;
+      }
+      ids.add((String) entry.get("id"));
+      return true;
+    }
+  }
+
+  @Test
+  public void testReplayResumesAfterFailureAndRestart() throws Exception {
+    File dir = Files.createTempDirectory("spool").toFile();
+
+    Spool spool = new Spool(dir, 64, 1024 * 1024);
+    assertTrue(spool.isEmpty());
+    for (int i = 0; i < 10; ++i) {
+      spool.append(entry(i));
+    }
+    assertFalse(spool.isEmpty());
+
+    Collector c = new Collector();
+    c.failAfter = 4;
+    assertEquals(4, spool.replay(c));
+    spool.close();
+
+    // reopen, replay continues behind the last delivered entry
+    spool = new Spool(dir, 64, 1024 * 1024);
+    c.failAfter = Integer.MAX_VALUE;
+    assertEquals(6, spool.replay(c));
+    assertTrue(spool.isEmpty());
+    assertEquals(10, c.ids.size());
+    assertEquals("entry-9", c.ids.get(9));
+
+    spool.append(entry(10));
+    assertEquals(1, spool.replay(c));
+    assertEquals("entry-10", c.ids.get(10));
+    spool.close();
+  }
+
+  @Test
+  public void testAppendDuringReplay() throws Exception {
+    File dir = Files.createTempDirectory("spool").toFile();
+
+    final Spool spool = new Spool(dir, 1024, 1024 * 1024);
+    spool.append(entry(0));
+    spool.append(entry(1));
+
+    final List<String> ids = new ArrayList();
+    assertEquals(3, spool.replay(new Spool.Handler() {
+      @Override
+      public boolean replay(Map entry) {
+        ids.add((String) entry.get("id"));
+        if (ids.size() > 1) {
+          return true;
+        }
+        // a slow delivery does not block writers of the spool
+        Thread t = new Thread() {
+          @Override
+          public void run() {
+            try {
+              spool.append(entry(2));
+            } catch (Exception ex) {
+              throw new IllegalStateException(ex);
+            }
+          }
+        };
+        t.start();
+        try {
+          t.join(5000);
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+        }
+        assertFalse(t.isAlive());
+        return true;
+      }
+    }));
+    assertEquals("entry-2", ids.get(2));
+    assertTrue(spool.isEmpty());
+    spool.close();
+  }
+
+  @Test
+  public void testDropsOldestSegmentWhenFull() throws Exception {
+    File dir = Files.createTempDirectory("spool").toFile();
+
+    Spool spool = new Spool(dir, 64, 256);
+    for (int i = 0; i < 20; ++i) {
+      spool.append(entry(i));
+    }
+    assertTrue(spool.size() <= 256);
+
+    Collector c = new Collector();
+    spool.replay(c);
+    assertTrue(c.ids.size() < 20);
+    assertEquals("entry-19", c.ids.get(c.ids.size() - 1));
+    spool.close();
+  }
+}
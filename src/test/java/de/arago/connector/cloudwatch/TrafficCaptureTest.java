@@ -0,0 +1,120 @@
+package de.arago.connector.cloudwatch;
+
+import co.arago.hiro.client.api.HiroClient;
+import co.arago.hiro.client.util.HiroException;
+import com.amazonaws.services.cloudwatch.model.Datapoint;
+import com.amazonaws.services.cloudwatch.model.Dimension;
+import com.amazonaws.services.cloudwatch.model.Metric;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.MessageAttributeValue;
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ */
+public class TrafficCaptureTest {
+
+  public TrafficCaptureTest() {
+  }
+
+  @Test
+  public void testRecordAndRead() throws Exception {
+    File f = new File(Files.createTempDirectory("capture").toFile(), "sqs.jsonl.gz");
+    TrafficCapture capture = new TrafficCapture(f);
+
+    Message m = new Message()
+      .withMessageId("m-1")
+      .withBody("{\"Message\":{}}")
+      .withMessageAttributes(Collections.singletonMap("InstanceId", new MessageAttributeValue().withDataType("String").withStringValue("i-1")));
+    capture.recordMessage("https://queue", m);
+
+    Metric metric = new Metric()
+      .withNamespace("AWS/EC2")
+      .withMetricName("CPUUtilization")
+      .withDimensions(Arrays.asList(new Dimension().withName("InstanceId").withValue("i-1")));
+    capture.recordDatapoints(metric, Arrays.asList(new Datapoint().withTimestamp(new Date(60000)).withAverage(42.0)));
+
+    // readable without close, as after a kill
+    final List<Object> read = new ArrayList();
+    int count = TrafficCapture.read(f, new TrafficCapture.Handler() {
+      @Override
+      public void onMessage(long time, String queueUrl, Message m) {
+        assertEquals("https://queue", queueUrl);
+        read.add(m.getBody());
+        read.add(m.getMessageAttributes().get("InstanceId").getStringValue());
+      }
+
+      @Override
+      public void onDatapoints(long time, Metric metric, List<Datapoint> datapoints) {
+        read.add(metric);
+        read.add(datapoints.get(0).getAverage());
+        read.add(datapoints.get(0).getTimestamp().getTime());
+      }
+    });
+    capture.close();
+
+    assertEquals(2, count);
+    assertEquals(Arrays.asList("{\"Message\":{}}", "i-1", metric, 42.0, 60000L), read);
+  }
+
+  @Test
+  public void testReplayContinuesAfterFailedMessage() throws Exception {
+    File f = new File(Files.createTempDirectory("capture").toFile(), "sqs.jsonl.gz");
+    TrafficCapture capture = new TrafficCapture(f);
+    capture.recordMessage("https://queue", CloudWatchSQSWorkerTest.message("m-1", "i-1", "OK", "ALARM"));
+    capture.recordMessage("https://queue", CloudWatchSQSWorkerTest.message("m-2", "i-1", "OK", "ALARM"));
+    capture.close();
+
+    final Map model = new HashMap();
+    model.put("default-node-id", "default");
+    model.put("machine-node-prefix", "machine:");
+    final Map sqs = new HashMap();
+    sqs.put("url", "queue");
+    // the spool directory of the connector is not used by the replay
+    final Map spool = new HashMap();
+    spool.put("enabled", true);
+    spool.put("directory", new File(f, "spool").getPath());
+    final Map cloudwatch = new HashMap();
+    cloudwatch.put("metrics-names", Arrays.asList("CPUUtilization"));
+    cloudwatch.put("namespaces", Arrays.asList("AWS/EC2"));
+    cloudwatch.put("metrics-periodities", Collections.emptyList());
+    final Map c = new HashMap();
+    c.put("cloudwatch", cloudwatch);
+    c.put("model", model);
+    c.put("sqs", sqs);
+    c.put("spool", spool);
+
+    // HIRO rejects the first issue
+    final HiroClient hiro = TrafficReplay.createInMemoryHiro(0);
+    final AtomicInteger creates = new AtomicInteger();
+    HiroClient rejecting = (HiroClient) Proxy.newProxyInstance(HiroClient.class.getClassLoader(), new Class[]{HiroClient.class}, new InvocationHandler() {
+      @Override
+      public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        if ("createVertex".equals(method.getName()) && creates.incrementAndGet() == 1) {
+          throw new HiroException("rejected", 400);
+        }
+        return method.invoke(hiro, args);
+      }
+    });
+
+    TrafficReplay replay = new TrafficReplay(new YamlConfig(c), 0, rejecting);
+    replay.run(Arrays.asList(f));
+    assertEquals(2, creates.get());
+    assertTrue(replay.report(1000000000L).contains("sqs messages: 2, failed: 1,"));
+  }
+}
@@ -0,0 +1,33 @@
+package de.arago.connector.cloudwatch;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+/**
+ *
+ */
+public class WeightedRoundRobinTest {
+
+  public WeightedRoundRobinTest() {
+  }
+
+  @Test
+  public void testWeightsAreSpread() {
+    WeightedRoundRobin<String> rr = new WeightedRoundRobin();
+    rr.add("a", 3);
+    rr.add("b", 1);
+
+    List<String> round = new ArrayList();
+    for (int i = 0; i < 8; ++i) {
+      round.add(rr.next());
+    }
+
+    assertEquals(6, Collections.frequency(round, "a"));
+    assertEquals(2, Collections.frequency(round, "b"));
+    // b is not starved until the end of the round
+    assertEquals(1, Collections.frequency(round.subList(0, 4), "b"));
+  }
+}
@@ -34,6 +34,7 @@ public class YamlConfigTest {
     assertEquals(3, items.size());
     
     assertNull(config.get("cloudwatch.bla"));
+    assertNull(config.get("cloudwatch.enabled.bla"));
     assertEquals("default", config.get("cloudwatch.bla", "default"));
     assertEquals(15, (int) config.get("cloudwatch.bla", 15));
     assertEquals(300, (int) config.get("cloudwatch.poll-interval-sec"));